@@ -301,24 +301,19 @@ public class AdjustGraphForRestrictions {
         if (generateOrigins==GenerateOriginsForDestinations.YES)
             Preconditions.checkNoneNull(implicitGatedNodeIds,implicitAccessOnlyNodeIds);
         HashMap<NodeAndState,NodeInfo> nodeInfo = new HashMap<>();
+        ArrayList<NodeAndState> statesByHeapItem = new ArrayList<>();
         HashSet<ShortPathElement> solutions = new HashSet<>();
         NodeAndState startState = nodeAndStateForStartNode(startNode);
         
-        PriorityQueue<DistanceOrder> unvisitedNodes = new PriorityQueue<>();
+        IndexedFourAryHeap unvisitedNodes = new IndexedFourAryHeap(1024);
         if (true) {
-            DistanceOrder startDo = new DistanceOrder(0,startState);
-            unvisitedNodes.add(startDo);
-
-            NodeInfo startNodeInfo = new NodeInfo();
+            NodeInfo startNodeInfo = newNodeInfo(startState, nodeInfo, statesByHeapItem);
             startNodeInfo.minDriveTime = 0;
-            startNodeInfo.distanceOrder = startDo;
-
-            nodeInfo.put(startState, startNodeInfo);
+            unvisitedNodes.insertOrDecreaseKey(startNodeInfo.heapItem, 0);
         }
         
         while (!unvisitedNodes.isEmpty()) {
-            DistanceOrder minHeapEntry = unvisitedNodes.poll();
-            NodeAndState shortestTimeNode = minHeapEntry.nodeAndState;
+            NodeAndState shortestTimeNode = statesByHeapItem.get(unvisitedNodes.pollMinItem());
             NodeInfo thisNodeInfo = nodeInfo.get(shortestTimeNode);
             
             //System.out.println("Visiting " + shortestTimeNode);
@@ -329,12 +324,9 @@ public class AdjustGraphForRestrictions {
                     if (nodeInfo.containsKey(sourceEquivalentToThisDestination)) {
                         // Already generated - visited this node with a different state.
                     } else {
-                        DistanceOrder sourceDo = new DistanceOrder(0,sourceEquivalentToThisDestination);
-                        NodeInfo sourceNodeInfo = new NodeInfo();
+                        NodeInfo sourceNodeInfo = newNodeInfo(sourceEquivalentToThisDestination, nodeInfo, statesByHeapItem);
                         sourceNodeInfo.minDriveTime = 0;
-                        sourceNodeInfo.distanceOrder = sourceDo;
-                        unvisitedNodes.add(sourceDo);
-                        nodeInfo.put(sourceEquivalentToThisDestination, sourceNodeInfo);
+                        unvisitedNodes.insertOrDecreaseKey(sourceNodeInfo.heapItem, 0);
                     }
                 }
 
@@ -344,18 +336,14 @@ public class AdjustGraphForRestrictions {
                     if (nodeInfo.containsKey(source)) {
                         // Already generated - visited this node with a different state.
                     } else {
-                        DistanceOrder sourceDo = new DistanceOrder(0,source);
-                        NodeInfo sourceNodeInfo = new NodeInfo();
+                        NodeInfo sourceNodeInfo = newNodeInfo(source, nodeInfo, statesByHeapItem);
                         sourceNodeInfo.minDriveTime = 0;
-                        sourceNodeInfo.distanceOrder = sourceDo;
-                        unvisitedNodes.add(sourceDo);
-                        nodeInfo.put(source, sourceNodeInfo);
+                        unvisitedNodes.insertOrDecreaseKey(sourceNodeInfo.heapItem, 0);
                     }
                 }
             }
             
             thisNodeInfo.visited = true;
-            thisNodeInfo.distanceOrder = null;
             
             List<DirectedEdge> outgoingEdges = shortestTimeNode.node.edgesFrom;
             if (shortestTimeNode.uTurnState==UTurnState.PENALTY_UNPAID
@@ -380,8 +368,7 @@ public class AdjustGraphForRestrictions {
                 
                 NodeInfo neighborNodeInfo = nodeInfo.get(neighbor);
                 if (neighborNodeInfo == null) {
-                    neighborNodeInfo = new NodeInfo();
-                    nodeInfo.put(neighbor, neighborNodeInfo);
+                    neighborNodeInfo = newNodeInfo(neighbor, nodeInfo, statesByHeapItem);
                 }
                 
                 ShortPathElement spe = new ShortPathElement(shortestTimeNode, neighbor, edge, thisNodeInfo.minTimeFromElement);
@@ -398,13 +385,7 @@ public class AdjustGraphForRestrictions {
                     neighborNodeInfo.minTimeFrom = shortestTimeNode;
                     neighborNodeInfo.minTimeVia = edge;
                     neighborNodeInfo.minTimeFromElement = spe;
-                    
-                    if (neighborNodeInfo.distanceOrder != null) {
-                        unvisitedNodes.remove(neighborNodeInfo.distanceOrder);
-                    }
-                    DistanceOrder newDistOrder = new DistanceOrder(newTime, neighbor);
-                    neighborNodeInfo.distanceOrder = newDistOrder;
-                    unvisitedNodes.add(newDistOrder);
+                    unvisitedNodes.insertOrDecreaseKey(neighborNodeInfo.heapItem, newTime);
                 }
             }
         }
@@ -412,36 +393,24 @@ public class AdjustGraphForRestrictions {
         return solutions;
     }
 
-    private final class DistanceOrder implements Comparable<DistanceOrder> {
-        private final int minDriveTime;
-        public final NodeAndState nodeAndState;
-
-        public DistanceOrder(int minDriveTime, NodeAndState node) {
-            this.minDriveTime = minDriveTime;
-            this.nodeAndState = node;
-        }
-        
-        @Override
-        public int compareTo(DistanceOrder that) {
-            if (this.minDriveTime < that.minDriveTime) {
-                return -1;
-            } else if (this.minDriveTime > that.minDriveTime) {
-                return 1;
-            } else if (this.nodeAndState.node.nodeId != that.nodeAndState.node.nodeId) {
-                return Long.compare(this.nodeAndState.node.nodeId,that.nodeAndState.node.nodeId);
-            } else {
-                return Integer.compare(this.nodeAndState.hashCode(), that.nodeAndState.hashCode());
-            }
-        }
+    private NodeInfo newNodeInfo(NodeAndState nas, HashMap<NodeAndState,NodeInfo> nodeInfo, ArrayList<NodeAndState> statesByHeapItem) {
+        NodeInfo info = new NodeInfo(statesByHeapItem.size());
+        statesByHeapItem.add(nas);
+        nodeInfo.put(nas, info);
+        return info;
     }
     
     private final class NodeInfo {
+        final int heapItem;
         boolean visited = false;
         int minDriveTime = Integer.MAX_VALUE;
         NodeAndState minTimeFrom = null;
         DirectedEdge minTimeVia = null;
-        DistanceOrder distanceOrder = null;
         ShortPathElement minTimeFromElement = null;
+
+        NodeInfo(int heapItem) {
+            this.heapItem = heapItem;
+        }
     }
     
     private NodeAndState nodeAndStateForStartNode(Node n) {
@@ -0,0 +1,134 @@
+package uk.me.mjt.ch;
+
+import java.nio.IntBuffer;
+
+/**
+ * Copies the buffers into per-thread int arrays with bulk gets, then merges
+ * the arrays without any data-dependent branches in the inner loop - about
+ * half the contraction orders match, so the branch in BufferMergeFinder is
+ * close to unpredictable.
+ *
+ * When one list is much longer than the other, such as a short upward search
+ * from a motorway junction meeting a long downward search from a rural lane,
+ * we instead walk the short list and gallop through the long one.
+ */
+public class ArrayMergeFinder implements CommonEntryFinder {
+    private static final int GALLOP_RATIO = 16;
+    
+    private static final ThreadLocal<int[][]> SCRATCH = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[4][0];
+        }
+    };
+    
+    @Override
+    public long findShortestCommonEntry(IntBuffer a, IntBuffer b, IntBuffer aTimes, IntBuffer bTimes) {
+        int aLength = a.limit();
+        int bLength = b.limit();
+        int[][] scratch = SCRATCH.get();
+        
+        if (aLength >= GALLOP_RATIO*(long)bLength) {
+            return gallopingMerge(copy(b, scratch, 1), bLength, bTimes, a, aLength, aTimes, true);
+        } else if (bLength >= GALLOP_RATIO*(long)aLength) {
+            return gallopingMerge(copy(a, scratch, 0), aLength, aTimes, b, bLength, bTimes, false);
+        } else {
+            return branchlessMerge(copy(a, scratch, 0), aLength, copy(aTimes, scratch, 2),
+                    copy(b, scratch, 1), bLength, copy(bTimes, scratch, 3));
+        }
+    }
+    
+    private static int[] copy(IntBuffer source, int[][] scratch, int slot) {
+        int length = source.limit();
+        if (scratch[slot].length < length) {
+            scratch[slot] = new int[Math.max(length, 2*scratch[slot].length)];
+        }
+        IntBuffer dupe = source.duplicate();
+        dupe.position(0);
+        dupe.get(scratch[slot], 0, length);
+        return scratch[slot];
+    }
+    
+    static long branchlessMerge(int[] a, int aLength, int[] aTimes, int[] b, int bLength, int[] bTimes) {
+        long result = NOT_FOUND;
+        int shortestTime = Integer.MAX_VALUE;
+        int aIdx = 0;
+        int bIdx = 0;
+        
+        while (aIdx<aLength && bIdx<bLength) {
+            int aValue = a[aIdx];
+            int bValue = b[bIdx];
+            
+            // Contraction orders and drive times are non-negative, so these
+            // differences can't overflow. differs is all ones unless the
+            // values match, in which case it's zero.
+            int differs = ((aValue - bValue) | (bValue - aValue)) >> 31;
+            int time = (aTimes[aIdx] + bTimes[bIdx]) | (differs & Integer.MAX_VALUE);
+            if (time < shortestTime) { // Rare - about 21 times per call.
+                shortestTime = time;
+                result = (((long)aIdx) << 32) | bIdx;
+            }
+            
+            aIdx += (aValue - bValue - 1) >>> 31; // +1 if aValue <= bValue
+            bIdx += (bValue - aValue - 1) >>> 31; // +1 if bValue <= aValue
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Walk through the short list, finding each value in the long list with 
+     * an exponential search starting from wherever the last value was found.
+     * Only a few entries of the long list are ever read, so only the short 
+     * list is copied - the long list and the drive times are read in place.
+     */
+    private static long gallopingMerge(int[] shortList, int shortLength, IntBuffer shortTimes,
+            IntBuffer longList, int longLength, IntBuffer longTimes, boolean shortIsB) {
+        long result = NOT_FOUND;
+        int shortestTime = Integer.MAX_VALUE;
+        int longIdx = 0;
+        
+        for (int shortIdx=0 ; shortIdx<shortLength && longIdx<longLength ; shortIdx++) {
+            int value = shortList[shortIdx];
+            longIdx = gallopTo(longList, longIdx, longLength, value);
+            
+            if (longIdx<longLength && longList.get(longIdx)==value) {
+                int time = shortTimes.get(shortIdx) + longTimes.get(longIdx);
+                if (time < shortestTime) {
+                    shortestTime = time;
+                    result = (shortIsB ? (((long)longIdx) << 32) | shortIdx : (((long)shortIdx) << 32) | longIdx);
+                }
+                longIdx++;
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @return The index of the first entry at or after fromIdx that's &gt;= 
+     * value, or length if there isn't one.
+     */
+    static int gallopTo(IntBuffer sorted, int fromIdx, int length, int value) {
+        int step = 1;
+        int lo = fromIdx;
+        int hi = fromIdx;
+        while (hi<length && sorted.get(hi)<value) {
+            lo = hi+1;
+            hi = fromIdx+step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, length);
+        
+        while (lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if (sorted.get(mid) < value) {
+                lo = mid+1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+}
@@ -4,7 +4,10 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import uk.me.mjt.ch.PartialSolution.DownwardSolution;
+import uk.me.mjt.ch.PartialSolution.UpwardSolution;
 import uk.me.mjt.ch.cache.BinaryCache;
 import uk.me.mjt.ch.cache.CachedContractedDijkstra;
 import uk.me.mjt.ch.loader.BinaryFormat;
@@ -37,7 +40,7 @@ public class BenchmarkUk {
         
         if (new File(nodeFile).exists() && new File(wayFile).exists()) {
             System.out.println("Loading data from " + nodeFile + " and " + wayFile);
-            allNodes=bf.read(nodeFile,wayFile, new StdoutStatusMonitor());
+            allNodes=bf.readParallel(nodeFile,wayFile, null, new StdoutStatusMonitor());
             hatfield = allNodes.getNodeById(253199386L);
             return true;
         } else {
@@ -70,7 +73,7 @@ public class BenchmarkUk {
     public void benchmarkParallelPathing(int repetitions) {
         System.out.println("Benchmarking parallel uncached pathing. Warming up...");
         List<Node> testLocations = allNodes.chooseRandomNodes(4000);
-        ExecutorService es = Executors.newFixedThreadPool(2);
+        ExecutorService es = new ForkJoinPool(1); // The calling thread does the upward half.
         
         for (Node node : testLocations) {
             ContractedDijkstra.contractedGraphDijkstra(allNodes, hatfield, node, es);
@@ -91,6 +94,156 @@ public class BenchmarkUk {
         es.shutdown();
     }
     
+    public void benchmarkBidirectionalPathing(int repetitions) {
+        System.out.println("Benchmarking bidirectional uncached pathing. Warming up...");
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        
+        for (Node node : testLocations) {
+            ContractedDijkstra.bidirectionalContractedGraphDijkstra(allNodes, hatfield, node);
+            ContractedDijkstra.bidirectionalContractedGraphDijkstra(allNodes, node, hatfield);
+        }
+        
+        System.out.println("Warming up complete, benchmarking...");
+        long startTime = System.currentTimeMillis();
+        for (int i=0 ; i<repetitions ; i++) {
+            System.out.println("Iteration " + i);
+            for (Node node : testLocations) {
+                ContractedDijkstra.bidirectionalContractedGraphDijkstra(allNodes, hatfield, node);
+                ContractedDijkstra.bidirectionalContractedGraphDijkstra(allNodes, node, hatfield);
+            }
+        }
+        
+        System.out.println(repetitions+" repetitions bidirectional uncached pathing from hatfield to " +testLocations.size()+ " locations in "+ (System.currentTimeMillis() - startTime) + " ms.");
+    }
+    
+    public void benchmarkFrozenPathing(int repetitions) {
+        System.out.println("Benchmarking frozen graph pathing. Freezing...");
+        long startTime = System.currentTimeMillis();
+        FrozenGraph frozenGraph = allNodes.freeze();
+        System.out.println("Froze " + frozenGraph.getUpwardEdgeCount() + " upward and " + frozenGraph.getDownwardEdgeCount() 
+                + " downward edges in " + (System.currentTimeMillis() - startTime) + " ms.");
+        FrozenDijkstra frozen = new FrozenDijkstra(frozenGraph);
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        
+        for (Node node : testLocations) {
+            frozen.contractedGraphDijkstra(allNodes, hatfield, node);
+        }
+        
+        startTime = System.currentTimeMillis();
+        for (int i=0 ; i<repetitions ; i++) {
+            for (Node node : testLocations) {
+                frozen.contractedGraphDijkstra(allNodes, hatfield, node);
+                frozen.contractedGraphDijkstra(allNodes, node, hatfield);
+            }
+        }
+        System.out.println(repetitions+" repetitions frozen pathing from hatfield to " +testLocations.size()+ " locations in "+ (System.currentTimeMillis() - startTime) + " ms.");
+    }
+    
+    public void benchmarkMappedGraph(int repetitions) throws IOException {
+        System.out.println("Benchmarking memory mapped frozen graph. Writing...");
+        File frozenFile = File.createTempFile("frozen-graph", ".dat");
+        frozenFile.deleteOnExit();
+        allNodes.freeze().writeTo(frozenFile.getPath());
+        System.out.println("Wrote " + frozenFile.length() + " bytes.");
+        
+        long startTime = System.currentTimeMillis();
+        FrozenGraph mapped = FrozenGraph.map(frozenFile.getPath());
+        FrozenDijkstra frozen = new FrozenDijkstra(mapped);
+        System.out.println("Mapped in " + (System.currentTimeMillis() - startTime) + " ms.");
+        
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        int hatfieldIndex = mapped.getNodeIndex(hatfield.nodeId);
+        int[] testIndices = new int[testLocations.size()];
+        for (int i=0 ; i<testIndices.length ; i++) {
+            testIndices[i] = mapped.getNodeIndex(testLocations.get(i).nodeId);
+        }
+        
+        startTime = System.currentTimeMillis();
+        long checksum = 0;
+        for (int i=0 ; i<testIndices.length ; i++) {
+            checksum += frozen.contractedGraphDistance(hatfieldIndex, testIndices[i]);
+        }
+        System.out.println("First (cold) pass of " + testIndices.length + " mapped distances in " 
+                + (System.currentTimeMillis() - startTime) + " ms. (checksum " + checksum + ")");
+        
+        startTime = System.currentTimeMillis();
+        checksum = 0;
+        for (int r=0 ; r<repetitions ; r++) {
+            for (int i=0 ; i<testIndices.length ; i++) {
+                checksum += frozen.contractedGraphPath(hatfieldIndex, testIndices[i]).length;
+                checksum += frozen.contractedGraphPath(testIndices[i], hatfieldIndex).length;
+            }
+        }
+        System.out.println(repetitions+" repetitions mapped pathing from hatfield to " +testIndices.length+ " locations in "
+                + (System.currentTimeMillis() - startTime) + " ms. (checksum " + checksum + ")");
+    }
+    
+    /**
+     * Renumbers the nodes each way in turn, so leaves the map data in the 
+     * last ordering tried.
+     */
+    public void benchmarkRenumbering(int repetitions) {
+        System.out.println("Benchmarking node renumbering...");
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        List<Node> measureLocations = testLocations.subList(0, 500);
+        System.out.println("As loaded: " + NodeRenumbering.measureIndexDistance(measureLocations));
+        
+        for (NodeRenumbering.Ordering ordering : NodeRenumbering.Ordering.values()) {
+            long startTime = System.currentTimeMillis();
+            NodeRenumbering.renumber(allNodes, ordering);
+            System.out.println("Renumbered by " + ordering + " in " + (System.currentTimeMillis() - startTime) + " ms.");
+            System.out.println(ordering + ": " + NodeRenumbering.measureIndexDistance(measureLocations));
+            
+            FrozenDijkstra frozen = new FrozenDijkstra(allNodes.freeze());
+            for (Node node : testLocations) {
+                frozen.contractedGraphDistance(hatfield, node);
+            }
+            
+            startTime = System.currentTimeMillis();
+            long checksum = 0;
+            for (int i=0 ; i<repetitions ; i++) {
+                for (Node node : testLocations) {
+                    checksum += frozen.contractedGraphDistance(hatfield, node);
+                    checksum += frozen.contractedGraphDistance(node, hatfield);
+                }
+            }
+            System.out.println(repetitions+" repetitions frozen distances from hatfield to " +testLocations.size()+ " locations in "
+                    + (System.currentTimeMillis() - startTime) + " ms with " + ordering + " numbering. (checksum " + checksum + ")");
+        }
+    }
+    
+    public void benchmarkQueueImplementations(int repetitions) {
+        System.out.println("Benchmarking Dijkstra queue implementations...");
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        
+        benchmarkQueue("indexed 4-ary heap", new IndexedFourAryHeap(4096), testLocations, repetitions);
+        benchmarkQueue("lazy deletion heap", new LazyMinHeap(4096), testLocations, repetitions);
+    }
+    
+    private void benchmarkQueue(String description, MinHeap queue, List<Node> testLocations, int repetitions) {
+        DijkstraSearchContext context = new DijkstraSearchContext(allNodes.getNodeCount(), queue);
+        
+        for (Node node : testLocations) {
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(node), Dijkstra.Direction.FORWARDS, context);
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(node), Dijkstra.Direction.BACKWARDS, context);
+        }
+        
+        long startTime = System.currentTimeMillis();
+        long settledNodes = 0;
+        for (int i=0 ; i<repetitions ; i++) {
+            for (Node node : testLocations) {
+                Dijkstra.contractedSearch(ColocatedNodeSet.singleton(node), Dijkstra.Direction.FORWARDS, context);
+                settledNodes += context.getSettledCount();
+                Dijkstra.contractedSearch(ColocatedNodeSet.singleton(node), Dijkstra.Direction.BACKWARDS, context);
+                settledNodes += context.getSettledCount();
+            }
+        }
+        
+        System.out.println(repetitions+" repetitions upward and downward searches using " + description + " for " 
+                + testLocations.size() + " locations, settling " + settledNodes + " nodes, in " 
+                + (System.currentTimeMillis() - startTime) + " ms.");
+    }
+    
     public void benchmarkCachedPathing(int repetitions) {
         System.out.println("Benchmarking cached pathing. Warming up & populating cache...");
         List<Node> testLocations = allNodes.chooseRandomNodes(4000);
@@ -109,6 +262,120 @@ public class BenchmarkUk {
         System.out.println(repetitions+" repetitions cached pathing from hatfield to " +testLocations.size()+ " locations in "+ (System.currentTimeMillis() - startTime) + " ms.");
     }
 
+    public void benchmarkCachedDistances(int repetitions) {
+        System.out.println("Benchmarking cached distances. Warming up & populating cache...");
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        BinaryCache cache = populateTestCache(testLocations);
+        
+        System.out.println("Warming up complete, benchmarking...");
+        long startTime = System.currentTimeMillis();
+        long checksum = 0;
+        for (int i=0 ; i<repetitions ; i++) {
+            for (Node node : testLocations) {
+                checksum += CachedContractedDijkstra.contractedGraphDistance(allNodes, hatfield, node, cache);
+                checksum += CachedContractedDijkstra.contractedGraphDistance(allNodes, node, hatfield, cache);
+            }
+        }
+        
+        System.out.println(repetitions+" repetitions cached distances from hatfield to " +testLocations.size()+ " locations in "+ (System.currentTimeMillis() - startTime) + " ms. (checksum " + checksum + ")");
+    }
+    
+    public void benchmarkPhast(int repetitions) {
+        System.out.println("Benchmarking PHAST one-to-all. Preparing...");
+        long startTime = System.currentTimeMillis();
+        Phast phast = new Phast(allNodes);
+        System.out.println("Prepared in " + (System.currentTimeMillis() - startTime) + " ms.");
+        List<Node> sources = allNodes.chooseRandomNodes(Phast.SOURCES_PER_SWEEP);
+        phast.oneToAll(hatfield);
+        
+        startTime = System.currentTimeMillis();
+        long checksum = 0;
+        for (int i=0 ; i<repetitions ; i++) {
+            checksum += phast.oneToAll(sources.get(i%sources.size()))[hatfield.nodeIndex];
+        }
+        System.out.println(repetitions + " repetitions one-to-all in " + (System.currentTimeMillis() - startTime) + " ms. (checksum " + checksum + ")");
+        
+        startTime = System.currentTimeMillis();
+        checksum = 0;
+        for (int i=0 ; i<repetitions ; i++) {
+            checksum += phast.manyToAll(sources)[i%sources.size()][hatfield.nodeIndex];
+        }
+        System.out.println(repetitions + " repetitions " + sources.size() + "-to-all in " + (System.currentTimeMillis() - startTime) + " ms. (checksum " + checksum + ")");
+    }
+    
+    public void benchmarkHubLabels(int repetitions) {
+        System.out.println("Benchmarking hub label distances. Building labels...");
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        ArrayList<Node> toLabel = new ArrayList<>(testLocations);
+        toLabel.add(hatfield);
+        
+        long startTime = System.currentTimeMillis();
+        HubLabels labels = HubLabels.build(allNodes, toLabel);
+        System.out.println("Built " + labels.getEntryCount() + " label entries for " + toLabel.size() 
+                + " nodes in " + (System.currentTimeMillis() - startTime) + " ms.");
+        
+        startTime = System.currentTimeMillis();
+        long checksum = 0;
+        for (int i=0 ; i<repetitions ; i++) {
+            for (Node node : testLocations) {
+                checksum += labels.contractedGraphDistance(hatfield, node);
+                checksum += labels.contractedGraphDistance(node, hatfield);
+            }
+        }
+        
+        System.out.println(repetitions+" repetitions hub label distances from hatfield to " +testLocations.size()+ " locations in "+ (System.currentTimeMillis() - startTime) + " ms. (checksum " + checksum + ")");
+    }
+    
+    /**
+     * Times just the merge of cached upward and downward solutions, which is 
+     * what the numbers in BufferMergeFinder's comment measure.
+     */
+    public void benchmarkCommonEntryFinders(int repetitions) {
+        System.out.println("Benchmarking common entry finders...");
+        List<Node> testLocations = allNodes.chooseRandomNodes(4000);
+        UpwardSolution[] ups = new UpwardSolution[testLocations.size()];
+        DownwardSolution[] downs = new DownwardSolution[testLocations.size()];
+        for (int i=0 ; i<testLocations.size() ; i++) {
+            ups[i] = ContractedDijkstra.calculateUpwardSolution(ColocatedNodeSet.singleton(testLocations.get(i)));
+            downs[i] = ContractedDijkstra.calculateDownwardSolution(ColocatedNodeSet.singleton(testLocations.get(i)));
+        }
+        DownwardSolution hatfieldDown = ContractedDijkstra.calculateDownwardSolution(ColocatedNodeSet.singleton(hatfield));
+        UpwardSolution hatfieldUp = ContractedDijkstra.calculateUpwardSolution(ColocatedNodeSet.singleton(hatfield));
+        
+        CommonEntryFinder[] finders = {new BufferMergeFinder(), new ArrayMergeFinder()};
+        for (int warmup=0 ; warmup<2 ; warmup++) {
+            for (CommonEntryFinder finder : finders) {
+                benchmarkCommonEntryFinder(finder, ups, downs, hatfieldUp, hatfieldDown, 1, false);
+            }
+        }
+        for (CommonEntryFinder finder : finders) {
+            benchmarkCommonEntryFinder(finder, ups, downs, hatfieldUp, hatfieldDown, repetitions, true);
+        }
+    }
+    
+    private void benchmarkCommonEntryFinder(CommonEntryFinder finder, UpwardSolution[] ups, DownwardSolution[] downs,
+            UpwardSolution hatfieldUp, DownwardSolution hatfieldDown, int repetitions, boolean print) {
+        long calls = 0;
+        long entries = 0;
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        for (int r=0 ; r<repetitions ; r++) {
+            for (int i=0 ; i<ups.length ; i++) {
+                checksum += ContractedDijkstra.mergeUpwardAndDownwardDistances(hatfieldUp, downs[i], finder);
+                checksum += ContractedDijkstra.mergeUpwardAndDownwardDistances(ups[i], hatfieldDown, finder);
+                entries += hatfieldUp.getSize() + downs[i].getSize() + ups[i].getSize() + hatfieldDown.getSize();
+                calls += 2;
+            }
+        }
+        long durationNs = System.nanoTime() - startTime;
+        
+        if (print) {
+            System.out.println(String.format("%s: %d calls, %d entries per call, %.1f us per call, "
+                    + "%.2f ns per entry (checksum %d)", finder.getClass().getSimpleName(), calls, 
+                    entries/calls, durationNs/1000.0/calls, ((double)durationNs)/entries, checksum));
+        }
+    }
+    
     private BinaryCache populateTestCache(List<Node> testLocations) {
         BinaryCache cache = new BinaryCache();
         for (Node node : testLocations) {
@@ -161,9 +428,18 @@ public class BenchmarkUk {
                 
             } else {
                 instance.benchmarkPathing(2);
+                instance.benchmarkBidirectionalPathing(2);
+                instance.benchmarkQueueImplementations(2);
+                instance.benchmarkFrozenPathing(2);
+                instance.benchmarkMappedGraph(2);
                 instance.benchmarkParallelPathing(2);
                 instance.benchmarkCachedPathing(100);
+                instance.benchmarkCachedDistances(100);
+                instance.benchmarkCommonEntryFinders(10);
+                instance.benchmarkHubLabels(100);
+                instance.benchmarkPhast(10);
                 instance.benchmarkParallelCachedPathing(100);
+                instance.benchmarkRenumbering(10);
             }
             
         } catch (Exception e) {
@@ -0,0 +1,56 @@
+package uk.me.mjt.ch;
+
+import java.nio.IntBuffer;
+
+/**
+ * Straightforward merge, reading the direct buffers one entry at a time.
+ */
+public class BufferMergeFinder implements CommonEntryFinder {
+    
+    /*
+        10 repetitions cached pathing from hatfield to 4000 locations in 1479 ms.
+        getCommonEntryIndicesCalls:   88013
+        whileLoopIterations:      324083997
+        matchedContractionOrders: 152378966
+        replacedShortest:           1848114
+
+        3682 loops per subroutine call
+        Shared entries: 47.01%
+        21 shortest replacements per subroutine call
+
+        16.8 us per subroutine call
+        4.5 ns per loop iteration -> average 18 clock cycles at 4GHz
+     */
+    @Override
+    public long findShortestCommonEntry(IntBuffer a, IntBuffer b, IntBuffer aTimes, IntBuffer bTimes) {
+        long result = NOT_FOUND;
+        
+        int shortestTime = Integer.MAX_VALUE;
+        int aIdx = 0;
+        int bIdx = 0;
+        
+        while (aIdx<a.limit() && bIdx<b.limit()) {
+            int aValue = a.get(aIdx);
+            int bValue = b.get(bIdx);
+            
+            if (aValue==bValue) {
+                int aTime = aTimes.get(aIdx);
+                int bTime = bTimes.get(bIdx);
+                if (aTime+bTime < shortestTime) {
+                    shortestTime = aTime+bTime;
+                    result = (((long)aIdx) << 32) | bIdx;
+                }
+                
+                bIdx++;
+                aIdx++;
+            } else if (aValue > bValue) {
+                bIdx++;
+            } else {
+                aIdx++;
+            }
+        }
+        
+        return result;
+    }
+    
+}
@@ -0,0 +1,20 @@
+package uk.me.mjt.ch;
+
+import java.nio.IntBuffer;
+
+/**
+ * Finds where an upward and a downward PartialSolution meet: of the nodes
+ * present in both (matched by contraction order, which both lists are sorted
+ * by) the one with the lowest combined drive time.
+ */
+public interface CommonEntryFinder {
+    public static final long NOT_FOUND = -1L;
+    
+    /**
+     * @return The index into a and the index into b, packed as 
+     * (aIdx << 32) | bIdx, or NOT_FOUND if the lists have no common entries.
+     * Ties go to the lowest contraction order.
+     */
+    public long findShortestCommonEntry(IntBuffer a, IntBuffer b, IntBuffer aTimes, IntBuffer bTimes);
+    
+}
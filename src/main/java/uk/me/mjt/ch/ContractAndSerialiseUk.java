@@ -2,10 +2,11 @@ package uk.me.mjt.ch;
 
 import java.util.*;
 import uk.me.mjt.ch.loader.BinaryFormat;
+import uk.me.mjt.ch.loader.ContainerFormat;
 import uk.me.mjt.ch.status.StdoutStatusMonitor;
 
 public class ContractAndSerialiseUk {
-    
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 10*60*1000;
     
     public static void main(String[] args) {
         String filenamePrefix;
@@ -20,28 +21,48 @@ public class ContractAndSerialiseUk {
         
         try {
             
-            System.out.println("Loading data...");
             BinaryFormat bf = new BinaryFormat();
-            MapData allNodes=bf.read(filenamePrefix+"-nodes.dat", filenamePrefix+"-ways.dat",
-                    filenamePrefix+"-turnrestrictions.dat", new StdoutStatusMonitor());
-            
-            Node startNode = allNodes.getNodeById(startNodeId);
-            
-            System.out.println("Adjusting for restrictions...");
-            allNodes = AdjustGraphForRestrictions.makeNewGraph(allNodes, startNode);
-            
-            CheckOsmRouting.checkUncontracted(allNodes);
-            
-            System.out.println("Contracting...");
-            GraphContractor contractor = new GraphContractor(allNodes);
+            String inputDescription = ContractionCheckpoint.describeInputFiles(filenamePrefix+"-nodes.dat",
+                    filenamePrefix+"-ways.dat", filenamePrefix+"-turnrestrictions.dat");
+            MapData allNodes;
+            GraphContractor contractor;
+            long startTime2;
+            if (ContractionCheckpoint.existsFor(filenamePrefix, inputDescription)) {
+                System.out.println("Resuming from checkpoint...");
+                allNodes = ContractionCheckpoint.readMapData(filenamePrefix, inputDescription, new StdoutStatusMonitor());
+                contractor = new GraphContractor(allNodes);
+                contractor.enableCheckpoints(filenamePrefix, inputDescription, CHECKPOINT_INTERVAL_MILLIS);
+                startTime2 = System.currentTimeMillis();
+                contractor.resumeFromCheckpoint(filenamePrefix);
+            } else {
+                if (ContractionCheckpoint.exists(filenamePrefix)) {
+                    System.out.println("Discarding checkpoint made from different input.");
+                    ContractionCheckpoint.delete(filenamePrefix);
+                }
+                System.out.println("Loading data...");
+                allNodes=bf.read(filenamePrefix+"-nodes.dat", filenamePrefix+"-ways.dat",
+                        filenamePrefix+"-turnrestrictions.dat", new StdoutStatusMonitor());
+
+                Node startNode = allNodes.getNodeById(startNodeId);
+
+                System.out.println("Adjusting for restrictions...");
+                allNodes = AdjustGraphForRestrictions.makeNewGraph(allNodes, startNode);
 
-            long startTime2 = System.currentTimeMillis();
-            contractor.initialiseContractionOrder();
-            contractor.contractAll();
+                CheckOsmRouting.checkUncontracted(allNodes);
+
+                System.out.println("Contracting...");
+                contractor = new GraphContractor(allNodes);
+                contractor.enableCheckpoints(filenamePrefix, inputDescription, CHECKPOINT_INTERVAL_MILLIS);
+                startTime2 = System.currentTimeMillis();
+                contractor.initialiseContractionOrder();
+            }
+            contractor.contractAllInParallel();
             long duration = System.currentTimeMillis()-startTime2;
             System.out.println("Performed contraction in " + duration + "ms.");
             
-            bf.write(allNodes,filenamePrefix+"-contracted-nodes.dat",filenamePrefix+"-contracted-ways.dat");
+            bf.write(allNodes,filenamePrefix+"-contracted-nodes.dat",filenamePrefix+"-contracted-ways.dat", new StdoutStatusMonitor());
+            new ContainerFormat().write(allNodes, filenamePrefix+"-contracted.chc",
+                    ContainerFormat.IncludeFrozenGraph.YES, new StdoutStatusMonitor());
             MapData readback=bf.read(filenamePrefix+"-contracted-nodes.dat",filenamePrefix+"-contracted-ways.dat", new StdoutStatusMonitor());
             boolean readbackMatch = Util.deepEquals(allNodes, readback, true);
             
@@ -52,6 +73,7 @@ public class ContractAndSerialiseUk {
                 System.exit(2);
             } else {
                 System.out.println("Readback success!");
+                ContractionCheckpoint.delete(filenamePrefix);
             }
             
         } catch (Exception e) {
@@ -1,54 +1,78 @@
 
 package uk.me.mjt.ch;
 
-import java.nio.IntBuffer;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
 import uk.me.mjt.ch.PartialSolution.DownwardSolution;
 import uk.me.mjt.ch.PartialSolution.UpwardSolution;
 
 
 public class ContractedDijkstra {
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+    public static final CommonEntryFinder DEFAULT_COMMON_ENTRY_FINDER = new ArrayMergeFinder();
     
-    public static DijkstraSolution contractedGraphDijkstra(MapData allNodes, Node startNode, Node endNode, ExecutorService es) {
-        throw new UnsupportedOperationException("Temporarily broken");
+    /**
+     * Runs the downward search on the supplied executor while the calling
+     * thread runs the upward search, so a single query can use two cores.
+     * Only one task is handed off, and the result is handed back through a
+     * volatile field rather than a Future, so a ForkJoinPool (or any other
+     * executor with cheap task submission) works best.
+     */
+    public static DijkstraSolution contractedGraphDijkstra(MapData allNodes, Node startNode, Node endNode, Executor es) {
+        Preconditions.checkNoneNull(allNodes, startNode, endNode, es);
+        DownwardSearch downwardSearch = new DownwardSearch(ColocatedNodeSet.singleton(endNode));
+        es.execute(downwardSearch);
+        UpwardSolution upwardSolution = calculateUpwardSolution(ColocatedNodeSet.singleton(startNode));
+        return mergeUpwardAndDownwardSolutions(allNodes, upwardSolution, downwardSearch.awaitResult());
     }
     
-    /*public static DijkstraSolution contractedGraphDijkstra(MapData allNodes, Node startNode, Node endNode, ExecutorService es) {
-        Preconditions.checkNoneNull(allNodes, startNode, endNode);
-        Future<UpwardSolution> fUpwardSolution = futureUpwardSolution(allNodes, startNode, es);
-        Future<DownwardSolution> fDownwardSolution = futureDownwardSolution(allNodes, endNode, es);
+    private static final class DownwardSearch implements Runnable {
+        private static final int SPINS_BEFORE_PARKING = 1000;
         
-        return mergeUpwardAndDownwardSolutions(allNodes, getFutureQuietly(fUpwardSolution), getFutureQuietly(fDownwardSolution));
-    }
-    
-    private static <E> E getFutureQuietly(Future<E> f) {
-        try {
-            return f.get();
-        } catch (ExecutionException|InterruptedException e) {
-            throw new RuntimeException(e);
+        private final ColocatedNodeSet endNode;
+        private final Thread waitingThread = Thread.currentThread();
+        private volatile DownwardSolution result = null;
+        private volatile Throwable failure = null;
+        private volatile boolean complete = false;
+
+        DownwardSearch(ColocatedNodeSet endNode) {
+            this.endNode = endNode;
         }
-    }
-    
-    private static Future<UpwardSolution> futureUpwardSolution(final MapData allNodes, final Node startNode, final ExecutorService es) {
-        return es.submit(new Callable<UpwardSolution>() {
-            @Override
-            public UpwardSolution call() throws Exception {
-                return calculateUpwardSolution(allNodes, startNode);
+
+        @Override
+        public void run() {
+            try {
+                result = calculateDownwardSolution(endNode);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                complete = true;
+                LockSupport.unpark(waitingThread);
             }
-        });
-    }
-    
-    private static Future<DownwardSolution> futureDownwardSolution(final MapData allNodes, final Node endNode, final ExecutorService es) {
-        return es.submit(new Callable<DownwardSolution>() {
-            @Override
-            public DownwardSolution call() throws Exception {
-                return calculateDownwardSolution(allNodes, endNode);
+        }
+        
+        DownwardSolution awaitResult() {
+            // The upward and downward searches take similar amounts of time,
+            // so the result is usually close - spin briefly before parking.
+            for (int i=0 ; i<SPINS_BEFORE_PARKING && !complete ; i++) { }
+            while (!complete) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    // The downward search runs to completion regardless, and
+                    // its result is dropped.
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(new InterruptedException());
+                }
+            }
+            if (failure != null) {
+                throw new RuntimeException(failure);
             }
-        });
-    }*/
+            return result;
+        }
+    }
     
     public static DijkstraSolution contractedGraphDijkstra(MapData allNodes, Node startNode, Node endNode) {
         Preconditions.checkNoneNull(allNodes, startNode, endNode);
@@ -62,68 +86,80 @@ public class ContractedDijkstra {
         return mergeUpwardAndDownwardSolutions(allNodes, upwardSolution, downwardSolution);
     }
     
-    public static DijkstraSolution mergeUpwardAndDownwardSolutions(MapData allNodes, UpwardSolution up, DownwardSolution down) {
+    public static DijkstraSolution bidirectionalContractedGraphDijkstra(MapData allNodes, Node startNode, Node endNode) {
+        Preconditions.checkNoneNull(allNodes, startNode, endNode);
+        return bidirectionalContractedGraphDijkstra(allNodes, ColocatedNodeSet.singleton(startNode), ColocatedNodeSet.singleton(endNode));
+    }
+    
+    /**
+     * For one-off queries that won't benefit from caching the upward and
+     * downward solutions, interleave the two searches and stop as soon as the
+     * shortest path is known, rather than exhausting both search spaces.
+     */
+    public static DijkstraSolution bidirectionalContractedGraphDijkstra(MapData allNodes, ColocatedNodeSet startNode, ColocatedNodeSet endNode) {
+        Preconditions.checkNoneNull(allNodes, startNode, endNode);
+        DijkstraSearchContext forwards = DijkstraSearchContext.forCurrentThread(Dijkstra.Direction.FORWARDS);
+        DijkstraSearchContext backwards = DijkstraSearchContext.forCurrentThread(Dijkstra.Direction.BACKWARDS);
         
-        IntBuffer commonIndices = getCommonEntryIndices(up.getContractionOrderBuffer(),down.getContractionOrderBuffer(),up.getTotalDriveTimeBuffer(),down.getTotalDriveTimeBuffer());
-        if (commonIndices.get(0) == -1)
+        Node meetingNode = Dijkstra.bidirectionalContractedSearch(startNode, endNode, Dijkstra.StallOnDemand.YES, forwards, backwards);
+        if (meetingNode == null)
             return null;
         
-        int shortestUpIdx = commonIndices.get(0);
-        int shortestDownIdx = commonIndices.get(1);
+        DijkstraSolution shortestSolutionUp = Dijkstra.extractShortest(meetingNode, forwards);
+        DijkstraSolution shortestSolutionDown = Dijkstra.extractShortest(meetingNode, backwards);
+        return unContract(upThenDown(shortestSolutionUp,shortestSolutionDown));
+    }
+    
+    public static DijkstraSolution mergeUpwardAndDownwardSolutions(MapData allNodes, UpwardSolution up, DownwardSolution down) {
+        return mergeUpwardAndDownwardSolutions(allNodes, up, down, DEFAULT_COMMON_ENTRY_FINDER);
+    }
+    
+    public static DijkstraSolution mergeUpwardAndDownwardSolutions(MapData allNodes, UpwardSolution up, DownwardSolution down, CommonEntryFinder finder) {
+        long commonIndices = findShortestCommonEntry(up, down, finder);
+        if (commonIndices == CommonEntryFinder.NOT_FOUND)
+            return null;
+        
+        int shortestUpIdx = (int)(commonIndices >>> 32);
+        int shortestDownIdx = (int)commonIndices;
         
         DijkstraSolution shortestSolutionUp = up.getDijkstraSolution(allNodes, shortestUpIdx);
         DijkstraSolution shortestSolutionDown = down.getDijkstraSolution(allNodes, shortestDownIdx);
         return unContract(upThenDown(shortestSolutionUp,shortestSolutionDown));
     }
     
-    /*
-        10 repetitions cached pathing from hatfield to 4000 locations in 1479 ms.
-        getCommonEntryIndicesCalls:   88013
-        whileLoopIterations:      324083997
-        matchedContractionOrders: 152378966
-        replacedShortest:           1848114
-
-        3682 loops per subroutine call
-        Shared entries: 47.01%
-        21 shortest replacements per subroutine call
-
-        16.8 us per subroutine call
-        4.5 ns per loop iteration -> average 18 clock cycles at 4GHz
+    public static int contractedGraphDistance(Node startNode, Node endNode) {
+        Preconditions.checkNoneNull(startNode, endNode);
+        return contractedGraphDistance(ColocatedNodeSet.singleton(startNode), ColocatedNodeSet.singleton(endNode));
+    }
+    
+    /**
+     * Like contractedGraphDijkstra, but only calculates the drive time, so 
+     * there's no need to build or unpack the path.
+     * @return The drive time in milliseconds, or UNREACHABLE.
      */
-    private static IntBuffer getCommonEntryIndices(IntBuffer a, IntBuffer b, IntBuffer aTimes, IntBuffer bTimes) {
-        IntBuffer result = IntBuffer.allocate(2);
-        result.put(0,-1).put(1,-1);
-        
-        int shortestTime = Integer.MAX_VALUE;
-        int aIdx = 0;
-        int bIdx = 0;
-        
-        while (aIdx<a.limit() && bIdx<b.limit()) {
-            int aValue = a.get(aIdx);
-            int bValue = b.get(bIdx);
-            
-            if (aValue==bValue) {
-                int aTime = aTimes.get(aIdx);
-                int bTime = bTimes.get(bIdx);
-                if (aTime+bTime < shortestTime) {
-                    shortestTime = aTime+bTime;
-                    result.put(0, aIdx);
-                    result.put(1, bIdx);
-                }
-                
-                bIdx++;
-                aIdx++;
-            } else if (aValue > bValue) {
-                bIdx++;
-            } else {
-                aIdx++;
-            }
-        }
+    public static int contractedGraphDistance(ColocatedNodeSet startNode, ColocatedNodeSet endNode) {
+        Preconditions.checkNoneNull(startNode, endNode);
+        UpwardSolution upwardSolution = calculateUpwardSolution(startNode);
+        DownwardSolution downwardSolution = calculateDownwardSolution(endNode);
+        return mergeUpwardAndDownwardDistances(upwardSolution, downwardSolution);
+    }
+    
+    public static int mergeUpwardAndDownwardDistances(UpwardSolution up, DownwardSolution down) {
+        return mergeUpwardAndDownwardDistances(up, down, DEFAULT_COMMON_ENTRY_FINDER);
+    }
+    
+    public static int mergeUpwardAndDownwardDistances(UpwardSolution up, DownwardSolution down, CommonEntryFinder finder) {
+        long commonIndices = findShortestCommonEntry(up, down, finder);
+        if (commonIndices == CommonEntryFinder.NOT_FOUND)
+            return UNREACHABLE;
         
-        return result;
+        return up.getTotalDriveTime((int)(commonIndices >>> 32)) + down.getTotalDriveTime((int)commonIndices);
+    }
+    
+    private static long findShortestCommonEntry(UpwardSolution up, DownwardSolution down, CommonEntryFinder finder) {
+        return finder.findShortestCommonEntry(up.getContractionOrderBuffer(),down.getContractionOrderBuffer(),up.getTotalDriveTimeBuffer(),down.getTotalDriveTimeBuffer());
     }
     
-
     private static DijkstraSolution upThenDown(DijkstraSolution up, DijkstraSolution down) {
         int totalDriveTime = up.totalDriveTimeMs + down.totalDriveTimeMs;
         LinkedList<Node> nodes = new LinkedList();
@@ -143,7 +179,7 @@ public class ContractedDijkstra {
      * Take in a solution with some shortcut edges / contracted nodes and 
      * convert to the equivalent non-contracted solution.
      */
-    private static DijkstraSolution unContract(DijkstraSolution ds) {
+    static DijkstraSolution unContract(DijkstraSolution ds) {
         if (ds == null) {
             return null;
         }
@@ -163,13 +199,15 @@ public class ContractedDijkstra {
     }
     
     public static UpwardSolution calculateUpwardSolution(ColocatedNodeSet startNode) {
-        List<DijkstraSolution> upwardSolutions = Dijkstra.dijkstrasAlgorithm(startNode, Dijkstra.Direction.FORWARDS);
-        return new UpwardSolution(upwardSolutions);
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        Dijkstra.contractedSearch(startNode, Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.YES, context);
+        return new UpwardSolution(context);
     }
     
     public static DownwardSolution calculateDownwardSolution(ColocatedNodeSet endNode) {
-        List<DijkstraSolution> downwardSolutions = Dijkstra.dijkstrasAlgorithm(endNode, Dijkstra.Direction.BACKWARDS);
-        return new DownwardSolution(downwardSolutions);
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        Dijkstra.contractedSearch(endNode, Dijkstra.Direction.BACKWARDS, Dijkstra.StallOnDemand.YES, context);
+        return new DownwardSolution(context);
     }
 
 }
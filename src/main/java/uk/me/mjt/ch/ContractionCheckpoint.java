@@ -0,0 +1,303 @@
+package uk.me.mjt.ch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import uk.me.mjt.ch.loader.BinaryFormat;
+import uk.me.mjt.ch.status.DiscardingStatusMonitor;
+import uk.me.mjt.ch.status.StatusMonitor;
+
+/**
+ * Checkpoints of a GraphContractor part way through contraction, so a run
+ * that dies can carry on from the last checkpoint rather than starting again.
+ * See GraphContractor.enableCheckpoints and resumeFromCheckpoint.
+ *
+ * Each checkpoint is a nodes file and a ways file, written by BinaryFormat,
+ * holding the contraction orders and shortcuts so far, plus a queue file
+ * holding the priority of every node still to be contracted. They're written
+ * on a background thread from a snapshot - the contraction orders, the queue,
+ * and the shortcuts added so far, which never change once added - so
+ * contraction only pauses long enough to copy a few arrays.
+ *
+ * Files are numbered by generation. Once a generation is complete, a small
+ * file naming it is atomically replaced, and the previous generation deleted,
+ * so a run that dies mid-write leaves the previous checkpoint intact. That
+ * file also holds a description of the input being contracted - see
+ * describeInputFiles - and a checkpoint is only read back for the same
+ * input. Once the contracted graph has been written out, delete the
+ * checkpoint, or the next run will pick it up.
+ */
+public class ContractionCheckpoint {
+    private static final long QUEUE_FILE_VERSION = 1;
+
+    private final String filenamePrefix;
+    private final String inputDescription;
+    private final long intervalMillis;
+    private final List<Node> nodesInIndexOrder;
+    private final List<DirectedEdge> edgesBeforeCheckpointing;
+    private final ArrayList<DirectedEdge> shortcutsAdded = new ArrayList<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private Future<?> writeInProgress = null;
+    private long lastCheckpointTime;
+    private long generation;
+
+    ContractionCheckpoint(MapData allNodes, String filenamePrefix, String inputDescription, long intervalMillis) throws IOException {
+        Preconditions.checkNoneNull(allNodes, filenamePrefix, inputDescription);
+        Preconditions.require(intervalMillis >= 0);
+        this.filenamePrefix = filenamePrefix;
+        this.inputDescription = inputDescription;
+        this.intervalMillis = intervalMillis;
+        this.lastCheckpointTime = System.currentTimeMillis();
+        this.generation = (exists(filenamePrefix) ? readManifest(filenamePrefix).generation : 0);
+
+        nodesInIndexOrder = new ArrayList<>(allNodes.getNodeCount());
+        ArrayList<DirectedEdge> edges = new ArrayList<>(allNodes.getEdgeCount());
+        for (int i=0 ; i<allNodes.getNodeCount() ; i++) {
+            Node n = allNodes.getNodeByIndex(i);
+            nodesInIndexOrder.add(n);
+            edges.addAll(n.edgesFrom);
+        }
+        // Shortcuts loaded from an earlier checkpoint must come after the
+        // edges they're made of.
+        Collections.sort(edges, new Comparator<DirectedEdge>() {
+            @Override
+            public int compare(DirectedEdge a, DirectedEdge b) {
+                return Integer.compare(a.contractionDepth, b.contractionDepth);
+            }
+        });
+        edgesBeforeCheckpointing = edges;
+    }
+
+    void shortcutAdded(DirectedEdge shortcut) {
+        shortcutsAdded.add(shortcut);
+    }
+
+    /**
+     * True if the interval has passed and the last checkpoint has finished
+     * writing - checkpoints are skipped rather than queued up.
+     */
+    boolean isDue() {
+        return (writeInProgress == null || writeInProgress.isDone())
+                && System.currentTimeMillis()-lastCheckpointTime >= intervalMillis;
+    }
+
+    /**
+     * Start writing a checkpoint in the background. Must be called from the
+     * thread doing the contraction, between nodes.
+     *
+     * @param contractionOrders By Node.nodeIndex.
+     */
+    void start(final int[] contractionOrders, final int[] queuedNodeIndices, final int[] queuedPriorities) {
+        final DirectedEdge[] shortcuts = shortcutsAdded.toArray(new DirectedEdge[shortcutsAdded.size()]);
+        final long thisGeneration = ++generation;
+        lastCheckpointTime = System.currentTimeMillis();
+
+        writeInProgress = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long startTime = System.currentTimeMillis();
+                    write(thisGeneration, contractionOrders, shortcuts, queuedNodeIndices, queuedPriorities);
+                    System.out.println("Wrote checkpoint " + thisGeneration + " with " + queuedNodeIndices.length
+                            + " nodes remaining in " + (System.currentTimeMillis()-startTime) + " ms.");
+                } catch (IOException e) {
+                    // The previous checkpoint is still there, so carry on.
+                    System.out.println("Failed to write checkpoint " + thisGeneration);
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void write(long thisGeneration, int[] contractionOrders, DirectedEdge[] shortcuts,
+            int[] queuedNodeIndices, int[] queuedPriorities) throws IOException {
+        ArrayList<DirectedEdge> edges = new ArrayList<>(edgesBeforeCheckpointing.size()+shortcuts.length);
+        edges.addAll(edgesBeforeCheckpointing);
+        Collections.addAll(edges, shortcuts);
+
+        BinaryFormat.writeSnapshot(nodesInIndexOrder, contractionOrders, edges,
+                nodeFile(filenamePrefix, thisGeneration), wayFile(filenamePrefix, thisGeneration), new DiscardingStatusMonitor());
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(queueFile(filenamePrefix, thisGeneration))))) {
+            dos.writeLong(QUEUE_FILE_VERSION);
+            dos.writeInt(queuedNodeIndices.length);
+            for (int i=0 ; i<queuedNodeIndices.length ; i++) {
+                dos.writeLong(nodesInIndexOrder.get(queuedNodeIndices[i]).nodeId);
+                dos.writeInt(queuedPriorities[i]);
+            }
+        }
+
+        Path generationFile = Paths.get(generationFile(filenamePrefix));
+        Path newGenerationFile = Paths.get(generationFile(filenamePrefix) + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(newGenerationFile.toFile()))) {
+            dos.writeLong(thisGeneration);
+            dos.writeUTF(inputDescription);
+        }
+        Files.move(newGenerationFile, generationFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        deleteGenerationsFrom(filenamePrefix, thisGeneration-1);
+    }
+
+    private static void deleteGenerationsFrom(String filenamePrefix, long newest) throws IOException {
+        for (long old=newest ; old>0 && Files.exists(Paths.get(nodeFile(filenamePrefix, old))) ; old--) {
+            Files.deleteIfExists(Paths.get(nodeFile(filenamePrefix, old)));
+            Files.deleteIfExists(Paths.get(wayFile(filenamePrefix, old)));
+            Files.deleteIfExists(Paths.get(queueFile(filenamePrefix, old)));
+        }
+    }
+
+    void awaitWrite() {
+        try {
+            if (writeInProgress != null)
+                writeInProgress.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Wait for any checkpoint being written to finish, then stop the writer.
+     */
+    void finish() {
+        writer.shutdown();
+        awaitWrite();
+    }
+
+    public static boolean exists(String filenamePrefix) {
+        return Files.exists(Paths.get(generationFile(filenamePrefix)));
+    }
+
+    /**
+     * @return Whether there's a checkpoint made from the described input.
+     */
+    public static boolean existsFor(String filenamePrefix, String inputDescription) throws IOException {
+        Preconditions.checkNoneNull(filenamePrefix, inputDescription);
+        return exists(filenamePrefix) && readManifest(filenamePrefix).inputDescription.equals(inputDescription);
+    }
+
+    /**
+     * Identifies input files by name, size and modification time, which is
+     * enough to notice that a new extract has been dropped in their place.
+     */
+    public static String describeInputFiles(String... filenames) {
+        StringBuilder sb = new StringBuilder();
+        for (String filename : filenames) {
+            File f = new File(filename);
+            sb.append(f.getName()).append(',').append(f.length()).append(',').append(f.lastModified()).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The graph from the latest checkpoint, with the nodes contracted so far
+     * and their shortcuts.
+     *
+     * @throws IOException If the checkpoint was made from some other input.
+     */
+    public static MapData readMapData(String filenamePrefix, String inputDescription, StatusMonitor monitor) throws IOException {
+        Preconditions.checkNoneNull(filenamePrefix, inputDescription, monitor);
+        Manifest manifest = readManifest(filenamePrefix);
+        if (!manifest.inputDescription.equals(inputDescription)) {
+            throw new IOException("Checkpoint " + generationFile(filenamePrefix) + " was made from " + manifest.inputDescription
+                    + " not " + inputDescription + " - delete it to start again.");
+        }
+        return new BinaryFormat().read(nodeFile(filenamePrefix, manifest.generation), wayFile(filenamePrefix, manifest.generation), monitor);
+    }
+
+    /**
+     * Delete the checkpoint, once the contraction it was for has finished
+     * and been written out.
+     */
+    public static void delete(String filenamePrefix) throws IOException {
+        Preconditions.checkNoneNull(filenamePrefix);
+        if (!exists(filenamePrefix))
+            return;
+        long generation = readManifest(filenamePrefix).generation;
+        // Manifest first, so a run that dies part way through doesn't leave
+        // it naming files that have gone.
+        Files.delete(Paths.get(generationFile(filenamePrefix)));
+        Files.deleteIfExists(Paths.get(generationFile(filenamePrefix) + ".tmp"));
+        deleteGenerationsFrom(filenamePrefix, generation);
+    }
+
+    static Queue readQueue(String filenamePrefix, MapData allNodes) throws IOException {
+        long generation = readManifest(filenamePrefix).generation;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(queueFile(filenamePrefix, generation))))) {
+            long version = dis.readLong();
+            if (version != QUEUE_FILE_VERSION)
+                throw new IOException("Unsupported checkpoint queue version " + version);
+            int count = dis.readInt();
+            Queue queue = new Queue(count);
+            for (int i=0 ; i<count ; i++) {
+                long nodeId = dis.readLong();
+                Node n = allNodes.getNodeById(nodeId);
+                if (n == null)
+                    throw new IOException("Checkpoint queue refers to node " + nodeId + " which isn't in the checkpoint?");
+                queue.nodeIndices[i] = n.nodeIndex;
+                queue.priorities[i] = dis.readInt();
+            }
+            return queue;
+        }
+    }
+
+    private static Manifest readManifest(String filenamePrefix) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(generationFile(filenamePrefix)))) {
+            long generation = dis.readLong();
+            return new Manifest(generation, dis.readUTF());
+        }
+    }
+
+    private static String generationFile(String filenamePrefix) {
+        return filenamePrefix + "-checkpoint.dat";
+    }
+
+    private static String nodeFile(String filenamePrefix, long generation) {
+        return filenamePrefix + "-checkpoint-" + generation + "-nodes.dat";
+    }
+
+    private static String wayFile(String filenamePrefix, long generation) {
+        return filenamePrefix + "-checkpoint-" + generation + "-ways.dat";
+    }
+
+    private static String queueFile(String filenamePrefix, long generation) {
+        return filenamePrefix + "-checkpoint-" + generation + "-queue.dat";
+    }
+
+    private static final class Manifest {
+        final long generation;
+        final String inputDescription;
+
+        Manifest(long generation, String inputDescription) {
+            this.generation = generation;
+            this.inputDescription = inputDescription;
+        }
+    }
+
+    static final class Queue {
+        final int[] nodeIndices;
+        final int[] priorities;
+
+        Queue(int size) {
+            nodeIndices = new int[size];
+            priorities = new int[size];
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package uk.me.mjt.ch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import uk.me.mjt.ch.loader.BinaryFormat;
+import uk.me.mjt.ch.status.DiscardingStatusMonitor;
+
+/**
+ * Contracts an uncontracted region several times with different settings,
+ * and reports how long contraction took, how many shortcuts it added, and
+ * how the result performs for queries.
+ */
+public class ContractionTradeoffs {
+    private static final int QUERY_COUNT = 1000;
+
+    public static void main(String[] args) throws IOException {
+        String filenamePrefix;
+        if (args.length > 0) {
+            filenamePrefix = args[0];
+        } else {
+            filenamePrefix = "/home/mtandy/Documents/contraction hierarchies/binary-test/great-britain";
+        }
+
+        compareWitnessSearchLimits(filenamePrefix);
+        comparePriorityFunctions(filenamePrefix);
+    }
+
+    private static void compareWitnessSearchLimits(String filenamePrefix) throws IOException {
+        int[][] limits = {
+            {GraphContractor.UNLIMITED, GraphContractor.UNLIMITED},
+            {1000, GraphContractor.UNLIMITED},
+            {1000, 5},
+            {250, 5},
+            {100, 3},
+            {50, 2}};
+
+        List<String> report = new ArrayList<>();
+        for (int[] limit : limits) {
+            MapData allNodes = load(filenamePrefix);
+            int originalEdgeCount = allNodes.getEdgeCount();
+
+            long startTime = System.currentTimeMillis();
+            GraphContractor contractor = new GraphContractor(allNodes);
+            contractor.setWitnessSearchLimits(limit[0], limit[1]);
+            contractor.initialiseContractionOrder();
+            contractor.contractAllInParallel();
+            long contractionMillis = System.currentTimeMillis() - startTime;
+
+            report.add(String.format("maxSettled=%s maxHops=%s: contracted in %d ms, %d shortcuts, %s",
+                    describe(limit[0]), describe(limit[1]), contractionMillis,
+                    allNodes.getEdgeCount()-originalEdgeCount, measureQueries(allNodes)));
+        }
+
+        for (String line : report) {
+            System.out.println(line);
+        }
+    }
+
+    private static void comparePriorityFunctions(String filenamePrefix) throws IOException {
+        for (PriorityFunction priorityFunction : priorityFunctionsToCompare()) {
+            MapData allNodes = load(filenamePrefix);
+            int originalEdgeCount = allNodes.getEdgeCount();
+
+            long startTime = System.currentTimeMillis();
+            GraphContractor contractor = new GraphContractor(allNodes);
+            contractor.setPriorityFunction(priorityFunction);
+            contractor.initialiseContractionOrder();
+            contractor.contractAllInParallel();
+            long contractionMillis = System.currentTimeMillis() - startTime;
+
+            System.out.println(String.format("%s: contracted in %d ms, %d shortcuts, %s",
+                    priorityFunction, contractionMillis,
+                    allNodes.getEdgeCount()-originalEdgeCount, measureQueries(allNodes)));
+        }
+    }
+
+    static List<PriorityFunction> priorityFunctionsToCompare() {
+        List<PriorityFunction> result = new ArrayList<>();
+        result.add(PriorityFunction.EDGE_REDUCTION);
+        result.add(new LinearPriorityFunction(1, 0, 0, 0));
+        result.add(new LinearPriorityFunction(1, 1, 0, 0));
+        result.add(new LinearPriorityFunction(2, 1, 0, 1));
+        result.add(new LinearPriorityFunction(2, 1, 1, 1));
+        result.add(new LinearPriorityFunction(4, 2, 1, 3));
+        return result;
+    }
+
+    private static String describe(int limit) {
+        return (limit == GraphContractor.UNLIMITED ? "unlimited" : Integer.toString(limit));
+    }
+
+    private static MapData load(String filenamePrefix) throws IOException {
+        return new BinaryFormat().read(filenamePrefix+"-nodes.dat", filenamePrefix+"-ways.dat", new DiscardingStatusMonitor());
+    }
+
+    /**
+     * Same random nodes for every run, as the node IDs don't change.
+     */
+    static QueryStats measureQueries(MapData contracted) {
+        List<Node> nodes = new ArrayList<>(contracted.getAllNodes());
+        Collections.sort(nodes, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return Long.compare(a.nodeId, b.nodeId);
+            }
+        });
+        Random random = new Random(12345);
+        List<Node> queryNodes = new ArrayList<>(QUERY_COUNT);
+        for (int i=0 ; i<QUERY_COUNT ; i++) {
+            queryNodes.add(nodes.get(random.nextInt(nodes.size())));
+        }
+
+        long totalUpwardSize = 0;
+        for (Node n : queryNodes) {
+            totalUpwardSize += ContractedDijkstra.calculateUpwardSolution(ColocatedNodeSet.singleton(n)).getSize();
+        }
+
+        long queryNanos = 0;
+        for (int pass=0 ; pass<2 ; pass++) { // The first pass is just to warm up the JIT.
+            long startTime = System.nanoTime();
+            for (int i=1 ; i<queryNodes.size() ; i++) {
+                ContractedDijkstra.contractedGraphDijkstra(contracted, queryNodes.get(i-1), queryNodes.get(i));
+            }
+            queryNanos = System.nanoTime() - startTime;
+        }
+
+        return new QueryStats((double)totalUpwardSize/queryNodes.size(), queryNanos/1000.0/(queryNodes.size()-1));
+    }
+
+    static final class QueryStats {
+        final double averageUpwardSolutionSize;
+        final double averageQueryMicros;
+
+        QueryStats(double averageUpwardSolutionSize, double averageQueryMicros) {
+            this.averageUpwardSolutionSize = averageUpwardSolutionSize;
+            this.averageQueryMicros = averageQueryMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("average upward PartialSolution %.1f nodes, average query %.1f us",
+                    averageUpwardSolutionSize, averageQueryMicros);
+        }
+    }
+
+}
@@ -0,0 +1,407 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A customizable contraction hierarchy. The contraction order - normally a
+ * NestedDissectionOrder - and the shortcuts are worked out once, from the
+ * road network alone. With no witness searches, contracting a node joins
+ * every pair of its higher-ranked neighbours, so the shortcut topology suits
+ * any set of edge weights.
+ *
+ * customize() then fills in the weights for a metric - car, HGV, time of
+ * day - given as an int[] indexed by DirectedEdge.edgeIndex. That's a pass
+ * over the lower triangles of each arc: for an arc between x and y, every
+ * node v below both that's a neighbour of both gives a path x-v-y. Arcs only
+ * depend on arcs further down, so the nodes are grouped into levels and each
+ * level is customized in parallel.
+ *
+ * Arrays are indexed by rank - position in the contraction order - rather
+ * than Node.nodeIndex. Each arc joins a lower-ranked node to a higher-ranked
+ * one, and has an upward and a downward weight.
+ */
+public class CustomizableHierarchy {
+    public static final int UNREACHABLE = ContractedDijkstra.UNREACHABLE;
+
+    // Half of MAX_VALUE, so adding two of them can't overflow.
+    private static final int INFINITY = Integer.MAX_VALUE/2;
+    private static final int NODES_PER_TASK = 256;
+    private static final int NO_ARC = -1;
+
+    private final int nodeCount;
+    private final int[] rankByNodeIndex;
+    private final int[] eliminationParent;
+
+    // Upward arcs of each rank, sorted by the higher rank. Arc IDs are
+    // positions in these arrays.
+    private final int[] upOffsets;
+    private final int[] upHeads;
+
+    // The same arcs, from the higher end, sorted by the lower rank.
+    private final int[] downOffsets;
+    private final int[] downTails;
+    private final int[] downArcs;
+
+    private final int[] levelOffsets;
+    private final int[] ranksByLevel;
+
+    // For each original edge, by DirectedEdge.edgeIndex: the arc it belongs
+    // to, or NO_ARC, and whether it runs from the lower rank to the higher.
+    private final int[] arcByEdgeIndex;
+    private final boolean[] edgeIsUpward;
+
+    public CustomizableHierarchy(MapData allNodes) {
+        this(allNodes, NestedDissectionOrder.rankByNodeIndex(allNodes));
+    }
+
+    /**
+     * @param rankByNodeIndex Contraction order, a permutation of 0..N-1.
+     */
+    public CustomizableHierarchy(MapData allNodes, int[] rankByNodeIndex) {
+        Preconditions.checkNoneNull(allNodes, rankByNodeIndex);
+        Preconditions.require(rankByNodeIndex.length == allNodes.getNodeCount());
+        allNodes.indexNewEdges();
+        this.nodeCount = allNodes.getNodeCount();
+        this.rankByNodeIndex = rankByNodeIndex.clone();
+
+        int[][] upward = eliminate(allNodes);
+        eliminationParent = new int[nodeCount];
+        upOffsets = new int[nodeCount+1];
+        int arcCount = 0;
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            upOffsets[rank] = arcCount;
+            eliminationParent[rank] = (upward[rank].length > 0 ? upward[rank][0] : -1);
+            arcCount += upward[rank].length;
+        }
+        upOffsets[nodeCount] = arcCount;
+
+        upHeads = new int[arcCount];
+        int[] downCounts = new int[nodeCount+1];
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            System.arraycopy(upward[rank], 0, upHeads, upOffsets[rank], upward[rank].length);
+            for (int head : upward[rank]) {
+                downCounts[head+1]++;
+            }
+            upward[rank] = null;
+        }
+
+        downOffsets = new int[nodeCount+1];
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            downOffsets[rank+1] = downOffsets[rank] + downCounts[rank+1];
+        }
+        downTails = new int[arcCount];
+        downArcs = new int[arcCount];
+        int[] downFill = Arrays.copyOf(downOffsets, nodeCount);
+        for (int tail=0 ; tail<nodeCount ; tail++) { // In rank order, so each down list comes out sorted.
+            for (int arc=upOffsets[tail] ; arc<upOffsets[tail+1] ; arc++) {
+                int k = downFill[upHeads[arc]]++;
+                downTails[k] = tail;
+                downArcs[k] = arc;
+            }
+        }
+
+        int[] levelByRank = new int[nodeCount];
+        int levelCount = 0;
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            int level = 0;
+            for (int k=downOffsets[rank] ; k<downOffsets[rank+1] ; k++) {
+                level = Math.max(level, levelByRank[downTails[k]]+1);
+            }
+            levelByRank[rank] = level;
+            levelCount = Math.max(levelCount, level+1);
+        }
+        levelOffsets = new int[levelCount+1];
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            levelOffsets[levelByRank[rank]+1]++;
+        }
+        for (int level=0 ; level<levelCount ; level++) {
+            levelOffsets[level+1] += levelOffsets[level];
+        }
+        ranksByLevel = new int[nodeCount];
+        int[] levelFill = Arrays.copyOf(levelOffsets, levelCount);
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            ranksByLevel[levelFill[levelByRank[rank]]++] = rank;
+        }
+
+        arcByEdgeIndex = new int[allNodes.getEdgeCount()];
+        edgeIsUpward = new boolean[allNodes.getEdgeCount()];
+        Arrays.fill(arcByEdgeIndex, NO_ARC);
+        for (Node n : allNodes.getAllNodes()) {
+            for (DirectedEdge de : n.edgesFrom) {
+                if (de.isShortcut() || de.from == de.to)
+                    continue;
+                int fromRank = rankOf(de.from);
+                int toRank = rankOf(de.to);
+                edgeIsUpward[de.edgeIndex] = (fromRank < toRank);
+                arcByEdgeIndex[de.edgeIndex] = findArc(Math.min(fromRank, toRank), Math.max(fromRank, toRank));
+            }
+        }
+    }
+
+    /**
+     * Contract every node, in rank order, joining all its higher-ranked
+     * neighbours. Rather than adding every pair, each node's neighbours are
+     * passed to the lowest of them, which will join them in turn - the
+     * result is the same, but far quicker.
+     *
+     * @return The higher-ranked neighbours of each rank, sorted.
+     */
+    private int[][] eliminate(MapData allNodes) {
+        int[][] neighbors = new int[nodeCount][];
+        int[] neighborCounts = new int[nodeCount];
+        for (Node n : allNodes.getAllNodes()) {
+            int rank = rankOf(n);
+            neighbors[rank] = new int[4];
+            for (DirectedEdge de : n.edgesFrom) {
+                if (!de.isShortcut() && rankOf(de.to) > rank)
+                    neighbors[rank] = append(neighbors[rank], neighborCounts[rank]++, rankOf(de.to));
+            }
+            for (DirectedEdge de : n.edgesTo) {
+                if (!de.isShortcut() && rankOf(de.from) > rank)
+                    neighbors[rank] = append(neighbors[rank], neighborCounts[rank]++, rankOf(de.from));
+            }
+        }
+
+        for (int rank=0 ; rank<nodeCount ; rank++) {
+            int[] sorted = sortedUnique(neighbors[rank], neighborCounts[rank]);
+            neighbors[rank] = sorted;
+            if (sorted.length > 1) {
+                int parent = sorted[0];
+                for (int i=1 ; i<sorted.length ; i++) {
+                    neighbors[parent] = append(neighbors[parent], neighborCounts[parent]++, sorted[i]);
+                }
+            }
+        }
+        return neighbors;
+    }
+
+    private static int[] append(int[] list, int size, int value) {
+        if (size == list.length)
+            list = Arrays.copyOf(list, 2*list.length);
+        list[size] = value;
+        return list;
+    }
+
+    private static int[] sortedUnique(int[] list, int size) {
+        Arrays.sort(list, 0, size);
+        int unique = 0;
+        for (int i=0 ; i<size ; i++) {
+            if (unique == 0 || list[i] != list[unique-1])
+                list[unique++] = list[i];
+        }
+        return Arrays.copyOf(list, unique);
+    }
+
+    private int findArc(int tail, int head) {
+        int arc = Arrays.binarySearch(upHeads, upOffsets[tail], upOffsets[tail+1], head);
+        if (arc < 0)
+            throw new IllegalStateException("No arc from rank " + tail + " to " + head + "?");
+        return arc;
+    }
+
+    private int rankOf(Node n) {
+        return rankByNodeIndex[n.nodeIndex];
+    }
+
+    public int getArcCount() {
+        return upHeads.length;
+    }
+
+    public int getLevelCount() {
+        return levelOffsets.length-1;
+    }
+
+    /**
+     * Edge weights taken from DirectedEdge.driveTimeMs, for customize().
+     */
+    public static int[] driveTimes(MapData allNodes) {
+        Preconditions.checkNoneNull(allNodes);
+        allNodes.indexNewEdges();
+        int[] result = new int[allNodes.getEdgeCount()];
+        for (int i=0 ; i<result.length ; i++) {
+            result[i] = allNodes.getEdgeByIndex(i).driveTimeMs;
+        }
+        return result;
+    }
+
+    /**
+     * @param edgeWeights Indexed by DirectedEdge.edgeIndex.
+     */
+    public Metric customize(int[] edgeWeights) {
+        Metric metric = new Metric(edgeWeights);
+        for (int level=0 ; level<getLevelCount() ; level++) {
+            metric.customizeRanks(levelOffsets[level], levelOffsets[level+1]);
+        }
+        return metric;
+    }
+
+    /**
+     * As customize(int[]), but with each level spread across the supplied
+     * executor.
+     */
+    public Metric customize(int[] edgeWeights, ExecutorService es) {
+        Preconditions.checkNoneNull(es);
+        final Metric metric = new Metric(edgeWeights);
+        for (int level=0 ; level<getLevelCount() ; level++) {
+            ArrayList<Callable<Void>> tasks = new ArrayList<>();
+            for (int i=levelOffsets[level] ; i<levelOffsets[level+1] ; i+=NODES_PER_TASK) {
+                final int from = i;
+                final int to = Math.min(i+NODES_PER_TASK, levelOffsets[level+1]);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        metric.customizeRanks(from, to);
+                        return null;
+                    }
+                });
+            }
+            if (tasks.size() == 1) {
+                metric.customizeRanks(levelOffsets[level], levelOffsets[level+1]);
+            } else {
+                invokeAllQuietly(es, tasks);
+            }
+        }
+        return metric;
+    }
+
+    private static <E> List<E> invokeAllQuietly(ExecutorService es, List<Callable<E>> tasks) {
+        try {
+            ArrayList<E> results = new ArrayList<>(tasks.size());
+            for (Future<E> f : es.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (ExecutionException|InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The hierarchy's arcs weighted for one set of edge weights. Queries are
+     * thread safe.
+     */
+    public class Metric {
+        private final int[] upWeights;
+        private final int[] downWeights;
+        private final ThreadLocal<int[][]> scratch = new ThreadLocal<int[][]>() {
+            @Override
+            protected int[][] initialValue() {
+                int[][] result = new int[2][nodeCount];
+                Arrays.fill(result[0], INFINITY);
+                Arrays.fill(result[1], INFINITY);
+                return result;
+            }
+        };
+
+        private Metric(int[] edgeWeights) {
+            Preconditions.checkNoneNull(edgeWeights);
+            Preconditions.require(edgeWeights.length == arcByEdgeIndex.length);
+            upWeights = new int[getArcCount()];
+            downWeights = new int[getArcCount()];
+            Arrays.fill(upWeights, INFINITY);
+            Arrays.fill(downWeights, INFINITY);
+
+            for (int edgeIndex=0 ; edgeIndex<edgeWeights.length ; edgeIndex++) {
+                int arc = arcByEdgeIndex[edgeIndex];
+                if (arc == NO_ARC)
+                    continue;
+                int weight = edgeWeights[edgeIndex];
+                Preconditions.require(weight >= 0, weight < INFINITY);
+                int[] weights = (edgeIsUpward[edgeIndex] ? upWeights : downWeights);
+                weights[arc] = Math.min(weights[arc], weight);
+            }
+        }
+
+        /**
+         * For each arc x-y from the given ranks, take the quickest of the
+         * lower triangles x-v-y. The down lists of x and y are both sorted
+         * by rank, so the common neighbours v are found by merging them.
+         */
+        private void customizeRanks(int fromLevelPosition, int toLevelPosition) {
+            for (int i=fromLevelPosition ; i<toLevelPosition ; i++) {
+                int x = ranksByLevel[i];
+                for (int arc=upOffsets[x] ; arc<upOffsets[x+1] ; arc++) {
+                    int y = upHeads[arc];
+                    int up = upWeights[arc];
+                    int down = downWeights[arc];
+
+                    int kx = downOffsets[x], endX = downOffsets[x+1];
+                    int ky = downOffsets[y], endY = downOffsets[y+1];
+                    while (kx < endX && ky < endY) {
+                        int vx = downTails[kx];
+                        int vy = downTails[ky];
+                        if (vx < vy) {
+                            kx++;
+                        } else if (vy < vx) {
+                            ky++;
+                        } else {
+                            int arcVX = downArcs[kx++];
+                            int arcVY = downArcs[ky++];
+                            up = Math.min(up, downWeights[arcVX] + upWeights[arcVY]);
+                            down = Math.min(down, downWeights[arcVY] + upWeights[arcVX]);
+                        }
+                    }
+
+                    upWeights[arc] = up;
+                    downWeights[arc] = down;
+                }
+            }
+        }
+
+        /**
+         * Upward searches from both ends. A node's upward neighbours are all
+         * its ancestors in the elimination tree, so each search just walks
+         * up the tree from its start, with no priority queue.
+         *
+         * @return Drive time in milliseconds, or UNREACHABLE.
+         */
+        public int driveTime(Node from, Node to) {
+            Preconditions.checkNoneNull(from, to);
+            int[][] distances = scratch.get();
+            int[] forward = distances[0];
+            int[] backward = distances[1];
+            int source = rankOf(from);
+            int target = rankOf(to);
+
+            forward[source] = 0;
+            relaxUpTree(source, forward, upWeights);
+            backward[target] = 0;
+            relaxUpTree(target, backward, downWeights);
+
+            int best = INFINITY;
+            for (int rank=source ; rank!=-1 ; rank=eliminationParent[rank]) {
+                best = Math.min(best, forward[rank] + backward[rank]);
+            }
+
+            resetUpTree(source, forward);
+            resetUpTree(target, backward);
+            return (best >= INFINITY ? UNREACHABLE : best);
+        }
+
+        private void relaxUpTree(int start, int[] distances, int[] weights) {
+            for (int rank=start ; rank!=-1 ; rank=eliminationParent[rank]) {
+                int distance = distances[rank];
+                if (distance >= INFINITY)
+                    continue;
+                for (int arc=upOffsets[rank] ; arc<upOffsets[rank+1] ; arc++) {
+                    int viaTime = distance + weights[arc];
+                    if (viaTime < distances[upHeads[arc]])
+                        distances[upHeads[arc]] = viaTime;
+                }
+            }
+        }
+
+        private void resetUpTree(int start, int[] distances) {
+            for (int rank=start ; rank!=-1 ; rank=eliminationParent[rank]) {
+                distances[rank] = INFINITY;
+            }
+        }
+    }
+
+}
@@ -1,17 +1,15 @@
 package uk.me.mjt.ch;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 public class Dijkstra {
     
     public enum Direction{FORWARDS,BACKWARDS};
+    public enum StallOnDemand{YES,NO};
     private enum EndAfterFinding{ALL,ONE,EXHAUSTED};
     
     private static final int DEFAULT_SET_SIZE = 4096;
@@ -49,6 +47,120 @@ public class Dijkstra {
         return dijkstrasAlgorithm(ColocatedNodeSet.singleton(startNode), endNodes, maxSearchTime, direction, EndAfterFinding.ALL);
     }
     
+    public static void contractedSearch(ColocatedNodeSet startNodes, Direction direction, DijkstraSearchContext context) {
+        contractedSearch(startNodes, direction, StallOnDemand.NO, context);
+    }
+    
+    /**
+     * Exhaustive search of a contracted graph, only following edges towards
+     * nodes with a higher contraction order. Rather than building a
+     * DijkstraSolution for every node reached, the results are left in the
+     * supplied context, where they can be copied straight into a
+     * PartialSolution.
+     * 
+     * With stall-on-demand, a node that can be reached more quickly via an
+     * edge from a higher-ranked node (which the upward search can't follow)
+     * can't be on a shortest path, so it's neither expanded nor recorded.
+     */
+    public static void contractedSearch(ColocatedNodeSet startNodes, Direction direction, StallOnDemand stallOnDemand, DijkstraSearchContext context) {
+        Preconditions.checkNoneNull(startNodes,direction,stallOnDemand,context);
+        Preconditions.require(!startNodes.isEmpty());
+        context.startSearch();
+        
+        for (Node startNode : startNodes) {
+            context.addStartNode(startNode);
+        }
+        
+        Node shortestTimeNode;
+        while ((shortestTimeNode = context.pollClosestUnsettled()) != null) {
+            if (stallOnDemand==StallOnDemand.YES && canBeStalled(shortestTimeNode, direction, context)) {
+                context.markStalled(shortestTimeNode);
+            } else {
+                context.markSettled(shortestTimeNode);
+                relaxEdges(shortestTimeNode, direction, context);
+            }
+        }
+    }
+    
+    /**
+     * Point-to-point search of a contracted graph, alternating between a step
+     * of the upward search from the start nodes and a step of the upward
+     * search (along reversed edges) from the end nodes. Each direction stops
+     * once the closest node in its queue is no closer than the best meeting
+     * point found so far, so unlike contractedSearch neither search space is
+     * exhausted.
+     * @return The node where the shortest up-then-down path meets, or null if
+     * there's no path. The path can be extracted from the two contexts.
+     */
+    public static Node bidirectionalContractedSearch(ColocatedNodeSet startNodes, ColocatedNodeSet endNodes, StallOnDemand stallOnDemand, 
+            DijkstraSearchContext forwards, DijkstraSearchContext backwards) {
+        Preconditions.checkNoneNull(startNodes,endNodes,stallOnDemand,forwards,backwards);
+        Preconditions.require(!startNodes.isEmpty(), !endNodes.isEmpty(), forwards!=backwards);
+        forwards.startSearch();
+        backwards.startSearch();
+        
+        for (Node startNode : startNodes) {
+            forwards.addStartNode(startNode);
+        }
+        for (Node endNode : endNodes) {
+            backwards.addStartNode(endNode);
+        }
+        
+        int bestDriveTime = Integer.MAX_VALUE;
+        Node meetingNode = null;
+        boolean forwardsDone = false;
+        boolean backwardsDone = false;
+        boolean stepForwards = true;
+        
+        while (!forwardsDone || !backwardsDone) {
+            Direction direction = ((stepForwards && !forwardsDone) || backwardsDone ? Direction.FORWARDS : Direction.BACKWARDS);
+            DijkstraSearchContext thisSide = (direction==Direction.FORWARDS ? forwards : backwards);
+            DijkstraSearchContext otherSide = (direction==Direction.FORWARDS ? backwards : forwards);
+            stepForwards = !stepForwards;
+            
+            Node shortestTimeNode = thisSide.pollClosestUnsettled();
+            if (shortestTimeNode == null || thisSide.getMinDriveTime(shortestTimeNode) >= bestDriveTime) {
+                if (direction==Direction.FORWARDS)
+                    forwardsDone = true;
+                else
+                    backwardsDone = true;
+                continue;
+            }
+            
+            if (stallOnDemand==StallOnDemand.YES && canBeStalled(shortestTimeNode, direction, thisSide)) {
+                thisSide.markStalled(shortestTimeNode);
+                continue;
+            }
+            
+            thisSide.markSettled(shortestTimeNode);
+            int otherSideTime = otherSide.getMinDriveTime(shortestTimeNode);
+            if (otherSideTime != Integer.MAX_VALUE) {
+                int totalTime = thisSide.getMinDriveTime(shortestTimeNode) + otherSideTime;
+                if (totalTime < bestDriveTime) {
+                    bestDriveTime = totalTime;
+                    meetingNode = shortestTimeNode;
+                }
+            }
+            relaxEdges(shortestTimeNode, direction, thisSide);
+        }
+        
+        return meetingNode;
+    }
+    
+    private static boolean canBeStalled(Node node, Direction direction, DijkstraSearchContext context) {
+        int driveTime = context.getMinDriveTime(node);
+        for (DirectedEdge edge : (direction == Direction.FORWARDS ? node.edgesTo : node.edgesFrom)) {
+            Node n = (direction == Direction.FORWARDS ? edge.from : edge.to);
+            if (n.contractionOrder <= node.contractionOrder)
+                break;
+            
+            int neighborTime = context.getMinDriveTime(n);
+            if (neighborTime != Integer.MAX_VALUE && neighborTime + edge.driveTimeMs < driveTime)
+                return true;
+        }
+        return false;
+    }
+    
     /**
      * dijkstrasAlgorithm performs a best-first graph search starting at startNode
      * and continuing until all endNodes have been reached, or until the best
@@ -58,125 +170,65 @@ public class Dijkstra {
     private static List<DijkstraSolution> dijkstrasAlgorithm(ColocatedNodeSet startNodes, Set<Node> endNodes, int maxSearchTime, Direction direction, EndAfterFinding endCondition) {
         Preconditions.checkNoneNull(startNodes,direction);
         Preconditions.require(!startNodes.isEmpty());
-        HashMap<Node,NodeInfo> nodeInfo = new HashMap<>(DEFAULT_SET_SIZE);
-        ArrayList<DijkstraSolution> solutions = new ArrayList<>(DEFAULT_SET_SIZE);
-
-        PriorityQueue<DistanceOrder> unvisitedNodes = new PriorityQueue<>();
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        context.startSearch();
+        ArrayList<DijkstraSolution> solutions = new ArrayList<>(endNodes == null ? DEFAULT_SET_SIZE : endNodes.size());
         
         for (Node startNode : startNodes) {
-            DistanceOrder startDo = new DistanceOrder(0,startNode);
-            unvisitedNodes.add(startDo);
-
-            NodeInfo startNodeInfo = new NodeInfo();
-            startNodeInfo.minDriveTime = 0;
-            startNodeInfo.distanceOrder = startDo;
-            nodeInfo.put(startNode, startNodeInfo);
+            context.addStartNode(startNode);
         }
         
-        while (!unvisitedNodes.isEmpty()) {
-            // Find the node with the shortest drive time so far:
-            DistanceOrder minHeapEntry = unvisitedNodes.poll();
-            Node shortestTimeNode = minHeapEntry.node;
-            NodeInfo thisNodeInfo = nodeInfo.get(shortestTimeNode);
-            
-            if (thisNodeInfo.minDriveTime > maxSearchTime)
+        Node shortestTimeNode;
+        while ((shortestTimeNode = context.pollClosestUnsettled()) != null) {
+            // shortestTimeNode is the node with the shortest drive time so far.
+            if (context.getMinDriveTime(shortestTimeNode) > maxSearchTime)
                 break;
 
             if (endNodes == null) {
-                solutions.add(extractShortest(shortestTimeNode, nodeInfo));
+                solutions.add(extractShortest(shortestTimeNode, context));
             } else if (endNodes.contains(shortestTimeNode)) {
-                solutions.add(extractShortest(shortestTimeNode, nodeInfo));
+                solutions.add(extractShortest(shortestTimeNode, context));
                 if (solutions.size() == endNodes.size() || endCondition==EndAfterFinding.ONE)
                     return solutions;
             }
             
-            thisNodeInfo.visited = true;
-            thisNodeInfo.distanceOrder = null;
-
-            for (DirectedEdge edge : (direction == Direction.FORWARDS ? shortestTimeNode.edgesFrom : shortestTimeNode.edgesTo)) {
-                Node n = (direction == Direction.FORWARDS ? edge.to : edge.from);
-                if (n.contractionOrder < shortestTimeNode.contractionOrder)
-                    break;
-                
-                NodeInfo neighborNodeInfo = nodeInfo.get(n);
-                if (neighborNodeInfo == null) {
-                    neighborNodeInfo = new NodeInfo();
-                    nodeInfo.put(n, neighborNodeInfo);
-                }
-                
-                if (neighborNodeInfo.visited)
-                    continue;
-                
-                int newTime = thisNodeInfo.minDriveTime + edge.driveTimeMs;
-                int previousTime = neighborNodeInfo.minDriveTime;
-                
-                if (newTime < previousTime) {
-                    neighborNodeInfo.minDriveTime = newTime;
-                    neighborNodeInfo.minTimeFrom = shortestTimeNode;
-                    neighborNodeInfo.minTimeVia = edge;
-                    
-                    if (neighborNodeInfo.distanceOrder != null) {
-                        unvisitedNodes.remove(neighborNodeInfo.distanceOrder);
-                    }
-                    DistanceOrder newDistOrder = new DistanceOrder(newTime, n);
-                    neighborNodeInfo.distanceOrder = newDistOrder;
-                    unvisitedNodes.add(newDistOrder);
-                }
-            }
+            context.markSettled(shortestTimeNode);
+            relaxEdges(shortestTimeNode, direction, context);
         }
         
         return solutions;
     }
-
-    private static final class DistanceOrder implements Comparable<DistanceOrder> {
-        private final int minDriveTime;
-        public final Node node;
-
-        public DistanceOrder(int minDriveTime, Node node) {
-            this.minDriveTime = minDriveTime;
-            this.node = node;
-        }
-        
-        @Override
-        public int compareTo(DistanceOrder that) {
-            if (this.minDriveTime < that.minDriveTime) {
-                return -1;
-            } else if (this.minDriveTime > that.minDriveTime) {
-                return 1;
-            } else {
-                return Long.compare(this.node.nodeId,that.node.nodeId);
-            }
-        }
-    }
-        
     
-    private static final class NodeInfo {
-        boolean visited = false;
-        int minDriveTime = Integer.MAX_VALUE;
-        Node minTimeFrom = null;
-        DirectedEdge minTimeVia = null;
-        DistanceOrder distanceOrder = null;
-        DijkstraSolution solution = null;
+    private static void relaxEdges(Node shortestTimeNode, Direction direction, DijkstraSearchContext context) {
+        int thisDriveTime = context.getMinDriveTime(shortestTimeNode);
+        for (DirectedEdge edge : (direction == Direction.FORWARDS ? shortestTimeNode.edgesFrom : shortestTimeNode.edgesTo)) {
+            Node n = (direction == Direction.FORWARDS ? edge.to : edge.from);
+            if (n.contractionOrder < shortestTimeNode.contractionOrder)
+                break;
+            
+            context.relax(shortestTimeNode, edge, n, thisDriveTime + edge.driveTimeMs);
+        }
     }
     
-    private static DijkstraSolution extractShortest(final Node endNode, HashMap<Node,NodeInfo> nodeInfo) {
-        NodeInfo endNodeInfo = nodeInfo.get(endNode);
-        int totalDriveTime = endNodeInfo.minDriveTime;
+    static DijkstraSolution extractShortest(final Node endNode, DijkstraSearchContext context) {
+        int totalDriveTime = context.getMinDriveTime(endNode);
         
         List<Node> nodes = new LinkedList();
         List<DirectedEdge> edges = new LinkedList();
         
         Node thisNode = endNode;
         while (thisNode != null) {
-            NodeInfo thisNodeInfo = nodeInfo.get(thisNode);
-            if (thisNodeInfo.solution == null) {
+            DijkstraSolution existingSolution = context.getSolution(thisNode);
+            if (existingSolution == null) {
                 nodes.add(0, thisNode);
-                if (thisNodeInfo.minTimeVia != null)
-                    edges.add(0,thisNodeInfo.minTimeVia);
-                thisNode = thisNodeInfo.minTimeFrom;
+                DirectedEdge via = context.getMinTimeVia(thisNode);
+                if (via != null)
+                    edges.add(0,via);
+                thisNode = context.getPredecessor(thisNode);
             } else {
-                endNodeInfo.solution = new DijkstraSolution(totalDriveTime, nodes, edges, thisNodeInfo.solution);
-                return endNodeInfo.solution;
+                DijkstraSolution solution = new DijkstraSolution(totalDriveTime, nodes, edges, existingSolution);
+                context.setSolution(endNode, solution);
+                return solution;
             }
         }
         
@@ -184,7 +236,8 @@ public class Dijkstra {
             System.out.println("Created empty solution?!?!");
         }
         
-        endNodeInfo.solution = new DijkstraSolution(totalDriveTime, nodes, edges);
-        return endNodeInfo.solution;
+        DijkstraSolution solution = new DijkstraSolution(totalDriveTime, nodes, edges);
+        context.setSolution(endNode, solution);
+        return solution;
     }
 }
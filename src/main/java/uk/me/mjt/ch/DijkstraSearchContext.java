@@ -0,0 +1,314 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+
+/**
+ * Reusable state for a single Dijkstra search. Everything is held in arrays
+ * indexed by Node.nodeIndex, so once the arrays have grown to fit the graph a
+ * search doesn't allocate anything. Rather than clearing the arrays between
+ * searches, each entry is stamped with the generation of the search that
+ * last touched it; anything with an older stamp is treated as unvisited.
+ *
+ * Searches with no Node objects to hand, such as FrozenDijkstra, can use the
+ * methods that take a node index instead. Nodes reached that way have no
+ * Node or DirectedEdge recorded, so only their indices are available.
+ *
+ * Not thread safe - use forCurrentThread() to get one per thread.
+ */
+public class DijkstraSearchContext {
+    private static final int DEFAULT_CAPACITY = 4096;
+    static final int NO_PREDECESSOR = -1;
+    static final int NONE = -1;
+
+    private static final ThreadLocal<DijkstraSearchContext> PER_THREAD = new ThreadLocal<DijkstraSearchContext>() {
+        @Override
+        protected DijkstraSearchContext initialValue() {
+            return new DijkstraSearchContext();
+        }
+    };
+    private static final ThreadLocal<DijkstraSearchContext> PER_THREAD_BACKWARDS = new ThreadLocal<DijkstraSearchContext>() {
+        @Override
+        protected DijkstraSearchContext initialValue() {
+            return new DijkstraSearchContext();
+        }
+    };
+
+    private int generation = 0;
+    private int[] touchedGeneration;
+    private int[] settledGeneration;
+    private int[] minDriveTime;
+    private int[] predecessor;
+    private DirectedEdge[] minTimeVia;
+    private Node[] nodes;
+    private DijkstraSolution[] solutions;
+
+    private int[] touched;
+    private int touchedCount = 0;
+    private int[] settled;
+    private int settledCount = 0;
+    private long[] sortScratch = new long[0];
+
+    private final MinHeap unvisitedNodes;
+
+    public DijkstraSearchContext() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DijkstraSearchContext(int capacity) {
+        this(capacity, new IndexedFourAryHeap(capacity));
+    }
+
+    public DijkstraSearchContext(int capacity, MinHeap unvisitedNodes) {
+        Preconditions.checkNoneNull(unvisitedNodes);
+        allocate(Math.max(1, capacity));
+        this.unvisitedNodes = unvisitedNodes;
+    }
+
+    public static DijkstraSearchContext forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    /**
+     * Searches that need a forwards and a backwards search in progress at the
+     * same time can get a separate context for each direction.
+     */
+    public static DijkstraSearchContext forCurrentThread(Dijkstra.Direction direction) {
+        return (direction==Dijkstra.Direction.FORWARDS ? PER_THREAD.get() : PER_THREAD_BACKWARDS.get());
+    }
+
+    private void allocate(int capacity) {
+        touchedGeneration = new int[capacity];
+        settledGeneration = new int[capacity];
+        minDriveTime = new int[capacity];
+        predecessor = new int[capacity];
+        minTimeVia = new DirectedEdge[capacity];
+        nodes = new Node[capacity];
+        solutions = new DijkstraSolution[capacity];
+        touched = new int[capacity];
+        settled = new int[capacity];
+    }
+
+    private void ensureCapacity(int nodeIndex) {
+        if (nodeIndex < nodes.length)
+            return;
+        int newCapacity = Math.max(nodeIndex+1, 2*nodes.length);
+        touchedGeneration = Arrays.copyOf(touchedGeneration, newCapacity);
+        settledGeneration = Arrays.copyOf(settledGeneration, newCapacity);
+        minDriveTime = Arrays.copyOf(minDriveTime, newCapacity);
+        predecessor = Arrays.copyOf(predecessor, newCapacity);
+        minTimeVia = Arrays.copyOf(minTimeVia, newCapacity);
+        nodes = Arrays.copyOf(nodes, newCapacity);
+        solutions = Arrays.copyOf(solutions, newCapacity);
+        touched = Arrays.copyOf(touched, newCapacity);
+        settled = Arrays.copyOf(settled, newCapacity);
+    }
+
+    /**
+     * Forget the previous search. Only the entries the previous search touched
+     * are cleared (so we don't hold on to stale references), everything else
+     * is invalidated by bumping the generation.
+     */
+    public void startSearch() {
+        for (int i=0 ; i<touchedCount ; i++) {
+            int idx = touched[i];
+            minTimeVia[idx] = null;
+            nodes[idx] = null;
+            solutions[idx] = null;
+        }
+        touchedCount = 0;
+        settledCount = 0;
+        unvisitedNodes.clear();
+
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(touchedGeneration, 0);
+            Arrays.fill(settledGeneration, 0);
+            generation = 0;
+        }
+        generation++;
+    }
+
+    private int touch(Node n) {
+        int idx = n.nodeIndex;
+        if (idx < 0)
+            throw new IllegalArgumentException("Node " + n + " hasn't been indexed - was it added to a MapData?");
+        touch(idx);
+        nodes[idx] = n;
+        return idx;
+    }
+
+    private void touch(int idx) {
+        ensureCapacity(idx);
+        if (touchedGeneration[idx] != generation) {
+            touchedGeneration[idx] = generation;
+            minDriveTime[idx] = Integer.MAX_VALUE;
+            predecessor[idx] = NO_PREDECESSOR;
+            minTimeVia[idx] = null;
+            solutions[idx] = null;
+            nodes[idx] = null;
+            touched[touchedCount++] = idx;
+        }
+    }
+
+    public void addStartNode(Node n) {
+        addStartNode(touch(n));
+    }
+
+    void addStartNode(int idx) {
+        touch(idx);
+        minDriveTime[idx] = 0;
+        unvisitedNodes.insertOrDecreaseKey(idx, 0);
+    }
+
+    /**
+     * Record that we can reach 'to' via 'edge' from the settled node 'from'
+     * with the given drive time, if that's an improvement.
+     * @return true if the drive time to 'to' was improved.
+     */
+    public boolean relax(Node from, DirectedEdge edge, Node to, int newTime) {
+        int toIdx = touch(to);
+        if (!relax(from.nodeIndex, toIdx, newTime))
+            return false;
+        minTimeVia[toIdx] = edge;
+        return true;
+    }
+
+    boolean relax(int fromIdx, int toIdx, int newTime) {
+        touch(toIdx);
+        if (settledGeneration[toIdx] == generation || newTime >= minDriveTime[toIdx])
+            return false;
+        minDriveTime[toIdx] = newTime;
+        predecessor[toIdx] = fromIdx;
+        unvisitedNodes.insertOrDecreaseKey(toIdx, newTime);
+        return true;
+    }
+
+    /**
+     * @return The unsettled node with the lowest drive time, or null if there
+     * are none left. Stale entries left behind by a lazy-deletion queue are
+     * skipped.
+     */
+    public Node pollClosestUnsettled() {
+        int idx = pollClosestUnsettledIndex();
+        return (idx == NONE ? null : nodes[idx]);
+    }
+
+    /**
+     * @return As pollClosestUnsettled, by node index, or NONE.
+     */
+    int pollClosestUnsettledIndex() {
+        while (!unvisitedNodes.isEmpty()) {
+            int idx = unvisitedNodes.pollMinItem();
+            if (settledGeneration[idx] != generation)
+                return idx;
+        }
+        return NONE;
+    }
+
+    public void markSettled(Node n) {
+        markSettled(n.nodeIndex);
+    }
+
+    void markSettled(int idx) {
+        settledGeneration[idx] = generation;
+        settled[settledCount++] = idx;
+    }
+
+    /**
+     * Like markSettled, but the node isn't included in the settled nodes,
+     * because stall-on-demand has shown it isn't on any shortest path.
+     */
+    public void markStalled(Node n) {
+        markStalled(n.nodeIndex);
+    }
+
+    void markStalled(int idx) {
+        settledGeneration[idx] = generation;
+    }
+
+    public boolean isSettled(Node n) {
+        return isSettled(n.nodeIndex);
+    }
+
+    boolean isSettled(int idx) {
+        return idx >= 0 && idx < nodes.length && settledGeneration[idx] == generation;
+    }
+
+    public int getMinDriveTime(Node n) {
+        return getMinDriveTime(n.nodeIndex);
+    }
+
+    int getMinDriveTime(int idx) {
+        if (idx < 0 || idx >= nodes.length || touchedGeneration[idx] != generation)
+            return Integer.MAX_VALUE;
+        return minDriveTime[idx];
+    }
+
+    /**
+     * @return The node we reached n from, or null for a start node.
+     */
+    public Node getPredecessor(Node n) {
+        int predIdx = predecessor[n.nodeIndex];
+        return (predIdx == NO_PREDECESSOR ? null : nodes[predIdx]);
+    }
+
+    /**
+     * @return The edge we reached n via, or null for a start node.
+     */
+    int getPredecessorIndex(int idx) {
+        return predecessor[idx];
+    }
+
+    public DirectedEdge getMinTimeVia(Node n) {
+        return minTimeVia[n.nodeIndex];
+    }
+
+    DijkstraSolution getSolution(Node n) {
+        return solutions[n.nodeIndex];
+    }
+
+    void setSolution(Node n, DijkstraSolution solution) {
+        solutions[n.nodeIndex] = solution;
+    }
+
+    public int getSettledCount() {
+        return settledCount;
+    }
+
+    int getSettledNodeIndex(int i) {
+        return settled[i];
+    }
+
+    public Node getSettledNode(int i) {
+        return nodes[settled[i]];
+    }
+
+    public int getSettledDriveTime(int i) {
+        return minDriveTime[settled[i]];
+    }
+
+    public DirectedEdge getSettledVia(int i) {
+        return minTimeVia[settled[i]];
+    }
+
+    /**
+     * Reorder the settled nodes by contraction order, as PartialSolution
+     * requires, without allocating.
+     */
+    public void sortSettledByContractionOrder() {
+        if (sortScratch.length < settledCount) {
+            sortScratch = new long[Math.max(settledCount, 2*sortScratch.length)];
+        }
+        for (int i=0 ; i<settledCount ; i++) {
+            int idx = settled[i];
+            sortScratch[i] = (((long)nodes[idx].contractionOrder) << 32) | idx;
+        }
+        Arrays.sort(sortScratch, 0, settledCount);
+        for (int i=0 ; i<settledCount ; i++) {
+            if (i>0 && (sortScratch[i]>>>32) == (sortScratch[i-1]>>>32)) {
+                throw new RuntimeException("Two solutions with the same contraction order?!");
+            }
+            settled[i] = (int)sortScratch[i];
+        }
+    }
+
+}
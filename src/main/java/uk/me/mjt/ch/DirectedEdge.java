@@ -8,6 +8,7 @@ import java.util.Objects;
 public class DirectedEdge implements Comparable<DirectedEdge>{
     private static final long PLACEHOLDER_ID_DO_NOT_SERIALIZE = Long.MIN_VALUE;
     private static final long PLACEHOLDER_ID_NO_SOURCE_DATA_EQUIVALENT = Long.MIN_VALUE+1;
+    public static final int UNINDEXED = -1;
     
     public final long edgeId;
     public final long sourceDataEdgeId;
@@ -15,6 +16,10 @@ public class DirectedEdge implements Comparable<DirectedEdge>{
     public final Node to;
     public final int driveTimeMs;
     public AccessOnly accessOnly;
+    
+    // Dense 0..M-1 index, assigned by MapData, so PartialSolution can refer
+    // to edges with an int rather than searching for an edge ID.
+    public int edgeIndex = UNINDEXED;
 
     // Parameters for graph contraction:
     public final DirectedEdge first;
@@ -0,0 +1,187 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Many-to-many drive times on a contracted graph, using the bucket approach.
+ *
+ * Rather than one upward and one downward search per pair, we do one
+ * downward search per target and one upward search per source - the same
+ * searches that make up a PartialSolution. Each node settled by a downward
+ * search gets a (target, drive time) entry in its bucket; each upward search
+ * then scans the buckets of the nodes it settles. No paths are unpacked.
+ */
+public class DistanceMatrix {
+    public static final int UNREACHABLE = ContractedDijkstra.UNREACHABLE;
+    private static final int NODES_PER_TASK = 64;
+
+    private final MapData allNodes;
+    private final List<Node> sources;
+    private final List<Node> targets;
+
+    private int[] bucketOffsets;
+    private int[] bucketTargets;
+    private int[] bucketDriveTimes;
+
+    private DistanceMatrix(MapData allNodes, List<Node> sources, List<Node> targets) {
+        Preconditions.checkNoneNull(allNodes, sources, targets);
+        this.allNodes = allNodes;
+        this.sources = sources;
+        this.targets = targets;
+    }
+
+    /**
+     * @return Drive times in milliseconds, indexed [source][target], with
+     * UNREACHABLE where there's no path.
+     */
+    public static int[][] calculate(MapData allNodes, List<Node> sources, List<Node> targets) {
+        DistanceMatrix dm = new DistanceMatrix(allNodes, sources, targets);
+        dm.fillBuckets(dm.downwardSearches(0, targets.size()));
+
+        int[][] result = new int[sources.size()][];
+        dm.upwardSearches(0, sources.size(), result);
+        return result;
+    }
+
+    /**
+     * As calculate(MapData, List, List), but with the searches spread across
+     * the supplied executor.
+     */
+    public static int[][] calculate(MapData allNodes, List<Node> sources, List<Node> targets, ExecutorService es) {
+        Preconditions.checkNoneNull(es);
+        final DistanceMatrix dm = new DistanceMatrix(allNodes, sources, targets);
+
+        ArrayList<Callable<List<SettledNodes>>> downwardTasks = new ArrayList<>();
+        for (int i=0 ; i<targets.size() ; i+=NODES_PER_TASK) {
+            final int from = i;
+            final int to = Math.min(i+NODES_PER_TASK, targets.size());
+            downwardTasks.add(new Callable<List<SettledNodes>>() {
+                @Override
+                public List<SettledNodes> call() {
+                    return dm.downwardSearches(from, to);
+                }
+            });
+        }
+
+        ArrayList<SettledNodes> settledByTarget = new ArrayList<>(targets.size());
+        for (List<SettledNodes> chunk : invokeAllQuietly(es, downwardTasks)) {
+            settledByTarget.addAll(chunk);
+        }
+        dm.fillBuckets(settledByTarget);
+
+        final int[][] result = new int[sources.size()][];
+        ArrayList<Callable<Void>> upwardTasks = new ArrayList<>();
+        for (int i=0 ; i<sources.size() ; i+=NODES_PER_TASK) {
+            final int from = i;
+            final int to = Math.min(i+NODES_PER_TASK, sources.size());
+            upwardTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    dm.upwardSearches(from, to, result);
+                    return null;
+                }
+            });
+        }
+        invokeAllQuietly(es, upwardTasks);
+
+        return result;
+    }
+
+    private static <E> List<E> invokeAllQuietly(ExecutorService es, List<Callable<E>> tasks) {
+        try {
+            ArrayList<E> results = new ArrayList<>(tasks.size());
+            for (Future<E> f : es.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (ExecutionException|InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<SettledNodes> downwardSearches(int fromTarget, int toTarget) {
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        ArrayList<SettledNodes> result = new ArrayList<>(toTarget-fromTarget);
+
+        for (int t=fromTarget ; t<toTarget ; t++) {
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(targets.get(t)), Dijkstra.Direction.BACKWARDS, Dijkstra.StallOnDemand.YES, context);
+            result.add(new SettledNodes(context));
+        }
+
+        return result;
+    }
+
+    /**
+     * Counting sort of the downward search results by node, so each node's
+     * bucket is a contiguous range of bucketTargets and bucketDriveTimes.
+     */
+    private void fillBuckets(List<SettledNodes> settledByTarget) {
+        bucketOffsets = new int[allNodes.getNodeCount()+1];
+        int totalEntries = 0;
+        for (SettledNodes settled : settledByTarget) {
+            for (int nodeIndex : settled.nodeIndices) {
+                bucketOffsets[nodeIndex+1]++;
+            }
+            totalEntries += settled.nodeIndices.length;
+        }
+        for (int i=1 ; i<bucketOffsets.length ; i++) {
+            bucketOffsets[i] += bucketOffsets[i-1];
+        }
+
+        bucketTargets = new int[totalEntries];
+        bucketDriveTimes = new int[totalEntries];
+        int[] nextFree = Arrays.copyOf(bucketOffsets, bucketOffsets.length-1);
+        for (int t=0 ; t<settledByTarget.size() ; t++) {
+            SettledNodes settled = settledByTarget.get(t);
+            for (int i=0 ; i<settled.nodeIndices.length ; i++) {
+                int entry = nextFree[settled.nodeIndices[i]]++;
+                bucketTargets[entry] = t;
+                bucketDriveTimes[entry] = settled.driveTimes[i];
+            }
+        }
+    }
+
+    private void upwardSearches(int fromSource, int toSource, int[][] result) {
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+
+        for (int s=fromSource ; s<toSource ; s++) {
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(sources.get(s)), Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.YES, context);
+            int[] row = new int[targets.size()];
+            Arrays.fill(row, UNREACHABLE);
+
+            for (int i=0 ; i<context.getSettledCount() ; i++) {
+                int nodeIndex = context.getSettledNode(i).nodeIndex;
+                int upDriveTime = context.getSettledDriveTime(i);
+                for (int entry=bucketOffsets[nodeIndex] ; entry<bucketOffsets[nodeIndex+1] ; entry++) {
+                    int total = upDriveTime + bucketDriveTimes[entry];
+                    int target = bucketTargets[entry];
+                    if (total < row[target])
+                        row[target] = total;
+                }
+            }
+            result[s] = row;
+        }
+    }
+
+    private static final class SettledNodes {
+        final int[] nodeIndices;
+        final int[] driveTimes;
+
+        SettledNodes(DijkstraSearchContext context) {
+            int settledCount = context.getSettledCount();
+            nodeIndices = new int[settledCount];
+            driveTimes = new int[settledCount];
+            for (int i=0 ; i<settledCount ; i++) {
+                nodeIndices[i] = context.getSettledNode(i).nodeIndex;
+                driveTimes[i] = context.getSettledDriveTime(i);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package uk.me.mjt.ch;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import uk.me.mjt.ch.PartialSolution.DownwardSolution;
+import uk.me.mjt.ch.PartialSolution.UpwardSolution;
+
+/**
+ * The contracted searches from Dijkstra and ContractedDijkstra, running on a
+ * FrozenGraph. Searches read only the graph's int arrays; Node and
+ * DirectedEdge objects are only looked up at the end, to build a
+ * DijkstraSolution. The PartialSolutions produced are the same format as
+ * usual, so they work with ContractedDijkstra.mergeUpwardAndDownwardSolutions
+ * and the caches.
+ *
+ * The heap and the generation-stamped per-node state are DijkstraSearchContext,
+ * used by node index; only the edge each node was reached by is kept here,
+ * as an index into the frozen edge arrays. The search loop itself, and its
+ * stall-on-demand check, are separate from Dijkstra's, as they read the CSR
+ * arrays directly rather than Node edge lists.
+ *
+ * Not thread safe - each thread needs its own.
+ */
+public class FrozenDijkstra {
+    private static final int NONE = DijkstraSearchContext.NONE;
+
+    private final FrozenGraph graph;
+    private final DijkstraSearchContext forwards;
+    private final DijkstraSearchContext backwards;
+    private final int[] forwardsVia;
+    private final int[] backwardsVia;
+
+    public FrozenDijkstra(FrozenGraph graph) {
+        Preconditions.checkNoneNull(graph);
+        this.graph = graph;
+        this.forwards = new DijkstraSearchContext(graph.nodeCount);
+        this.backwards = new DijkstraSearchContext(graph.nodeCount);
+        this.forwardsVia = new int[graph.nodeCount];
+        this.backwardsVia = new int[graph.nodeCount];
+    }
+
+    public UpwardSolution calculateUpwardSolution(Node startNode) {
+        Preconditions.checkNoneNull(startNode);
+        contractedSearch(startNode.nodeIndex, Dijkstra.Direction.FORWARDS);
+        return new UpwardSolution(toCompactFormat(Dijkstra.Direction.FORWARDS));
+    }
+
+    public DownwardSolution calculateDownwardSolution(Node endNode) {
+        Preconditions.checkNoneNull(endNode);
+        contractedSearch(endNode.nodeIndex, Dijkstra.Direction.BACKWARDS);
+        return new DownwardSolution(toCompactFormat(Dijkstra.Direction.BACKWARDS));
+    }
+
+    /**
+     * @return The drive time in milliseconds, or ContractedDijkstra.UNREACHABLE.
+     */
+    public int contractedGraphDistance(Node startNode, Node endNode) {
+        Preconditions.checkNoneNull(startNode, endNode);
+        return contractedGraphDistance(startNode.nodeIndex, endNode.nodeIndex);
+    }
+
+    public DijkstraSolution contractedGraphDijkstra(MapData allNodes, Node startNode, Node endNode) {
+        Preconditions.checkNoneNull(allNodes, startNode, endNode);
+        int meetingNode = searchBothWays(startNode.nodeIndex, endNode.nodeIndex);
+        if (meetingNode == NONE)
+            return null;
+
+        FrozenGraph.IntList edgeIndices = new FrozenGraph.IntList();
+        unpackPath(meetingNode, edgeIndices, new FrozenGraph.IntList());
+        int totalDriveTime = forwards.getMinDriveTime(meetingNode) + backwards.getMinDriveTime(meetingNode);
+        return toDijkstraSolution(allNodes, startNode, totalDriveTime, edgeIndices);
+    }
+
+    /**
+     * As contractedGraphDistance(Node,Node), by node index, for graphs with
+     * no MapData to hand - such as a memory mapped FrozenGraph.
+     */
+    public int contractedGraphDistance(int startNodeIndex, int endNodeIndex) {
+        int meetingNode = searchBothWays(startNodeIndex, endNodeIndex);
+        if (meetingNode == NONE)
+            return ContractedDijkstra.UNREACHABLE;
+        return forwards.getMinDriveTime(meetingNode) + backwards.getMinDriveTime(meetingNode);
+    }
+
+    /**
+     * @return The node indices along the shortest path, including both ends,
+     * or null if there's no path.
+     */
+    public int[] contractedGraphPath(int startNodeIndex, int endNodeIndex) {
+        int meetingNode = searchBothWays(startNodeIndex, endNodeIndex);
+        if (meetingNode == NONE)
+            return null;
+
+        FrozenGraph.IntList nodeIndices = new FrozenGraph.IntList();
+        nodeIndices.add(startNodeIndex);
+        unpackPath(meetingNode, new FrozenGraph.IntList(), nodeIndices);
+        return nodeIndices.toArray();
+    }
+
+    private void unpackPath(int meetingNode, FrozenGraph.IntList edgeOutput, FrozenGraph.IntList nodeOutput) {
+        FrozenGraph.IntList upwardEdges = new FrozenGraph.IntList();
+        for (int n=meetingNode ; forwards.getPredecessorIndex(n)!=NONE ; n=forwards.getPredecessorIndex(n)) {
+            upwardEdges.add(forwardsVia[n]);
+        }
+
+        for (int i=upwardEdges.size()-1 ; i>=0 ; i--) {
+            int e = upwardEdges.get(i);
+            int to = graph.upTargets.get(e);
+            graph.unpack(forwards.getPredecessorIndex(to), to, graph.upDriveTimes.get(e), graph.upMiddles.get(e),
+                    graph.upEdgeIndices.get(e), edgeOutput, nodeOutput);
+        }
+        for (int n=meetingNode ; backwards.getPredecessorIndex(n)!=NONE ; n=backwards.getPredecessorIndex(n)) {
+            int e = backwardsVia[n];
+            graph.unpack(n, backwards.getPredecessorIndex(n), graph.downDriveTimes.get(e), graph.downMiddles.get(e),
+                    graph.downEdgeIndices.get(e), edgeOutput, nodeOutput);
+        }
+    }
+
+    private static DijkstraSolution toDijkstraSolution(MapData allNodes, Node startNode, int totalDriveTime, FrozenGraph.IntList edgeIndices) {
+        if (edgeIndices.size() == 0) {
+            return new DijkstraSolution(totalDriveTime, Collections.singletonList(startNode), Collections.<DirectedEdge>emptyList());
+        }
+
+        ArrayList<DirectedEdge> edges = new ArrayList<>(edgeIndices.size());
+        for (int i=0 ; i<edgeIndices.size() ; i++) {
+            edges.add(allNodes.getEdgeByIndex(edgeIndices.get(i)));
+        }
+        return new DijkstraSolution(totalDriveTime, new NodeListFromEdgeList(edges), edges);
+    }
+
+    /**
+     * @return The index of the node where the upward search from the start
+     * and the upward search along reversed edges from the end meet with the
+     * shortest total drive time, or NONE.
+     */
+    private int searchBothWays(int startNode, int endNode) {
+        contractedSearch(startNode, Dijkstra.Direction.FORWARDS);
+        contractedSearch(endNode, Dijkstra.Direction.BACKWARDS);
+
+        int bestNode = NONE;
+        int bestDriveTime = Integer.MAX_VALUE;
+        for (int i=0 ; i<forwards.getSettledCount() ; i++) {
+            int n = forwards.getSettledNodeIndex(i);
+            if (backwards.isSettled(n)) {
+                int driveTime = forwards.getMinDriveTime(n) + backwards.getMinDriveTime(n);
+                if (driveTime < bestDriveTime) {
+                    bestDriveTime = driveTime;
+                    bestNode = n;
+                }
+            }
+        }
+        return bestNode;
+    }
+
+    /**
+     * Same as Dijkstra.contractedSearch with stall-on-demand.
+     */
+    private void contractedSearch(int startNode, Dijkstra.Direction direction) {
+        final boolean isForwards = (direction == Dijkstra.Direction.FORWARDS);
+        final DijkstraSearchContext context = (isForwards ? forwards : backwards);
+        final int[] via = (isForwards ? forwardsVia : backwardsVia);
+        final IntBuffer edgeOffsets = (isForwards ? graph.upOffsets : graph.downOffsets);
+        final IntBuffer edgeEnds = (isForwards ? graph.upTargets : graph.downSources);
+        final IntBuffer edgeDriveTimes = (isForwards ? graph.upDriveTimes : graph.downDriveTimes);
+        final IntBuffer stallOffsets = (isForwards ? graph.downOffsets : graph.upOffsets);
+        final IntBuffer stallEnds = (isForwards ? graph.downSources : graph.upTargets);
+        final IntBuffer stallDriveTimes = (isForwards ? graph.downDriveTimes : graph.upDriveTimes);
+        final IntBuffer contractionOrders = graph.contractionOrders;
+
+        context.startSearch();
+        context.addStartNode(startNode);
+        via[startNode] = NONE;
+
+        int n;
+        while ((n = context.pollClosestUnsettledIndex()) != NONE) {
+            int driveTime = context.getMinDriveTime(n);
+            if (canBeStalled(n, driveTime, stallOffsets, stallEnds, stallDriveTimes, contractionOrders, context)) {
+                context.markStalled(n);
+                continue;
+            }
+
+            context.markSettled(n);
+            int end = edgeOffsets.get(n+1);
+            for (int e=edgeOffsets.get(n) ; e<end ; e++) {
+                int to = edgeEnds.get(e);
+                if (context.relax(n, to, driveTime + edgeDriveTimes.get(e)))
+                    via[to] = e;
+            }
+        }
+    }
+
+    private static boolean canBeStalled(int n, int driveTime, IntBuffer offsets, IntBuffer ends, IntBuffer driveTimes,
+            IntBuffer contractionOrders, DijkstraSearchContext context) {
+        int order = contractionOrders.get(n);
+        int end = offsets.get(n+1);
+        for (int e=offsets.get(n) ; e<end ; e++) {
+            int neighbor = ends.get(e);
+            int neighborTime = context.getMinDriveTime(neighbor);
+            if (neighborTime != Integer.MAX_VALUE && contractionOrders.get(neighbor) > order
+                    && neighborTime + driveTimes.get(e) < driveTime)
+                return true;
+        }
+        return false;
+    }
+
+    private ByteBuffer toCompactFormat(Dijkstra.Direction direction) {
+        boolean isForwards = (direction == Dijkstra.Direction.FORWARDS);
+        DijkstraSearchContext context = (isForwards ? forwards : backwards);
+        int[] via = (isForwards ? forwardsVia : backwardsVia);
+        IntBuffer edgeIndices = (isForwards ? graph.upEdgeIndices : graph.downEdgeIndices);
+
+        int recordCount = context.getSettledCount();
+        long[] sortedByContractionOrder = new long[recordCount];
+        for (int i=0 ; i<recordCount ; i++) {
+            int n = context.getSettledNodeIndex(i);
+            sortedByContractionOrder[i] = (((long)graph.contractionOrders.get(n)) << 32) | n;
+        }
+        Arrays.sort(sortedByContractionOrder);
+
+        ByteBuffer bb = PartialSolution.allocateCompactFormat(recordCount);
+        for (int i=0 ; i<recordCount ; i++) {
+            int n = (int)sortedByContractionOrder[i];
+            PartialSolution.putRecord(bb, i, graph.contractionOrders.get(n), n, context.getMinDriveTime(n),
+                    (via[n]==NONE ? PartialSolution.START_NODE_TO_START_NODE_PATH : edgeIndices.get(via[n])));
+        }
+        return bb;
+    }
+
+}
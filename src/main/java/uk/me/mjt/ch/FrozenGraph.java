@@ -0,0 +1,462 @@
+package uk.me.mjt.ch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only copy of a contracted graph's edges in compressed sparse row form,
+ * for query time. Rather than lists of DirectedEdge objects, each node's
+ * edges are a range of parallel int arrays: the node at the other end, the
+ * drive time, and for shortcuts the node in the middle. Nodes are referred
+ * to by Node.nodeIndex throughout.
+ *
+ * As with the searches on Node, a node's upward edges are those leading to a
+ * node with the same or a higher contraction order, and its downward edges
+ * are those arriving from one - so the downward array holds the node the edge
+ * comes from. An upward search follows upward edges, and an upward search
+ * along reversed edges (as when calculating a DownwardSolution) follows
+ * downward edges.
+ *
+ * Edge indices are kept so that results can be turned back into
+ * PartialSolutions and DijkstraSolutions on the original MapData.
+ *
+ * The arrays are buffers so that, as well as living on the heap, a frozen
+ * graph can be written to a file with writeTo and memory mapped back with
+ * map. A mapped graph is queried straight from the page cache - there's
+ * nothing to deserialise, so opening it takes milliseconds whatever its size,
+ * and JVMs on the same host share one copy. Node IDs and coordinates are
+ * included, so a mapped graph can be queried by node ID without any MapData.
+ */
+public class FrozenGraph {
+    public static final int NOT_A_SHORTCUT = -1;
+    public static final int NODE_NOT_FOUND = -1;
+
+    private static final long FILE_FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+
+    final int nodeCount;
+    final IntBuffer contractionOrders;
+    final LongBuffer nodeIds;
+    final FloatBuffer lats;
+    final FloatBuffer lons;
+    final LongBuffer sortedNodeIds;
+    final IntBuffer nodeIndicesBySortedId;
+
+    final IntBuffer upOffsets;
+    final IntBuffer upTargets;
+    final IntBuffer upDriveTimes;
+    final IntBuffer upMiddles;
+    final IntBuffer upEdgeIndices;
+
+    final IntBuffer downOffsets;
+    final IntBuffer downSources;
+    final IntBuffer downDriveTimes;
+    final IntBuffer downMiddles;
+    final IntBuffer downEdgeIndices;
+
+    FrozenGraph(MapData allNodes) {
+        Preconditions.checkNoneNull(allNodes);
+        nodeCount = allNodes.getNodeCount();
+        Node[] nodesByIndex = new Node[nodeCount];
+        for (Node n : allNodes.getAllNodes()) {
+            nodesByIndex[n.nodeIndex] = n;
+        }
+
+        int[] contractionOrderArray = new int[nodeCount];
+        long[] nodeIdArray = new long[nodeCount];
+        float[] latArray = new float[nodeCount];
+        float[] lonArray = new float[nodeCount];
+        int upEdgeCount = 0;
+        int downEdgeCount = 0;
+        for (Node n : nodesByIndex) {
+            contractionOrderArray[n.nodeIndex] = n.contractionOrder;
+            nodeIdArray[n.nodeIndex] = n.nodeId;
+            latArray[n.nodeIndex] = n.lat;
+            lonArray[n.nodeIndex] = n.lon;
+            upEdgeCount += countUpwardEdges(n);
+            downEdgeCount += countDownwardEdges(n);
+        }
+
+        long[] sortedIdArray = Arrays.copyOf(nodeIdArray, nodeCount);
+        Arrays.sort(sortedIdArray);
+        int[] indexBySortedIdArray = new int[nodeCount];
+        for (int i=0 ; i<nodeCount ; i++) {
+            indexBySortedIdArray[Arrays.binarySearch(sortedIdArray, nodeIdArray[i])] = i;
+        }
+
+        int[] upOffsetArray = new int[nodeCount+1];
+        int[] upTargetArray = new int[upEdgeCount];
+        int[] upDriveTimeArray = new int[upEdgeCount];
+        int[] upMiddleArray = new int[upEdgeCount];
+        int[] upEdgeIndexArray = new int[upEdgeCount];
+
+        int[] downOffsetArray = new int[nodeCount+1];
+        int[] downSourceArray = new int[downEdgeCount];
+        int[] downDriveTimeArray = new int[downEdgeCount];
+        int[] downMiddleArray = new int[downEdgeCount];
+        int[] downEdgeIndexArray = new int[downEdgeCount];
+
+        int upIdx = 0;
+        int downIdx = 0;
+        for (Node n : nodesByIndex) {
+            upOffsetArray[n.nodeIndex] = upIdx;
+            for (DirectedEdge de : n.edgesFrom) {
+                if (de.to.contractionOrder < n.contractionOrder)
+                    break;
+                upTargetArray[upIdx] = de.to.nodeIndex;
+                upDriveTimeArray[upIdx] = de.driveTimeMs;
+                upMiddleArray[upIdx] = middleOf(de);
+                upEdgeIndexArray[upIdx] = de.edgeIndex;
+                upIdx++;
+            }
+
+            downOffsetArray[n.nodeIndex] = downIdx;
+            for (DirectedEdge de : n.edgesTo) {
+                if (de.from.contractionOrder < n.contractionOrder)
+                    break;
+                downSourceArray[downIdx] = de.from.nodeIndex;
+                downDriveTimeArray[downIdx] = de.driveTimeMs;
+                downMiddleArray[downIdx] = middleOf(de);
+                downEdgeIndexArray[downIdx] = de.edgeIndex;
+                downIdx++;
+            }
+        }
+        upOffsetArray[nodeCount] = upIdx;
+        downOffsetArray[nodeCount] = downIdx;
+
+        contractionOrders = IntBuffer.wrap(contractionOrderArray);
+        nodeIds = LongBuffer.wrap(nodeIdArray);
+        lats = FloatBuffer.wrap(latArray);
+        lons = FloatBuffer.wrap(lonArray);
+        sortedNodeIds = LongBuffer.wrap(sortedIdArray);
+        nodeIndicesBySortedId = IntBuffer.wrap(indexBySortedIdArray);
+        upOffsets = IntBuffer.wrap(upOffsetArray);
+        upTargets = IntBuffer.wrap(upTargetArray);
+        upDriveTimes = IntBuffer.wrap(upDriveTimeArray);
+        upMiddles = IntBuffer.wrap(upMiddleArray);
+        upEdgeIndices = IntBuffer.wrap(upEdgeIndexArray);
+        downOffsets = IntBuffer.wrap(downOffsetArray);
+        downSources = IntBuffer.wrap(downSourceArray);
+        downDriveTimes = IntBuffer.wrap(downDriveTimeArray);
+        downMiddles = IntBuffer.wrap(downMiddleArray);
+        downEdgeIndices = IntBuffer.wrap(downEdgeIndexArray);
+    }
+
+    /**
+     * Each section is mapped separately, so the 2GB limit on a single
+     * MappedByteBuffer applies per array rather than to the whole file.
+     */
+    private FrozenGraph(FileChannel channel, long start, long size) throws IOException {
+        ByteBuffer header = mapBytes(channel, start, HEADER_BYTES);
+        if (header.getLong(0) != FILE_FORMAT_VERSION) {
+            throw new IOException("Unrecognised frozen graph format version " + header.getLong(0));
+        }
+        nodeCount = header.getInt(8);
+        int upEdgeCount = header.getInt(12);
+        int downEdgeCount = header.getInt(16);
+
+        SectionMapper sections = new SectionMapper(channel, start+HEADER_BYTES);
+        contractionOrders = sections.next(4L*nodeCount).asIntBuffer();
+        nodeIds = sections.next(8L*nodeCount).asLongBuffer();
+        lats = sections.next(4L*nodeCount).asFloatBuffer();
+        lons = sections.next(4L*nodeCount).asFloatBuffer();
+        sortedNodeIds = sections.next(8L*nodeCount).asLongBuffer();
+        nodeIndicesBySortedId = sections.next(4L*nodeCount).asIntBuffer();
+        upOffsets = sections.next(4L*(nodeCount+1)).asIntBuffer();
+        upTargets = sections.next(4L*upEdgeCount).asIntBuffer();
+        upDriveTimes = sections.next(4L*upEdgeCount).asIntBuffer();
+        upMiddles = sections.next(4L*upEdgeCount).asIntBuffer();
+        upEdgeIndices = sections.next(4L*upEdgeCount).asIntBuffer();
+        downOffsets = sections.next(4L*(nodeCount+1)).asIntBuffer();
+        downSources = sections.next(4L*downEdgeCount).asIntBuffer();
+        downDriveTimes = sections.next(4L*downEdgeCount).asIntBuffer();
+        downMiddles = sections.next(4L*downEdgeCount).asIntBuffer();
+        downEdgeIndices = sections.next(4L*downEdgeCount).asIntBuffer();
+
+        if (sections.position != start+size) {
+            throw new IOException("Frozen graph is " + size + " bytes, expected " + (sections.position-start));
+        }
+    }
+
+    public static FrozenGraph map(String filename) throws IOException {
+        Preconditions.checkNoneNull(filename);
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+                FileChannel channel = file.getChannel()) {
+            return new FrozenGraph(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Map a frozen graph stored partway through a larger file, as written by
+     * writeTo(FileChannel). The channel can be closed afterwards.
+     */
+    public static FrozenGraph map(FileChannel channel, long position, long size) throws IOException {
+        Preconditions.checkNoneNull(channel);
+        return new FrozenGraph(channel, position, size);
+    }
+
+    private static ByteBuffer mapBytes(FileChannel channel, long position, long size) throws IOException {
+        if (position + size > channel.size()) {
+            throw new IOException("Frozen graph file is truncated - expected at least " + (position+size) + " bytes");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static final class SectionMapper {
+        private final FileChannel channel;
+        private long position;
+
+        SectionMapper(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        ByteBuffer next(long size) throws IOException {
+            ByteBuffer result = mapBytes(channel, position, size);
+            position += padTo8(size);
+            return result;
+        }
+    }
+
+    private static long padTo8(long size) {
+        return (size+7) & ~7L;
+    }
+
+    public void writeTo(String filename) throws IOException {
+        Preconditions.checkNoneNull(filename);
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+                FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            writeTo(channel);
+        }
+    }
+
+    /**
+     * Write at the channel's current position, which should be a multiple of
+     * 8 bytes if the graph is to be mapped back.
+     */
+    public void writeTo(FileChannel channel) throws IOException {
+        Preconditions.checkNoneNull(channel);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(FILE_FORMAT_VERSION);
+        header.putInt(nodeCount);
+        header.putInt(getUpwardEdgeCount());
+        header.putInt(getDownwardEdgeCount());
+        header.putInt(0);
+        header.flip();
+        writeFully(channel, header);
+
+        SectionWriter out = new SectionWriter(channel);
+        out.write(contractionOrders);
+        out.write(nodeIds);
+        out.write(lats);
+        out.write(lons);
+        out.write(sortedNodeIds);
+        out.write(nodeIndicesBySortedId);
+        out.write(upOffsets);
+        out.write(upTargets);
+        out.write(upDriveTimes);
+        out.write(upMiddles);
+        out.write(upEdgeIndices);
+        out.write(downOffsets);
+        out.write(downSources);
+        out.write(downDriveTimes);
+        out.write(downMiddles);
+        out.write(downEdgeIndices);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
+
+    /**
+     * Copies buffers to the file a chunk at a time, padding each to a multiple
+     * of 8 bytes so every section is aligned.
+     */
+    private static final class SectionWriter {
+        private static final int CHUNK_BYTES = 1<<20;
+        private final FileChannel channel;
+        private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(IntBuffer values) throws IOException {
+            for (int i=0 ; i<values.limit() ; i++) {
+                makeRoom(4);
+                chunk.putInt(values.get(i));
+            }
+            endSection();
+        }
+
+        void write(LongBuffer values) throws IOException {
+            for (int i=0 ; i<values.limit() ; i++) {
+                makeRoom(8);
+                chunk.putLong(values.get(i));
+            }
+            endSection();
+        }
+
+        void write(FloatBuffer values) throws IOException {
+            for (int i=0 ; i<values.limit() ; i++) {
+                makeRoom(4);
+                chunk.putFloat(values.get(i));
+            }
+            endSection();
+        }
+
+        private void makeRoom(int bytes) throws IOException {
+            if (chunk.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void endSection() throws IOException {
+            while (chunk.position()%8 != 0) {
+                chunk.put((byte)0);
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            chunk.flip();
+            writeFully(channel, chunk);
+            chunk.clear();
+        }
+    }
+
+    private static int countUpwardEdges(Node n) {
+        int count = 0;
+        for (DirectedEdge de : n.edgesFrom) {
+            if (de.to.contractionOrder < n.contractionOrder)
+                break;
+            count++;
+        }
+        return count;
+    }
+
+    private static int countDownwardEdges(Node n) {
+        int count = 0;
+        for (DirectedEdge de : n.edgesTo) {
+            if (de.from.contractionOrder < n.contractionOrder)
+                break;
+            count++;
+        }
+        return count;
+    }
+
+    private static int middleOf(DirectedEdge de) {
+        return (de.isShortcut() ? de.first.to.nodeIndex : NOT_A_SHORTCUT);
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getUpwardEdgeCount() {
+        return upTargets.limit();
+    }
+
+    public int getDownwardEdgeCount() {
+        return downSources.limit();
+    }
+
+    /**
+     * @return The node index of the node with this ID, or NODE_NOT_FOUND.
+     */
+    public int getNodeIndex(long nodeId) {
+        int low = 0;
+        int high = nodeCount-1;
+        while (low <= high) {
+            int mid = (low+high) >>> 1;
+            long midId = sortedNodeIds.get(mid);
+            if (midId < nodeId)
+                low = mid+1;
+            else if (midId > nodeId)
+                high = mid-1;
+            else
+                return nodeIndicesBySortedId.get(mid);
+        }
+        return NODE_NOT_FOUND;
+    }
+
+    public long getNodeId(int nodeIndex) {
+        return nodeIds.get(nodeIndex);
+    }
+
+    public float getLat(int nodeIndex) {
+        return lats.get(nodeIndex);
+    }
+
+    public float getLon(int nodeIndex) {
+        return lons.get(nodeIndex);
+    }
+
+    /**
+     * Unpack a shortcut - or an ordinary edge - into the edge indices of the
+     * ordinary edges it's made of, using only the arrays. The two halves of a
+     * shortcut from 'from' to 'to' via 'middle' are a downward edge into the
+     * middle node and an upward edge out of it, as the middle node was
+     * contracted before both ends. The node at the far end of each ordinary
+     * edge goes in nodeOutput.
+     */
+    void unpack(int from, int to, int driveTime, int middle, int edgeIndex, IntList edgeOutput, IntList nodeOutput) {
+        if (middle == NOT_A_SHORTCUT) {
+            edgeOutput.add(edgeIndex);
+            nodeOutput.add(to);
+            return;
+        }
+
+        for (int down=downOffsets.get(middle) ; down<downOffsets.get(middle+1) ; down++) {
+            if (downSources.get(down) != from)
+                continue;
+            int remainingTime = driveTime - downDriveTimes.get(down);
+            for (int up=upOffsets.get(middle) ; up<upOffsets.get(middle+1) ; up++) {
+                if (upTargets.get(up) == to && upDriveTimes.get(up) == remainingTime) {
+                    unpack(from, middle, downDriveTimes.get(down), downMiddles.get(down), downEdgeIndices.get(down), edgeOutput, nodeOutput);
+                    unpack(middle, to, upDriveTimes.get(up), upMiddles.get(up), upEdgeIndices.get(up), edgeOutput, nodeOutput);
+                    return;
+                }
+            }
+        }
+        throw new RuntimeException("Couldn't find the halves of shortcut " + edgeIndex + "?");
+    }
+
+    /**
+     * Growable list of primitive ints, for the output of unpack.
+     */
+    static final class IntList {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2*size);
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
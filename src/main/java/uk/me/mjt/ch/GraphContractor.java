@@ -1,10 +1,14 @@
 package uk.me.mjt.ch;
 
 import uk.me.mjt.ch.Dijkstra.Direction;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -13,7 +17,23 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class GraphContractor {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    private static final int SELECTION_CHUNK_SIZE = 10000;
+    
     private final MapData allNodes;
+    private volatile int maxSettledNodes = UNLIMITED;
+    private volatile int maxHops = UNLIMITED;
+    private volatile PriorityFunction priorityFunction = PriorityFunction.EDGE_REDUCTION;
+    private final int[] contractedNeighbors;
+    private final int[] levels;
+    private int nextContractionOrder = 1;
+    private ContractionCheckpoint checkpoint = null;
+    private final ThreadLocal<WitnessSearch> witnessSearches = new ThreadLocal<WitnessSearch>() {
+        @Override
+        protected WitnessSearch initialValue() {
+            return new WitnessSearch(allNodes);
+        }
+    };
     
     private final AtomicInteger findShortcutsCalls = new AtomicInteger();
     private long nodePreContractChecks = 0;
@@ -24,16 +44,46 @@ public class GraphContractor {
     
     public GraphContractor(MapData allNodes) {
         this.allNodes = allNodes;
+        this.contractedNeighbors = new int[allNodes.getNodeCount()];
+        this.levels = new int[allNodes.getNodeCount()];
+        this.contractionOrder = new IndexedLongHeap(allNodes.getNodeCount());
     }
 
     private int getEdgeRemovedCount(Node n) {
         return n.getCountOutgoingUncontractedEdges() + n.getCountIncomingUncontractedEdges();
     }
 
-    private int getBalanceOfEdgesRemoved(Node n) {
-        int edgesRemoved = getEdgeRemovedCount(n);
-        int shortcutsAdded = findShortcuts(n).size();
-        return edgesRemoved-shortcutsAdded;
+    public void setPriorityFunction(PriorityFunction priorityFunction) {
+        Preconditions.checkNoneNull(priorityFunction);
+        this.priorityFunction = priorityFunction;
+    }
+    
+    private int priorityFor(Node n) {
+        return priorityFor(n, findShortcuts(n));
+    }
+    
+    private int priorityFor(Node n, List<DirectedEdge> shortcuts) {
+        int originalEdgesRemoved = countUncontractedOriginalEdges(n.edgesFrom, Direction.FORWARDS)
+                + countUncontractedOriginalEdges(n.edgesTo, Direction.BACKWARDS);
+        int originalEdgesAdded = 0;
+        for (DirectedEdge s : shortcuts) {
+            originalEdgesAdded += s.getUncontractedEdges().size();
+        }
+        int contractionDepth = Math.max(getMaxContractionDepth(n.edgesFrom), getMaxContractionDepth(n.edgesTo));
+        
+        PriorityFunction.Terms terms = new PriorityFunction.Terms(getEdgeRemovedCount(n), shortcuts.size(),
+                originalEdgesRemoved, originalEdgesAdded, contractedNeighbors[n.nodeIndex], levels[n.nodeIndex], contractionDepth);
+        return priorityFunction.priority(terms);
+    }
+    
+    private static int countUncontractedOriginalEdges(List<DirectedEdge> edges, Direction direction) {
+        int count = 0;
+        for (DirectedEdge de : edges) {
+            Node neighbor = (direction==Direction.FORWARDS ? de.to : de.from);
+            if (!neighbor.isContracted())
+                count += de.getUncontractedEdges().size();
+        }
+        return count;
     }
 
     public void contractNode(Node n, int order, ArrayList<DirectedEdge> shortcuts) {
@@ -41,54 +91,131 @@ public class GraphContractor {
             DirectedEdge newShortcut = s.cloneWithEdgeId(allNodes.getEdgeIdCounter().incrementAndGet());
             newShortcut.from.edgesFrom.add(newShortcut);
             newShortcut.to.edgesTo.add(newShortcut);
+            if (checkpoint != null)
+                checkpoint.shortcutAdded(newShortcut);
         }
         n.contractionOrder = order;
+        
+        for (Node neighbor : n.getNeighbors()) {
+            if (!neighbor.isContracted()) {
+                contractedNeighbors[neighbor.nodeIndex]++;
+                levels[neighbor.nodeIndex] = Math.max(levels[neighbor.nodeIndex], levels[n.nodeIndex]+1);
+            }
+        }
+    }
+    
+    /**
+     * Limit the witness searches used to decide which shortcuts are needed.
+     * Tighter limits make contraction faster, but add shortcuts that a full
+     * search would have found unnecessary. See WitnessSearch.
+     * 
+     * @param maxSettledNodes Nodes settled per search, or UNLIMITED.
+     * @param maxHops Edges in a witness path, or UNLIMITED.
+     */
+    public void setWitnessSearchLimits(int maxSettledNodes, int maxHops) {
+        Preconditions.require(maxSettledNodes > 0, maxHops > 0);
+        this.maxSettledNodes = maxSettledNodes;
+        this.maxHops = maxHops;
     }
     
     public ArrayList<DirectedEdge> findShortcuts(Node n) {
+        return findShortcuts(n, Node.UNCONTRACTED-1);
+    }
+    
+    /**
+     * @param contractionOrderFloor Nodes with a contraction order up to this
+     * are treated as contracted. See WitnessSearch.
+     */
+    ArrayList<DirectedEdge> findShortcuts(Node n, int contractionOrderFloor) {
         findShortcutsCalls.incrementAndGet();
         ArrayList<DirectedEdge> shortcuts = new ArrayList<DirectedEdge>();
         
-        HashSet<Node> destinationNodes = new HashSet<Node>();
+        List<DirectedEdge> outgoingEdges = quickestUncontractedEdges(n, n.edgesFrom, Direction.FORWARDS, contractionOrderFloor);
+        List<DirectedEdge> incomingEdges = quickestUncontractedEdges(n, n.edgesTo, Direction.BACKWARDS, contractionOrderFloor);
         int maxOutTime = 0;
-        for (DirectedEdge outgoing : n.edgesFrom) {
-            if (!outgoing.to.isContracted()) {
-                destinationNodes.add(outgoing.to);
-                if (outgoing.driveTimeMs > maxOutTime)
-                    maxOutTime = outgoing.driveTimeMs;
-            }
+        for (DirectedEdge outgoing : outgoingEdges) {
+            maxOutTime = Math.max(maxOutTime, outgoing.driveTimeMs);
         }
         
-        for (DirectedEdge incoming : n.edgesTo) {
+        WitnessSearch witnessSearch = witnessSearches.get();
+        for (DirectedEdge incoming : incomingEdges) {
             Node startNode = incoming.from;
-            if (startNode.isContracted())
+            ArrayList<DirectedEdge> candidates = new ArrayList<>(outgoingEdges.size());
+            for (DirectedEdge outgoing : outgoingEdges) {
+                if (outgoing.to != startNode)
+                    candidates.add(outgoing);
+            }
+            if (candidates.isEmpty())
                 continue;
             
-            List<DijkstraSolution> routed = Dijkstra.dijkstrasAlgorithm(
-                    startNode,
-                    new HashSet<>(destinationNodes),
-                    incoming.driveTimeMs+maxOutTime,
-                    Direction.FORWARDS);
+            Node[] targets = new Node[candidates.size()];
+            for (int i=0 ; i<targets.length ; i++) {
+                targets[i] = candidates.get(i).to;
+            }
+            int[] witnessDriveTimes = witnessSearch.search(startNode, n, targets,
+                    incoming.driveTimeMs+maxOutTime, maxSettledNodes, maxHops, contractionOrderFloor);
             
-            for (DijkstraSolution ds : routed) {
-                if (ds.nodes.size() == 3 && ds.nodes.get(1)==n) {
-                    shortcuts.add(new DirectedEdge(
-                            ds.getFirstNode(),
-                            ds.getLastNode(),
-                            ds.totalDriveTimeMs,
-                            ds.edges.get(0),
-                            ds.edges.get(1)));
-                } else {
-                    //System.out.println();
+            for (int i=0 ; i<targets.length ; i++) {
+                DirectedEdge outgoing = candidates.get(i);
+                int viaDriveTime = incoming.driveTimeMs + outgoing.driveTimeMs;
+                if (witnessDriveTimes[i] > viaDriveTime) {
+                    shortcuts.add(new DirectedEdge(startNode, outgoing.to, viaDriveTime, incoming, outgoing));
                 }
             }
         }
         
         return shortcuts;
     }
+    
+    /**
+     * Where there's more than one edge between n and an uncontracted
+     * neighbour, only the quickest can be part of a shortcut.
+     */
+    private static List<DirectedEdge> quickestUncontractedEdges(Node n, List<DirectedEdge> edges, Direction direction, int contractionOrderFloor) {
+        LinkedHashMap<Node,DirectedEdge> quickest = new LinkedHashMap<>();
+        for (DirectedEdge de : edges) {
+            Node neighbor = (direction==Direction.FORWARDS ? de.to : de.from);
+            if (neighbor.contractionOrder <= contractionOrderFloor || neighbor == n
+                    || !WitnessSearch.isPresentAbove(de, contractionOrderFloor))
+                continue;
+            DirectedEdge existing = quickest.get(neighbor);
+            if (existing == null || de.driveTimeMs < existing.driveTimeMs)
+                quickest.put(neighbor, de);
+        }
+        return new ArrayList<>(quickest.values());
+    }
 
 
-    BidirectionalTreeMap<ContractionOrdering,Node> contractionOrder = new BidirectionalTreeMap<>();
+    /**
+     * Uncontracted nodes by Node.nodeIndex, lowest priority first. If
+     * everything else is equal we don't care about the order - but it's
+     * useful for it to be stable between runs, so ties are broken by a hash
+     * of the node ID. The priority and the hash are packed into one key - see
+     * queueKey.
+     */
+    final IndexedLongHeap contractionOrder;
+    
+    /**
+     * The priority in the top 32 bits, so it's compared first, then the high
+     * half of the hash in the bottom 32. If nodes happen to go 1,2,3,4,5,6...
+     * we'd rather not contract them in that order.
+     */
+    static long queueKey(long nodeId, int priority) {
+        long hash = 6364136223846793005L * nodeId + 1442695040888963407L;
+        return (((long)priority) << 32) | (hash >>> 32);
+    }
+    
+    static int priorityOf(long queueKey) {
+        return (int)(queueKey >> 32);
+    }
+    
+    private void putContractionOrder(Node n, int priority) {
+        contractionOrder.put(n.nodeIndex, queueKey(n.nodeId, priority));
+    }
+    
+    private boolean isQueued(Node n) {
+        return contractionOrder.contains(n.nodeIndex);
+    }
 
     public void initialiseContractionOrder() {
         long orderingStart = System.currentTimeMillis();
@@ -100,27 +227,39 @@ public class GraphContractor {
     }
     
     private void parallelInitContractionOrder() {
-        ArrayList<Callable<KeyValue>> callables = new ArrayList(allNodes.getNodeCount());
-        for (final Node n : allNodes.getAllNodes()) {
+        ArrayList<Node> toOrder = new ArrayList<>(allNodes.getNodeCount());
+        for (Node n : allNodes.getAllNodes()) {
             if (n.contractionAllowed && !n.isContracted()) {
-                callables.add(new Callable<KeyValue>() {
-                    public KeyValue call() throws Exception {
-                        ContractionOrdering key = new ContractionOrdering(n,getBalanceOfEdgesRemoved(n));
-                        return new KeyValue(key, n);
-                    }
-                });
+                toOrder.add(n);
             }
         }
-            
+        
+        contractionOrder.clear();
+        List<Integer> priorities = calculatePrioritiesInParallel(toOrder);
+        for (int i=0 ; i<toOrder.size() ; i++) {
+            putContractionOrder(toOrder.get(i), priorities.get(i));
+        }
+    }
+    
+    private List<Integer> calculatePrioritiesInParallel(List<Node> toOrder) {
+        ArrayList<Callable<Integer>> callables = new ArrayList<>(toOrder.size());
+        for (final Node n : toOrder) {
+            callables.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return priorityFor(n);
+                }
+            });
+        }
+        return invokeAll(callables);
+    }
+    
+    private <T> List<T> invokeAll(List<Callable<T>> callables) {
         try {
-            List<Future<KeyValue>> kvs = es.invokeAll(callables);
-
-            contractionOrder.clear();
-            for (Future<KeyValue> f : kvs) {
-                KeyValue kv = f.get();
-                contractionOrder.put(kv.key, kv.value);
+            ArrayList<T> results = new ArrayList<>(callables.size());
+            for (Future<T> f : es.invokeAll(callables)) {
+                results.add(f.get());
             }
-            
+            return results;
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
@@ -129,17 +268,14 @@ public class GraphContractor {
     }
     
     public void contractAll() {
-        int contractionProgress = 1;
-        
         long startTime = System.currentTimeMillis();
         long recentTime = System.currentTimeMillis();
         long recentPreContractChecks = 0;
         long recentPreContractChecksPassed = 0;
         long recentOrderingMillis = 0;
 
-        Node n;
-        while ((n = lazyContractNextNode(contractionProgress++, true)) != null) {
-            reorderImmediateNeighbors(n);
+        while (contractNext()) {
+            checkpointIfDue();
             
             //System.out.println("Contracted " + n);
             if (contractionOrder.size() % 10000 == 0) {
@@ -157,9 +293,23 @@ public class GraphContractor {
             }
         }
         
+        finishContraction();
+    }
+    
+    boolean contractNext() {
+        Node n = lazyContractNextNode(nextContractionOrder, true);
+        if (n == null)
+            return false;
+        nextContractionOrder++;
+        reorderImmediateNeighbors(n);
+        return true;
+    }
+    
+    private void finishContraction() {
         for (Node sortNode : allNodes.getAllNodes()) {
             sortNode.sortNeighborLists();
         }
+        allNodes.indexNewEdges();
        
         System.out.println("findShortcutsCalls: "+findShortcutsCalls);
         System.out.println("nodePreContractChecks: "+nodePreContractChecks);
@@ -167,13 +317,230 @@ public class GraphContractor {
         System.out.println("millisSpentOnContractionOrdering: " + millisSpentOnContractionOrdering);
         
         es.shutdown();
+        if (checkpoint != null)
+            checkpoint.finish();
+    }
+    
+    /**
+     * Write a checkpoint every so often while contracting, which
+     * resumeFromCheckpoint can carry on from. See ContractionCheckpoint.
+     *
+     * @param inputDescription Identifies the input being contracted, such as
+     * ContractionCheckpoint.describeInputFiles - a checkpoint will only be
+     * resumed for the same input.
+     */
+    public void enableCheckpoints(String filenamePrefix, String inputDescription, long intervalMillis) throws IOException {
+        checkpoint = new ContractionCheckpoint(allNodes, filenamePrefix, inputDescription, intervalMillis);
+    }
+    
+    private void checkpointIfDue() {
+        if (checkpoint != null && checkpoint.isDue())
+            startCheckpoint();
+    }
+    
+    void checkpointNow() {
+        Preconditions.checkNoneNull(checkpoint);
+        startCheckpoint();
+        checkpoint.awaitWrite();
+    }
+    
+    private void startCheckpoint() {
+        int[] contractionOrders = new int[allNodes.getNodeCount()];
+        for (int i=0 ; i<contractionOrders.length ; i++) {
+            contractionOrders[i] = allNodes.getNodeByIndex(i).contractionOrder;
+        }
+        long[] keys = contractionOrder.keys();
+        int[] priorities = new int[keys.length];
+        for (int i=0 ; i<keys.length ; i++) {
+            priorities[i] = priorityOf(keys[i]);
+        }
+        checkpoint.start(contractionOrders, contractionOrder.items(), priorities);
+    }
+    
+    /**
+     * Carry on from a checkpoint, in place of initialiseContractionOrder. The
+     * MapData this contractor was made with must be the one read by
+     * ContractionCheckpoint.readMapData.
+     */
+    public void resumeFromCheckpoint(String filenamePrefix) throws IOException {
+        ContractionCheckpoint.Queue queue = ContractionCheckpoint.readQueue(filenamePrefix, allNodes);
+        contractionOrder.clear();
+        for (int i=0 ; i<queue.nodeIndices.length ; i++) {
+            putContractionOrder(allNodes.getNodeByIndex(queue.nodeIndices[i]), queue.priorities[i]);
+        }
+        
+        // Neighbour counts and levels aren't checkpointed, as they're quick
+        // enough to work out again from the contraction order.
+        ArrayList<Node> contracted = new ArrayList<>();
+        for (Node n : allNodes.getAllNodes()) {
+            if (n.isContracted())
+                contracted.add(n);
+        }
+        Collections.sort(contracted, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return Integer.compare(a.contractionOrder, b.contractionOrder);
+            }
+        });
+        for (Node n : contracted) {
+            for (Node neighbor : n.getNeighbors()) {
+                if (neighbor.contractionOrder > n.contractionOrder) {
+                    contractedNeighbors[neighbor.nodeIndex]++;
+                    levels[neighbor.nodeIndex] = Math.max(levels[neighbor.nodeIndex], levels[n.nodeIndex]+1);
+                }
+            }
+            nextContractionOrder = n.contractionOrder+1;
+        }
+        
+        ArrayList<Node> unqueued = new ArrayList<>();
+        for (Node n : allNodes.getAllNodes()) {
+            if (n.contractionAllowed && !n.isContracted() && !isQueued(n))
+                unqueued.add(n);
+        }
+        List<Integer> priorities = calculatePrioritiesInParallel(unqueued);
+        for (int i=0 ; i<unqueued.size() ; i++) {
+            putContractionOrder(unqueued.get(i), priorities.get(i));
+        }
+        System.out.println("Resumed contraction with " + contracted.size() + " nodes contracted and "
+                + contractionOrder.size() + " remaining.");
+    }
+    
+    /**
+     * As contractAll, but contracting a batch of nodes per round, using the
+     * thread pool. Each round takes every node whose place in the contraction
+     * order is lower than that of any uncontracted node within 2 hops. No two such
+     * nodes are neighbours or share a neighbour, so the witness searches for
+     * the whole batch can run at once against the same graph, and their
+     * shortcuts can then be added together. The neighbours of the batch are
+     * then reordered, again in parallel.
+     */
+    public void contractAllInParallel() {
+        int rounds = 0;
+        long startTime = System.currentTimeMillis();
+        
+        while (!contractionOrder.isEmpty()) {
+            List<Node> batch = selectIndependentNodes();
+            List<ArrayList<DirectedEdge>> shortcuts = findShortcutsInParallel(batch);
+            nodePreContractChecks += batch.size();
+            nodePreContractChecksPassed += batch.size();
+            
+            HashSet<Node> neighbors = new HashSet<>();
+            for (int i=0 ; i<batch.size() ; i++) {
+                Node n = batch.get(i);
+                contractionOrder.remove(n.nodeIndex);
+                contractNode(n, nextContractionOrder++, shortcuts.get(i));
+                neighbors.addAll(n.getNeighbors());
+            }
+            
+            for (Node neighbor : neighbors) {
+                neighbor.sortNeighborLists();
+            }
+            reorderInParallel(neighbors);
+            checkpointIfDue();
+            
+            rounds++;
+            if (rounds % 10 == 0)
+                System.out.println((System.currentTimeMillis()-startTime) + "," + contractionOrder.size() + 
+                    ", round " + rounds + " contracted " + batch.size());
+        }
+        
+        finishContraction();
+    }
+    
+    private List<Node> selectIndependentNodes() {
+        final int[] remaining = contractionOrder.items();
+        ArrayList<Callable<List<Node>>> callables = new ArrayList<>();
+        for (int i=0 ; i<remaining.length ; i+=SELECTION_CHUNK_SIZE) {
+            final int chunkStart = i;
+            final int chunkEnd = Math.min(remaining.length, i+SELECTION_CHUNK_SIZE);
+            callables.add(new Callable<List<Node>>() {
+                public List<Node> call() throws Exception {
+                    ArrayList<Node> selected = new ArrayList<>();
+                    for (int j=chunkStart ; j<chunkEnd ; j++) {
+                        Node n = allNodes.getNodeByIndex(remaining[j]);
+                        if (isLowestWithinTwoHops(n))
+                            selected.add(n);
+                    }
+                    return selected;
+                }
+            });
+        }
+        
+        ArrayList<Node> batch = new ArrayList<>();
+        for (List<Node> selected : invokeAll(callables)) {
+            batch.addAll(selected);
+        }
+        // The heap isn't in order, so the batch needs sorting.
+        Collections.sort(batch, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return contractionOrder.compareItems(a.nodeIndex, b.nodeIndex);
+            }
+        });
+        return batch;
+    }
+    
+    private boolean isLowestWithinTwoHops(Node n) {
+        for (DirectedEdge de : n.edgesFrom) {
+            if (isLowerWithinOneHop(de.to, n))
+                return false;
+        }
+        for (DirectedEdge de : n.edgesTo) {
+            if (isLowerWithinOneHop(de.from, n))
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean isLowerWithinOneHop(Node neighbor, Node n) {
+        if (neighbor.isContracted())
+            return false;
+        if (isLowerThan(neighbor, n))
+            return true;
+        for (DirectedEdge de : neighbor.edgesFrom) {
+            if (de.to != n && isLowerThan(de.to, n))
+                return true;
+        }
+        for (DirectedEdge de : neighbor.edgesTo) {
+            if (de.from != n && isLowerThan(de.from, n))
+                return true;
+        }
+        return false;
+    }
+    
+    private boolean isLowerThan(Node other, Node n) {
+        return isQueued(other) && contractionOrder.compareItems(other.nodeIndex, n.nodeIndex) < 0;
+    }
+    
+    private List<ArrayList<DirectedEdge>> findShortcutsInParallel(List<Node> nodes) {
+        ArrayList<Callable<ArrayList<DirectedEdge>>> callables = new ArrayList<>(nodes.size());
+        for (final Node n : nodes) {
+            callables.add(new Callable<ArrayList<DirectedEdge>>() {
+                public ArrayList<DirectedEdge> call() throws Exception {
+                    return findShortcuts(n);
+                }
+            });
+        }
+        return invokeAll(callables);
+    }
+    
+    private void reorderInParallel(Collection<Node> nodes) {
+        ArrayList<Node> toReorder = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            if (isQueued(n))
+                toReorder.add(n);
+        }
+        
+        List<Integer> priorities = calculatePrioritiesInParallel(toReorder);
+        for (int i=0 ; i<toReorder.size() ; i++) {
+            putContractionOrder(toReorder.get(i), priorities.get(i));
+        }
     }
 
     private Node lazyContractNextNode(int contractionProgress, boolean includeUnprofitable) {
-        Map.Entry<ContractionOrdering,Node> next = contractionOrder.pollFirstEntry();
-        while (next != null) {
-            ContractionOrdering oldOrder = next.getKey();
-            Node n = next.getValue();
+        while (!contractionOrder.isEmpty()) {
+            int oldPriority = priorityOf(contractionOrder.peekMinKey());
+            Node n = allNodes.getNodeByIndex(contractionOrder.pollMinItem());
             
             ArrayList<DirectedEdge> shortcuts = findShortcuts(n);
             nodePreContractChecks++;
@@ -183,26 +550,23 @@ public class GraphContractor {
             
             if (profitable || includeUnprofitable) {
                 
-                ContractionOrdering newOrder = new ContractionOrdering(n,balanceOfEdgesRemoved);
-                if (contractionOrder.isEmpty() 
-                        || newOrder.compareTo(oldOrder) >= 0 
-                        || newOrder.compareTo(contractionOrder.lastKey()) >= 0) {
-                    // If the ContractionOrdering is unchanged, or has changed but 
-                    // not enough to move this node off the top spot, contract.
+                int newPriority = priorityFor(n, shortcuts);
+                if (contractionOrder.isEmpty() || newPriority >= oldPriority) {
+                    // If the priority is unchanged, or has gone up, contract.
+                    // If it's gone down the node is still on top, but check
+                    // again with the new priority.
                     contractNode(n,contractionProgress,shortcuts);
                     nodePreContractChecksPassed++;
                     return n;
                 } else {
                     // Otherwise
-                    contractionOrder.put(newOrder, n);
+                    putContractionOrder(n, newPriority);
                 }
                 
             } else {
                 System.out.println("Contraction became unprofitable with " + contractionOrder.size() + " nodes remaining.");
                 return null;
             }
-            
-            next = contractionOrder.pollFirstEntry();
         }
         return null;
     }
@@ -218,18 +582,16 @@ public class GraphContractor {
     }
     
     private boolean reorderNodeIfNeeded(Node n) {
-        ContractionOrdering oldOrder = contractionOrder.keyForValue(n);
-        if (oldOrder == null) { // Already contracted (IIRC)
+        if (!isQueued(n)) { // Already contracted (IIRC)
             return false;
         }
+        int oldPriority = priorityOf(contractionOrder.getKey(n.nodeIndex));
         
         ArrayList<DirectedEdge> shortcuts = findShortcuts(n);
-        int balanceOfEdgesRemoved = getEdgeRemovedCount(n)-shortcuts.size();
-        ContractionOrdering newOrder = new ContractionOrdering(n,balanceOfEdgesRemoved);
+        int newPriority = priorityFor(n, shortcuts);
         
-        if (oldOrder.compareTo(newOrder) != 0) {
-            contractionOrder.remove(oldOrder);
-            contractionOrder.put(newOrder, n);
+        if (oldPriority != newPriority) {
+            putContractionOrder(n, newPriority);
             return true;
         } else {
             return false;
@@ -244,75 +606,4 @@ public class GraphContractor {
         return maxContractionDepth;
     }
     
-    class ContractionOrdering implements Comparable<ContractionOrdering> {
-        final int edgeCountReduction;
-        final int contractionDepth;
-        final long idHash; // If everything else is equal we don't care about the order - but it's useful for it to be stable between runs.
-
-        public ContractionOrdering(Node n, int edgeCountReduction) {
-            this.edgeCountReduction = edgeCountReduction;
-            contractionDepth = Math.max(getMaxContractionDepth(n.edgesFrom), getMaxContractionDepth(n.edgesTo));
-            idHash = hashNodeId(n.nodeId);
-        }
-        
-        private long hashNodeId(long nodeId) {
-            // If nodes happen to go 1,2,3,4,5,6... we'd rather not contract
-            // them in that order.
-            return 6364136223846793005L * nodeId + 1442695040888963407L;
-        }
-
-        public int compareTo(ContractionOrdering o) {
-            if (o == null) {
-                return -1;
-            } else if (this.edgeCountReduction>=0 && o.edgeCountReduction<0) {
-                return -1;
-            } else if (this.edgeCountReduction<0 && o.edgeCountReduction>=0) {
-                return 1;
-            } else if (this.contractionDepth != o.contractionDepth) {
-                return Integer.compare(this.contractionDepth,o.contractionDepth);
-            } else if (this.edgeCountReduction != o.edgeCountReduction) {
-                return Integer.compare(o.edgeCountReduction,this.edgeCountReduction);
-            } else if (this.idHash != o.idHash) {
-                return Long.compare(this.idHash,o.idHash);
-            } else {
-                return 0;
-            }
-        }
-
-        @Override
-        public int hashCode() {
-            int hash = 3;
-            hash = 17 * hash + this.edgeCountReduction;
-            hash = 17 * hash + this.contractionDepth;
-            hash = 17 * hash + (int)(this.idHash ^ (this.idHash >>> 32));;
-            return hash;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == null || getClass() != obj.getClass()) {
-                return false;
-            }
-            final ContractionOrdering other = (ContractionOrdering) obj;
-            return (this.edgeCountReduction == other.edgeCountReduction
-                    && this.contractionDepth == other.contractionDepth
-                    && this.idHash == other.idHash);
-        }
-
-        @Override
-        public String toString() {
-            return "(edge reduction=" + edgeCountReduction + ", depth=" + contractionDepth + ", idHash=" + idHash + ')';
-        }
-    }
-    
-    private class KeyValue {
-        final ContractionOrdering key;
-        final Node value;
-
-        public KeyValue(ContractionOrdering key, Node value) {
-            this.key = key;
-            this.value = value;
-        }
-    }
-    
 }
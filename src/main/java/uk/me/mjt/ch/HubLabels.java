@@ -0,0 +1,407 @@
+package uk.me.mjt.ch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/**
+ * Hub labelling, built from a contracted graph. Each node's forward label is
+ * its upward search space - the nodes it can reach going only upwards, with
+ * their drive times - and its backward label is the same for the reversed
+ * edges. The shortest path from s to t peaks at a node in both the forward
+ * label of s and the backward label of t, so a query is just a merge of two
+ * sorted lists, with no searching at all.
+ *
+ * Labels are pruned: an entry whose drive time can be beaten by going via
+ * another hub is never the answer to a query, so it's dropped. Any entry that
+ * answers a query is exact, as is its predecessor, so each entry records its
+ * predecessor hub, and paths are rebuilt by following predecessors then
+ * unpacking the shortcuts.
+ *
+ * Everything lives in one little-endian buffer, laid out exactly as it's
+ * written to disk, so a label file can be memory mapped rather than read.
+ * That limits a label set to 2GB - fine for a region, not for all of GB.
+ */
+public class HubLabels {
+    public enum MemoryMap { YES, NO }
+
+    private static final long FILE_FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+    private static final int ENTRY_BYTES = 12;
+    private static final int NO_PREDECESSOR = -1;
+
+    private final MapData allNodes;
+    private final ByteBuffer bb;
+    private final int nodeCount;
+    private final Node[] nodesByLabelIndex;
+    private final int[] labelIndexByNodeIndex;
+    private final int forwardOffsetsStart;
+    private final int backwardOffsetsStart;
+    private final int forwardEntriesStart;
+    private final int backwardEntriesStart;
+
+    private HubLabels(MapData allNodes, ByteBuffer bb) {
+        Preconditions.checkNoneNull(allNodes, bb);
+        Preconditions.require(bb.order()==ByteOrder.LITTLE_ENDIAN);
+        if (bb.getLong(0) != FILE_FORMAT_VERSION) {
+            throw new RuntimeException("Unrecognised hub label format version " + bb.getLong(0));
+        }
+        this.allNodes = allNodes;
+        this.bb = bb;
+
+        nodeCount = bb.getInt(8);
+        int forwardEntryCount = bb.getInt(12);
+        int backwardEntryCount = bb.getInt(16);
+        forwardOffsetsStart = HEADER_BYTES + 8*nodeCount;
+        backwardOffsetsStart = forwardOffsetsStart + 4*(nodeCount+1);
+        forwardEntriesStart = backwardOffsetsStart + 4*(nodeCount+1);
+        backwardEntriesStart = forwardEntriesStart + ENTRY_BYTES*forwardEntryCount;
+        Preconditions.require(bb.capacity() == backwardEntriesStart + ENTRY_BYTES*backwardEntryCount);
+
+        nodesByLabelIndex = new Node[nodeCount];
+        labelIndexByNodeIndex = new int[allNodes.getNodeCount()];
+        for (int i=0 ; i<nodeCount ; i++) {
+            long nodeId = bb.getLong(HEADER_BYTES + 8*i);
+            Node n = allNodes.getNodeById(nodeId);
+            if (n == null) {
+                throw new RuntimeException("Hub labels refer to node " + nodeId + " which isn't in the map data?");
+            }
+            nodesByLabelIndex[i] = n;
+            labelIndexByNodeIndex[n.nodeIndex] = i;
+        }
+    }
+
+    public static HubLabels build(MapData allNodes) {
+        return build(allNodes, allNodes.getAllNodes());
+    }
+
+    /**
+     * Build labels for just some nodes, such as the ones we route between
+     * most. Queries involving other nodes fall back to ContractedDijkstra.
+     */
+    public static HubLabels build(MapData allNodes, Collection<Node> nodesToLabel) {
+        Preconditions.checkNoneNull(allNodes, nodesToLabel);
+
+        Node[] nodesByLabelIndex = new Node[allNodes.getNodeCount()];
+        for (Node n : allNodes.getAllNodes()) {
+            nodesByLabelIndex[n.nodeIndex] = n;
+        }
+        int[][] forwardLabels = new int[nodesByLabelIndex.length][];
+        int[][] backwardLabels = new int[nodesByLabelIndex.length][];
+
+        DijkstraSearchContext context = new DijkstraSearchContext(allNodes.getNodeCount());
+        for (Node n : highestContractionOrderFirst(nodesToLabel)) {
+            forwardLabels[n.nodeIndex] = buildLabel(n, Dijkstra.Direction.FORWARDS, context, backwardLabels, nodesByLabelIndex);
+            backwardLabels[n.nodeIndex] = buildLabel(n, Dijkstra.Direction.BACKWARDS, context, forwardLabels, nodesByLabelIndex);
+        }
+
+        return new HubLabels(allNodes, toCompactFormat(nodesByLabelIndex, forwardLabels, backwardLabels));
+    }
+
+    private static ArrayList<Node> highestContractionOrderFirst(Collection<Node> nodes) {
+        ArrayList<Node> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return Integer.compare(b.contractionOrder, a.contractionOrder);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Label entries are (hub, drive time, predecessor) triples sorted by hub,
+     * where the hub and predecessor are label indices, which are the same as
+     * node indices while building. Entries that can be beaten by going via a
+     * hub in the opposite label of the entry's hub are pruned; as we work
+     * from the top of the hierarchy down, those labels are usually built
+     * already, and where they aren't we just keep the entry.
+     */
+    private static int[] buildLabel(Node n, Dijkstra.Direction direction, DijkstraSearchContext context,
+            int[][] oppositeLabels, Node[] nodesByLabelIndex) {
+        Dijkstra.contractedSearch(ColocatedNodeSet.singleton(n), direction, Dijkstra.StallOnDemand.YES, context);
+
+        long[] sortedHubs = new long[context.getSettledCount()];
+        for (int i=0 ; i<sortedHubs.length ; i++) {
+            sortedHubs[i] = (((long)context.getSettledNode(i).nodeIndex) << 32) | i;
+        }
+        Arrays.sort(sortedHubs);
+
+        int[] label = new int[3*sortedHubs.length];
+        int entryCount = 0;
+        for (long packed : sortedHubs) {
+            int settledIdx = (int)packed;
+            Node hub = context.getSettledNode(settledIdx);
+            int driveTime = context.getSettledDriveTime(settledIdx);
+
+            if (canBeBeatenViaAnotherHub(driveTime, oppositeLabels[hub.nodeIndex], context, nodesByLabelIndex))
+                continue;
+
+            Node predecessor = context.getPredecessor(hub);
+            label[3*entryCount] = hub.nodeIndex;
+            label[3*entryCount+1] = driveTime;
+            label[3*entryCount+2] = (predecessor==null ? NO_PREDECESSOR : predecessor.nodeIndex);
+            entryCount++;
+        }
+
+        return Arrays.copyOf(label, 3*entryCount);
+    }
+
+    private static boolean canBeBeatenViaAnotherHub(int driveTime, int[] hubOppositeLabel, DijkstraSearchContext context, Node[] nodesByLabelIndex) {
+        if (hubOppositeLabel == null)
+            return false;
+        for (int i=0 ; i<hubOppositeLabel.length ; i+=3) {
+            int viaTime = context.getMinDriveTime(nodesByLabelIndex[hubOppositeLabel[i]]);
+            if (viaTime != Integer.MAX_VALUE && viaTime + hubOppositeLabel[i+1] < driveTime)
+                return true;
+        }
+        return false;
+    }
+
+    private static ByteBuffer toCompactFormat(Node[] nodesByLabelIndex, int[][] forwardLabels, int[][] backwardLabels) {
+        int nodeCount = nodesByLabelIndex.length;
+        long forwardEntryCount = countEntries(forwardLabels);
+        long backwardEntryCount = countEntries(backwardLabels);
+        long requiredCapacity = HEADER_BYTES + 8L*nodeCount + 8L*(nodeCount+1) + ENTRY_BYTES*(forwardEntryCount+backwardEntryCount);
+        if (requiredCapacity > Integer.MAX_VALUE) {
+            throw new RuntimeException("Hub labels need " + requiredCapacity + " bytes, more than fit in one buffer. "
+                    + "Try labelling fewer nodes?");
+        }
+
+        ByteBuffer bb = ByteBuffer.allocateDirect((int)requiredCapacity).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(FILE_FORMAT_VERSION);
+        bb.putInt(nodeCount);
+        bb.putInt((int)forwardEntryCount);
+        bb.putInt((int)backwardEntryCount);
+        for (Node n : nodesByLabelIndex) {
+            bb.putLong(n.nodeId);
+        }
+        putOffsets(bb, forwardLabels);
+        putOffsets(bb, backwardLabels);
+        putEntries(bb, forwardLabels);
+        putEntries(bb, backwardLabels);
+
+        Preconditions.require(bb.position()==bb.capacity());
+        bb.position(0);
+        return bb;
+    }
+
+    private static long countEntries(int[][] labels) {
+        long count = 0;
+        for (int[] label : labels) {
+            if (label != null)
+                count += label.length/3;
+        }
+        return count;
+    }
+
+    private static void putOffsets(ByteBuffer bb, int[][] labels) {
+        int offset = 0;
+        bb.putInt(offset);
+        for (int[] label : labels) {
+            if (label != null)
+                offset += label.length/3;
+            bb.putInt(offset);
+        }
+    }
+
+    private static void putEntries(ByteBuffer bb, int[][] labels) {
+        for (int[] label : labels) {
+            if (label != null) {
+                for (int value : label) {
+                    bb.putInt(value);
+                }
+            }
+        }
+    }
+
+    public void writeTo(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+                FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer toWrite = bb.duplicate();
+            toWrite.position(0);
+            while (toWrite.hasRemaining()) {
+                channel.write(toWrite);
+            }
+        }
+    }
+
+    public static HubLabels read(MapData allNodes, String filename, MemoryMap memoryMap) throws IOException {
+        Preconditions.checkNoneNull(allNodes, filename, memoryMap);
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+                FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new RuntimeException("Hub label file " + filename + " is too big?");
+            }
+
+            ByteBuffer bb;
+            if (memoryMap == MemoryMap.YES) {
+                bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } else {
+                bb = ByteBuffer.allocateDirect((int)channel.size());
+                while (bb.hasRemaining() && channel.read(bb) >= 0) { }
+                bb.position(0);
+            }
+            return new HubLabels(allNodes, bb.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    public boolean hasLabels(Node n) {
+        int labelIndex = labelIndexByNodeIndex[n.nodeIndex];
+        return getLabelStart(forwardOffsetsStart, labelIndex) != getLabelEnd(forwardOffsetsStart, labelIndex);
+    }
+
+    private int getLabelStart(int offsetsStart, int labelIndex) {
+        return bb.getInt(offsetsStart + 4*labelIndex);
+    }
+
+    private int getLabelEnd(int offsetsStart, int labelIndex) {
+        return bb.getInt(offsetsStart + 4*labelIndex + 4);
+    }
+
+    private int getHub(int entriesStart, int entry) {
+        return bb.getInt(entriesStart + ENTRY_BYTES*entry);
+    }
+
+    private int getDriveTime(int entriesStart, int entry) {
+        return bb.getInt(entriesStart + ENTRY_BYTES*entry + 4);
+    }
+
+    private int getPredecessor(int entriesStart, int entry) {
+        return bb.getInt(entriesStart + ENTRY_BYTES*entry + 8);
+    }
+
+    /**
+     * @return The forward entry and backward entry where the shortest path
+     * peaks, packed as (forwardEntry << 32) | backwardEntry, or -1 if there's
+     * no path.
+     */
+    private long findShortestCommonHub(Node startNode, Node endNode) {
+        int startLabel = labelIndexByNodeIndex[startNode.nodeIndex];
+        int endLabel = labelIndexByNodeIndex[endNode.nodeIndex];
+        int fIdx = getLabelStart(forwardOffsetsStart, startLabel);
+        int fEnd = getLabelEnd(forwardOffsetsStart, startLabel);
+        int bIdx = getLabelStart(backwardOffsetsStart, endLabel);
+        int bEnd = getLabelEnd(backwardOffsetsStart, endLabel);
+
+        long result = -1;
+        int shortestTime = Integer.MAX_VALUE;
+        while (fIdx<fEnd && bIdx<bEnd) {
+            int fHub = getHub(forwardEntriesStart, fIdx);
+            int bHub = getHub(backwardEntriesStart, bIdx);
+
+            if (fHub == bHub) {
+                int time = getDriveTime(forwardEntriesStart, fIdx) + getDriveTime(backwardEntriesStart, bIdx);
+                if (time < shortestTime) {
+                    shortestTime = time;
+                    result = (((long)fIdx) << 32) | bIdx;
+                }
+                fIdx++;
+                bIdx++;
+            } else if (fHub < bHub) {
+                fIdx++;
+            } else {
+                bIdx++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The drive time in milliseconds, or ContractedDijkstra.UNREACHABLE.
+     */
+    public int contractedGraphDistance(Node startNode, Node endNode) {
+        Preconditions.checkNoneNull(startNode, endNode);
+        if (!hasLabels(startNode) || !hasLabels(endNode))
+            return ContractedDijkstra.contractedGraphDistance(startNode, endNode);
+
+        long common = findShortestCommonHub(startNode, endNode);
+        if (common == -1)
+            return ContractedDijkstra.UNREACHABLE;
+        return getDriveTime(forwardEntriesStart, (int)(common >>> 32)) + getDriveTime(backwardEntriesStart, (int)common);
+    }
+
+    public DijkstraSolution contractedGraphDijkstra(Node startNode, Node endNode) {
+        Preconditions.checkNoneNull(startNode, endNode);
+        if (!hasLabels(startNode) || !hasLabels(endNode))
+            return ContractedDijkstra.contractedGraphDijkstra(allNodes, startNode, endNode);
+
+        long common = findShortestCommonHub(startNode, endNode);
+        if (common == -1)
+            return null;
+
+        int forwardEntry = (int)(common >>> 32);
+        int backwardEntry = (int)common;
+        LinkedList<Node> nodes = new LinkedList<>();
+        LinkedList<DirectedEdge> edges = new LinkedList<>();
+
+        // From the hub back to the start node...
+        int labelStart = getLabelStart(forwardOffsetsStart, labelIndexByNodeIndex[startNode.nodeIndex]);
+        int labelEnd = getLabelEnd(forwardOffsetsStart, labelIndexByNodeIndex[startNode.nodeIndex]);
+        int entry = forwardEntry;
+        nodes.addFirst(nodesByLabelIndex[getHub(forwardEntriesStart, entry)]);
+        while (getPredecessor(forwardEntriesStart, entry) != NO_PREDECESSOR) {
+            int predecessorEntry = findEntry(forwardEntriesStart, labelStart, labelEnd, getPredecessor(forwardEntriesStart, entry));
+            Node from = nodesByLabelIndex[getHub(forwardEntriesStart, predecessorEntry)];
+            int edgeTime = getDriveTime(forwardEntriesStart, entry) - getDriveTime(forwardEntriesStart, predecessorEntry);
+            edges.addFirst(findEdge(from, nodes.getFirst(), edgeTime));
+            nodes.addFirst(from);
+            entry = predecessorEntry;
+        }
+
+        // ... then from the hub on to the end node.
+        labelStart = getLabelStart(backwardOffsetsStart, labelIndexByNodeIndex[endNode.nodeIndex]);
+        labelEnd = getLabelEnd(backwardOffsetsStart, labelIndexByNodeIndex[endNode.nodeIndex]);
+        entry = backwardEntry;
+        while (getPredecessor(backwardEntriesStart, entry) != NO_PREDECESSOR) {
+            int predecessorEntry = findEntry(backwardEntriesStart, labelStart, labelEnd, getPredecessor(backwardEntriesStart, entry));
+            Node to = nodesByLabelIndex[getHub(backwardEntriesStart, predecessorEntry)];
+            int edgeTime = getDriveTime(backwardEntriesStart, entry) - getDriveTime(backwardEntriesStart, predecessorEntry);
+            edges.addLast(findEdge(nodes.getLast(), to, edgeTime));
+            nodes.addLast(to);
+            entry = predecessorEntry;
+        }
+
+        int totalDriveTime = getDriveTime(forwardEntriesStart, forwardEntry) + getDriveTime(backwardEntriesStart, backwardEntry);
+        return ContractedDijkstra.unContract(new DijkstraSolution(totalDriveTime, nodes, edges));
+    }
+
+    private int findEntry(int entriesStart, int fromEntry, int toEntry, int hub) {
+        int lo = fromEntry;
+        int hi = toEntry-1;
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            int midHub = getHub(entriesStart, mid);
+            if (midHub < hub) {
+                lo = mid+1;
+            } else if (midHub > hub) {
+                hi = mid-1;
+            } else {
+                return mid;
+            }
+        }
+        throw new RuntimeException("Predecessor " + hub + " missing from hub label?");
+    }
+
+    private static DirectedEdge findEdge(Node from, Node to, int driveTimeMs) {
+        for (DirectedEdge de : from.edgesFrom) {
+            if (de.to==to && de.driveTimeMs==driveTimeMs)
+                return de;
+        }
+        throw new RuntimeException("Couldn't find edge from " + from + " to " + to + " taking " + driveTimeMs + "ms?");
+    }
+
+    public long getEntryCount() {
+        return (long)bb.getInt(12) + bb.getInt(16);
+    }
+
+}
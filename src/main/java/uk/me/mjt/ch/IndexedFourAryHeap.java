@@ -0,0 +1,136 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+
+/**
+ * 4-ary min-heap with O(log n) decrease-key. Entries are (key, item) pairs
+ * packed into a single long, and the heap position of every item is tracked
+ * so an improved key can be sifted up in place - unlike
+ * PriorityQueue.remove(), which is a linear scan.
+ *
+ * A 4-ary heap is shallower than a binary one, and the four children of a
+ * node sit next to each other in memory, so sifting down touches fewer cache
+ * lines even though it does a few more comparisons.
+ */
+public class IndexedFourAryHeap implements MinHeap {
+    private static final int ARITY = 4;
+    private static final int ABSENT = -1;
+
+    private long[] heap;
+    private int[] position;
+    private int size = 0;
+
+    public IndexedFourAryHeap(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        heap = new long[capacity];
+        position = new int[capacity];
+        Arrays.fill(position, ABSENT);
+    }
+
+    private void ensureItemCapacity(int item) {
+        if (item < position.length)
+            return;
+        int oldLength = position.length;
+        position = Arrays.copyOf(position, Math.max(item+1, 2*oldLength));
+        Arrays.fill(position, oldLength, position.length, ABSENT);
+    }
+
+    @Override
+    public void insertOrDecreaseKey(int item, int key) {
+        ensureItemCapacity(item);
+        long packed = (((long)key) << 32) | item;
+        int idx = position[item];
+
+        if (idx == ABSENT) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, 2*heap.length);
+            }
+            siftUp(size++, packed);
+        } else if (packed < heap[idx]) {
+            siftUp(idx, packed);
+        }
+    }
+
+    public boolean contains(int item) {
+        return item < position.length && position[item] != ABSENT;
+    }
+
+    private void siftUp(int idx, long packed) {
+        while (idx > 0) {
+            int parent = (idx-1) / ARITY;
+            long parentValue = heap[parent];
+            if (parentValue <= packed)
+                break;
+            heap[idx] = parentValue;
+            position[(int)parentValue] = idx;
+            idx = parent;
+        }
+        heap[idx] = packed;
+        position[(int)packed] = idx;
+    }
+
+    private void siftDown(int idx, long packed) {
+        while (true) {
+            int firstChild = ARITY*idx + 1;
+            if (firstChild >= size)
+                break;
+
+            int lastChild = Math.min(firstChild+ARITY, size);
+            int minChild = firstChild;
+            long minChildValue = heap[firstChild];
+            for (int child=firstChild+1 ; child<lastChild ; child++) {
+                if (heap[child] < minChildValue) {
+                    minChild = child;
+                    minChildValue = heap[child];
+                }
+            }
+
+            if (packed <= minChildValue)
+                break;
+            heap[idx] = minChildValue;
+            position[(int)minChildValue] = idx;
+            idx = minChild;
+        }
+        heap[idx] = packed;
+        position[(int)packed] = idx;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int peekMinKey() {
+        return (int)(heap[0] >>> 32);
+    }
+
+    @Override
+    public int pollMinItem() {
+        int minItem = (int)heap[0];
+        position[minItem] = ABSENT;
+
+        long last = heap[--size];
+        if (size > 0) {
+            siftDown(0, last);
+        }
+        return minItem;
+    }
+
+    /**
+     * Empties the heap in O(size) rather than O(capacity).
+     */
+    @Override
+    public void clear() {
+        for (int i=0 ; i<size ; i++) {
+            position[(int)heap[i]] = ABSENT;
+        }
+        size = 0;
+    }
+
+}
@@ -0,0 +1,181 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+
+/**
+ * 4-ary min-heap of int items - dense indexes, such as Node.nodeIndex - with
+ * long keys that can go up as well as down. Unlike IndexedFourAryHeap, which
+ * packs an int key and the item into one long and only ever decreases keys,
+ * the whole 64 bits are available to the key - GraphContractor packs its
+ * priority and a tie-break into them.
+ *
+ * Everything is held in primitive arrays sized when the heap is created, so
+ * there's no per-entry object, and no allocation when a key changes. Keys
+ * are stored in heap order alongside the items, so comparisons don't have to
+ * look anything up.
+ */
+public class IndexedLongHeap {
+    private static final int ARITY = 4;
+    private static final int ABSENT = -1;
+
+    private final long[] heapKeys;
+    private final int[] heapItems;
+    private final int[] position;
+    private int size = 0;
+
+    /**
+     * @param capacity One more than the largest item that will be added.
+     */
+    public IndexedLongHeap(int capacity) {
+        Preconditions.require(capacity >= 0);
+        heapKeys = new long[capacity];
+        heapItems = new int[capacity];
+        position = new int[capacity];
+        Arrays.fill(position, ABSENT);
+    }
+
+    /**
+     * Adds the item, or changes its key if it's already present.
+     */
+    public void put(int item, long key) {
+        int idx = position[item];
+        if (idx == ABSENT) {
+            siftUp(size++, key, item);
+        } else if (key < heapKeys[idx]) {
+            siftUp(idx, key, item);
+        } else {
+            siftDown(idx, key, item);
+        }
+    }
+
+    public boolean contains(int item) {
+        return position[item] != ABSENT;
+    }
+
+    public long getKey(int item) {
+        int idx = position[item];
+        if (idx == ABSENT)
+            throw new IllegalArgumentException("Item " + item + " isn't in the heap");
+        return heapKeys[idx];
+    }
+
+    /**
+     * Compares two items by key. Both must be present.
+     */
+    public int compareItems(int a, int b) {
+        return Long.compare(getKey(a), getKey(b));
+    }
+
+    public void remove(int item) {
+        int idx = position[item];
+        if (idx == ABSENT)
+            throw new IllegalArgumentException("Attempt to remove absent item " + item);
+        position[item] = ABSENT;
+
+        size--;
+        if (idx == size)
+            return;
+        long lastKey = heapKeys[size];
+        int lastItem = heapItems[size];
+        if (idx > 0 && lastKey < heapKeys[(idx-1) / ARITY]) {
+            siftUp(idx, lastKey, lastItem);
+        } else {
+            siftDown(idx, lastKey, lastItem);
+        }
+    }
+
+    private void siftUp(int idx, long key, int item) {
+        while (idx > 0) {
+            int parent = (idx-1) / ARITY;
+            if (key >= heapKeys[parent])
+                break;
+            move(parent, idx);
+            idx = parent;
+        }
+        place(idx, key, item);
+    }
+
+    private void siftDown(int idx, long key, int item) {
+        while (true) {
+            int firstChild = ARITY*idx + 1;
+            if (firstChild >= size)
+                break;
+
+            int lastChild = Math.min(firstChild+ARITY, size);
+            int minChild = firstChild;
+            for (int child=firstChild+1 ; child<lastChild ; child++) {
+                if (heapKeys[child] < heapKeys[minChild])
+                    minChild = child;
+            }
+
+            if (heapKeys[minChild] >= key)
+                break;
+            move(minChild, idx);
+            idx = minChild;
+        }
+        place(idx, key, item);
+    }
+
+    private void move(int from, int to) {
+        heapKeys[to] = heapKeys[from];
+        heapItems[to] = heapItems[from];
+        position[heapItems[to]] = to;
+    }
+
+    private void place(int idx, long key, int item) {
+        heapKeys[idx] = key;
+        heapItems[idx] = item;
+        position[item] = idx;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int peekMinItem() {
+        if (size == 0)
+            throw new IllegalStateException("Heap is empty");
+        return heapItems[0];
+    }
+
+    public long peekMinKey() {
+        if (size == 0)
+            throw new IllegalStateException("Heap is empty");
+        return heapKeys[0];
+    }
+
+    public int pollMinItem() {
+        int minItem = peekMinItem();
+        remove(minItem);
+        return minItem;
+    }
+
+    /**
+     * @return Every item in the heap, in no particular order.
+     */
+    public int[] items() {
+        return Arrays.copyOf(heapItems, size);
+    }
+
+    /**
+     * @return The keys of the items returned by items(), in the same order.
+     */
+    public long[] keys() {
+        return Arrays.copyOf(heapKeys, size);
+    }
+
+    /**
+     * Empties the heap in O(size) rather than O(capacity).
+     */
+    public void clear() {
+        for (int i=0 ; i<size ; i++) {
+            position[heapItems[i]] = ABSENT;
+        }
+        size = 0;
+    }
+
+}
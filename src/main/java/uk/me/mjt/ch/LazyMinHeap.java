@@ -0,0 +1,78 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (key, item) pairs packed into a single long, so pushing
+ * and polling never allocates once the backing array has grown. Rather than
+ * supporting decrease-key, an improved key is simply pushed again and the
+ * caller skips items it has already settled when they're polled.
+ */
+public class LazyMinHeap implements MinHeap {
+    private long[] heap;
+    private int size = 0;
+
+    public LazyMinHeap(int initialCapacity) {
+        heap = new long[Math.max(1, initialCapacity)];
+    }
+
+    @Override
+    public void insertOrDecreaseKey(int item, int key) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, 2*heap.length);
+        }
+        long packed = (((long)key) << 32) | item;
+
+        int idx = size++;
+        while (idx > 0) {
+            int parent = (idx-1) >>> 1;
+            if (heap[parent] <= packed)
+                break;
+            heap[idx] = heap[parent];
+            idx = parent;
+        }
+        heap[idx] = packed;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int peekMinKey() {
+        return (int)(heap[0] >>> 32);
+    }
+
+    @Override
+    public int pollMinItem() {
+        long min = heap[0];
+        long last = heap[--size];
+
+        int idx = 0;
+        int half = size >>> 1;
+        while (idx < half) {
+            int child = 2*idx + 1;
+            if (child+1 < size && heap[child+1] < heap[child])
+                child++;
+            if (last <= heap[child])
+                break;
+            heap[idx] = heap[child];
+            idx = child;
+        }
+        heap[idx] = last;
+
+        return (int)min;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+}
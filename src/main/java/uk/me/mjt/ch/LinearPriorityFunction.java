@@ -0,0 +1,46 @@
+package uk.me.mjt.ch;
+
+/**
+ * A weighted sum of the usual contraction priority terms:
+ * <ul>
+ * <li>edge difference - shortcuts added minus edges removed - keeps the
+ * graph sparse;</li>
+ * <li>contracted neighbours spreads contraction evenly over the map, so the
+ * hierarchy doesn't become a long chain;</li>
+ * <li>original edge difference penalises shortcuts that stand for long
+ * paths;</li>
+ * <li>level keeps the hierarchy shallow, which keeps upward searches
+ * small.</li>
+ * </ul>
+ */
+public class LinearPriorityFunction implements PriorityFunction {
+    private final int edgeDifferenceWeight;
+    private final int contractedNeighborsWeight;
+    private final int originalEdgeDifferenceWeight;
+    private final int levelWeight;
+
+    public LinearPriorityFunction(int edgeDifferenceWeight, int contractedNeighborsWeight, int originalEdgeDifferenceWeight, int levelWeight) {
+        this.edgeDifferenceWeight = edgeDifferenceWeight;
+        this.contractedNeighborsWeight = contractedNeighborsWeight;
+        this.originalEdgeDifferenceWeight = originalEdgeDifferenceWeight;
+        this.levelWeight = levelWeight;
+    }
+
+    @Override
+    public int priority(Terms terms) {
+        long sum = (long)edgeDifferenceWeight * terms.getEdgeDifference()
+                + (long)contractedNeighborsWeight * terms.contractedNeighbors
+                + (long)originalEdgeDifferenceWeight * terms.getOriginalEdgeDifference()
+                + (long)levelWeight * terms.level;
+        return (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, sum));
+    }
+
+    @Override
+    public String toString() {
+        return "LinearPriorityFunction(edgeDifference=" + edgeDifferenceWeight
+                + ", contractedNeighbors=" + contractedNeighborsWeight
+                + ", originalEdgeDifference=" + originalEdgeDifferenceWeight
+                + ", level=" + levelWeight + ')';
+    }
+
+}
@@ -12,6 +12,8 @@ public class MapData {
     private final Set<TurnRestriction> turnRestrictions;
     private final AtomicLong maxEdgeId = new AtomicLong();
     private final Multimap<Long,Node> nodesBySourceDataNodeId = new Multimap<>();
+    private final Node[] nodesByIndex;
+    private final ArrayList<DirectedEdge> edgesByIndex = new ArrayList<>();
     
     public MapData(Collection<Node> nodes) {
         this(indexNodesById(nodes), new HashSet(), new DiscardingStatusMonitor());
@@ -25,14 +27,19 @@ public class MapData {
         Preconditions.checkNoneNull(nodesById, turnRestrictions);
         this.nodesById = nodesById;
         this.turnRestrictions = turnRestrictions;
+        this.nodesByIndex = new Node[nodesById.size()];
         generateIndexAndAggregates(monitor);
     }
     
     private void generateIndexAndAggregates(StatusMonitor monitor) {
         long nodesCheckedSoFar = 0;
         monitor.updateStatus(MonitoredProcess.INDEX_MAP_DATA, nodesCheckedSoFar, nodesById.size());
+        boolean keepExistingIndices = nodeIndicesArePermutation();
         
         for (Node n : nodesById.values()) {
+            if (!keepExistingIndices)
+                n.nodeIndex = (int)nodesCheckedSoFar;
+            nodesByIndex[n.nodeIndex] = n;
             findMaxEdgeId(n);
             indexBySourceDataNodeId(n);
             
@@ -41,9 +48,80 @@ public class MapData {
                 monitor.updateStatus(MonitoredProcess.INDEX_MAP_DATA, nodesCheckedSoFar, nodesById.size());
         }
         
+        indexNewEdges();
         monitor.updateStatus(MonitoredProcess.INDEX_MAP_DATA, nodesCheckedSoFar, nodesById.size());
     }
     
+    /**
+     * If the nodes arrive already numbered 0..N-1 - for example because 
+     * BinaryFormat numbered them in the order they're stored in the file, which
+     * is the order a NodeRenumbering left them in - we keep those numbers.
+     */
+    private boolean nodeIndicesArePermutation() {
+        boolean[] seen = new boolean[nodesById.size()];
+        for (Node n : nodesById.values()) {
+            if (n.nodeIndex < 0 || n.nodeIndex >= seen.length || seen[n.nodeIndex])
+                return false;
+            seen[n.nodeIndex] = true;
+        }
+        return true;
+    }
+    
+    private void indexNewEdges(Node n) {
+        for (DirectedEdge de : n.edgesFrom) {
+            if (de.edgeIndex == DirectedEdge.UNINDEXED) {
+                de.edgeIndex = edgesByIndex.size();
+                edgesByIndex.add(de);
+            }
+        }
+    }
+    
+    /**
+     * Give an edge index to any edges added since the map data was created, 
+     * such as the shortcuts added by contraction.
+     */
+    public synchronized void indexNewEdges() {
+        for (Node n : nodesByIndex) {
+            indexNewEdges(n);
+        }
+    }
+    
+    /**
+     * Renumber the nodes so that nodeIndex follows the given order, and the
+     * edges so that each node's outgoing edges are numbered together, in
+     * node index order. Anything built from the old numbering - FrozenGraphs,
+     * Phast, HubLabels, cached PartialSolutions - must be rebuilt afterwards.
+     */
+    public synchronized void renumber(List<Node> nodesInNewOrder) {
+        Preconditions.checkNoneNull(nodesInNewOrder);
+        Preconditions.require(nodesInNewOrder.size() == nodesByIndex.length);
+        for (int i=0 ; i<nodesByIndex.length ; i++) {
+            Node n = nodesInNewOrder.get(i);
+            Preconditions.require(nodesById.get(n.nodeId) == n);
+            nodesByIndex[i] = n;
+            n.nodeIndex = i;
+        }
+        for (int i=0 ; i<nodesByIndex.length ; i++) {
+            if (nodesByIndex[i].nodeIndex != i)
+                throw new IllegalArgumentException("Node " + nodesByIndex[i].nodeId + " appears more than once in the new order");
+        }
+        
+        reindexEdges();
+    }
+    
+    /**
+     * Number the edges afresh, for when edges have been removed or replaced -
+     * see Recontractor. Anything built from the old edge numbering must be
+     * rebuilt afterwards.
+     */
+    public synchronized void reindexEdges() {
+        for (DirectedEdge de : edgesByIndex) {
+            de.edgeIndex = DirectedEdge.UNINDEXED;
+        }
+        edgesByIndex.clear();
+        indexNewEdges();
+    }
+    
     private void findMaxEdgeId(Node n) {
         for (DirectedEdge de : n.edgesFrom) {
             if (de.edgeId > maxEdgeId.get()) {
@@ -72,6 +150,18 @@ public class MapData {
         return nodesById.get(nodeId);
     }
     
+    public Node getNodeByIndex(int nodeIndex) {
+        return nodesByIndex[nodeIndex];
+    }
+    
+    public DirectedEdge getEdgeByIndex(int edgeIndex) {
+        return edgesByIndex.get(edgeIndex);
+    }
+    
+    public int getEdgeCount() {
+        return edgesByIndex.size();
+    }
+    
     public ColocatedNodeSet getNodeBySourceDataId(long nodeId) {
         if (nodesBySourceDataNodeId.containsKey(nodeId))
             return new ColocatedNodeSet(nodesBySourceDataNodeId.get(nodeId));
@@ -98,6 +188,16 @@ public class MapData {
         return new ArrayList(n.subList(0, howMany));
     }
     
+    /**
+     * Array-based copy of the graph, for running queries once contraction is
+     * complete. Changes made to the nodes and edges afterwards won't be 
+     * reflected in it.
+     */
+    public FrozenGraph freeze() {
+        indexNewEdges();
+        return new FrozenGraph(this);
+    }
+    
     public Set<TurnRestriction> allTurnRestrictions() {
         return Collections.unmodifiableSet(turnRestrictions);
     }
@@ -0,0 +1,23 @@
+package uk.me.mjt.ch;
+
+/**
+ * Priority queue of non-negative int items ordered by non-negative int keys,
+ * as used by the Dijkstra implementations. Ties are broken by item, so
+ * search order is deterministic.
+ */
+public interface MinHeap {
+    
+    /**
+     * Add the item, or lower its key if it's already present. Implementations
+     * that don't support decrease-key may instead return the item more than
+     * once from pollMinItem, so callers must skip items they've already
+     * settled.
+     */
+    public void insertOrDecreaseKey(int item, int key);
+    public boolean isEmpty();
+    public int size();
+    public int peekMinKey();
+    public int pollMinItem();
+    public void clear();
+    
+}
@@ -0,0 +1,149 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * A contraction order that doesn't depend on edge weights, for
+ * CustomizableHierarchy. The nodes are split in half at the median latitude
+ * or longitude, whichever way the region is wider. The nodes on one side
+ * with an edge to the other side form a separator; the two halves, without
+ * the separator, are ordered recursively, and the separator goes above both.
+ *
+ * Splitting on coordinates rather than on the graph itself gives bigger
+ * separators than a proper graph partitioner would, but road networks are
+ * planar enough that it works reasonably well, and it needs nothing but the
+ * node coordinates.
+ */
+public class NestedDissectionOrder {
+    private static final int LEAF_SIZE = 16;
+
+    private final MapData allNodes;
+    private final int[] rankByNodeIndex;
+    private final int[] side;
+    private int sideStamp = 0;
+
+    private NestedDissectionOrder(MapData allNodes) {
+        this.allNodes = allNodes;
+        this.rankByNodeIndex = new int[allNodes.getNodeCount()];
+        this.side = new int[allNodes.getNodeCount()];
+    }
+
+    /**
+     * @return A permutation of 0..N-1, indexed by Node.nodeIndex.
+     */
+    public static int[] rankByNodeIndex(MapData allNodes) {
+        Preconditions.checkNoneNull(allNodes);
+        NestedDissectionOrder nd = new NestedDissectionOrder(allNodes);
+        Collection<Node> nodes = allNodes.getAllNodes();
+        nd.dissect(nodes.toArray(new Node[nodes.size()]), 0);
+        return nd.rankByNodeIndex;
+    }
+
+    private void dissect(Node[] nodes, int firstRank) {
+        if (nodes.length <= LEAF_SIZE) {
+            assignRanks(nodes, 0, nodes.length, firstRank);
+            return;
+        }
+
+        sortAlongWiderAxis(nodes);
+        int middle = nodes.length/2;
+        int lowStamp = stampSide(nodes, 0, middle);
+        int highStamp = stampSide(nodes, middle, nodes.length);
+
+        // Take the separator from whichever side has fewer boundary nodes.
+        int lowBoundary = countBoundary(nodes, 0, middle, highStamp);
+        int highBoundary = countBoundary(nodes, middle, nodes.length, lowStamp);
+        boolean separatorOnLowSide = (lowBoundary <= highBoundary);
+        int otherStamp = (separatorOnLowSide ? highStamp : lowStamp);
+        int separatorFrom = (separatorOnLowSide ? 0 : middle);
+        int separatorTo = (separatorOnLowSide ? middle : nodes.length);
+
+        Node[] low = new Node[middle];
+        Node[] high = new Node[nodes.length-middle];
+        Node[] separator = new Node[Math.min(lowBoundary, highBoundary)];
+        int lowCount = 0, highCount = 0, separatorCount = 0;
+        for (int i=0 ; i<nodes.length ; i++) {
+            Node n = nodes[i];
+            if (i >= separatorFrom && i < separatorTo && isBoundary(n, otherStamp)) {
+                separator[separatorCount++] = n;
+            } else if (i < middle) {
+                low[lowCount++] = n;
+            } else {
+                high[highCount++] = n;
+            }
+        }
+
+        dissect(Arrays.copyOf(low, lowCount), firstRank);
+        dissect(Arrays.copyOf(high, highCount), firstRank+lowCount);
+        assignRanks(separator, 0, separatorCount, firstRank+lowCount+highCount);
+    }
+
+    private void assignRanks(Node[] nodes, int from, int to, int firstRank) {
+        for (int i=from ; i<to ; i++) {
+            rankByNodeIndex[nodes[i].nodeIndex] = firstRank + i - from;
+        }
+    }
+
+    private static void sortAlongWiderAxis(Node[] nodes) {
+        float minLat = Float.MAX_VALUE, maxLat = -Float.MAX_VALUE;
+        float minLon = Float.MAX_VALUE, maxLon = -Float.MAX_VALUE;
+        for (Node n : nodes) {
+            minLat = Math.min(minLat, n.lat);
+            maxLat = Math.max(maxLat, n.lat);
+            minLon = Math.min(minLon, n.lon);
+            maxLon = Math.max(maxLon, n.lon);
+        }
+        double lonScale = Math.cos(Math.toRadians((minLat+maxLat)/2));
+        boolean byLat = (maxLat-minLat >= (maxLon-minLon)*lonScale);
+
+        Arrays.sort(nodes, byLat ? BY_LAT : BY_LON);
+    }
+
+    private int stampSide(Node[] nodes, int from, int to) {
+        sideStamp++;
+        for (int i=from ; i<to ; i++) {
+            side[nodes[i].nodeIndex] = sideStamp;
+        }
+        return sideStamp;
+    }
+
+    private int countBoundary(Node[] nodes, int from, int to, int otherStamp) {
+        int count = 0;
+        for (int i=from ; i<to ; i++) {
+            if (isBoundary(nodes[i], otherStamp))
+                count++;
+        }
+        return count;
+    }
+
+    private boolean isBoundary(Node n, int otherStamp) {
+        for (DirectedEdge de : n.edgesFrom) {
+            if (!de.isShortcut() && side[de.to.nodeIndex] == otherStamp)
+                return true;
+        }
+        for (DirectedEdge de : n.edgesTo) {
+            if (!de.isShortcut() && side[de.from.nodeIndex] == otherStamp)
+                return true;
+        }
+        return false;
+    }
+
+    private static final Comparator<Node> BY_LAT = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            int result = Float.compare(a.lat, b.lat);
+            return (result != 0 ? result : Long.compare(a.nodeId, b.nodeId));
+        }
+    };
+
+    private static final Comparator<Node> BY_LON = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            int result = Float.compare(a.lon, b.lon);
+            return (result != 0 ? result : Long.compare(a.nodeId, b.nodeId));
+        }
+    };
+
+}
@@ -4,6 +4,7 @@ import java.util.*;
 
 public class Node implements Comparable<Node> {
     public static final int UNCONTRACTED = Integer.MAX_VALUE;
+    public static final int UNINDEXED = -1;
     
     public final long nodeId;
     public final long sourceDataNodeId;
@@ -16,6 +17,9 @@ public class Node implements Comparable<Node> {
 
     public int contractionOrder = UNCONTRACTED;
     
+    // Dense 0..N-1 index, assigned by MapData, for array-backed search state.
+    public int nodeIndex = UNINDEXED;
+    
     public Node(long nodeId, float lat, float lon, Barrier barrier) {
         this(nodeId, nodeId, lat, lon, barrier);
     }
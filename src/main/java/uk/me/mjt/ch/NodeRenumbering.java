@@ -0,0 +1,214 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Renumbers the nodes of a contracted MapData, so the array-backed search
+ * structures indexed by Node.nodeIndex - DijkstraSearchContext, FrozenGraph,
+ * Phast - touch nearby memory when they follow an edge. Out of the box, node
+ * indices follow HashMap iteration order, which has nothing to do with the
+ * shape of the graph.
+ *
+ * CONTRACTION_ORDER puts the highest-ranked nodes first. Every upward search
+ * ends up among them, so they stay in cache between queries, and a search
+ * moves steadily towards the start of the arrays.
+ *
+ * HILBERT_CURVE orders nodes along a Hilbert curve over their lat/lon, so
+ * nodes near each other on the map are near each other in memory. That suits
+ * the bottom of the hierarchy, where edges are short.
+ *
+ * HYBRID puts the top 1/HYBRID_TOP_LEVEL_DIVISOR of nodes first in
+ * contraction order, and the rest in Hilbert curve order.
+ *
+ * Renumbering has to happen before FrozenGraphs, caches and so on are built.
+ * BinaryFormat writes nodes in index order, so the numbering is kept when the
+ * graph is written and read back.
+ */
+public class NodeRenumbering {
+    public enum Ordering { CONTRACTION_ORDER, HILBERT_CURVE, HYBRID }
+
+    public static final int HYBRID_TOP_LEVEL_DIVISOR = 64;
+    private static final int HILBERT_BITS = 16;
+    private static final int CACHE_LINE_INTS = 16;
+
+    public static void renumber(MapData allNodes, Ordering ordering) {
+        Preconditions.checkNoneNull(allNodes, ordering);
+        allNodes.renumber(newOrder(allNodes.getAllNodes(), ordering));
+    }
+
+    static List<Node> newOrder(Iterable<Node> nodes, Ordering ordering) {
+        ArrayList<SortKey> keys = new ArrayList<>();
+        BoundingBox bbox = new BoundingBox(nodes);
+        for (Node n : nodes) {
+            keys.add(new SortKey(n, bbox.hilbertIndex(n)));
+        }
+
+        Collections.sort(keys, BY_CONTRACTION_ORDER_DESCENDING);
+        if (ordering == Ordering.HILBERT_CURVE) {
+            Collections.sort(keys, BY_HILBERT_INDEX);
+        } else if (ordering == Ordering.HYBRID) {
+            int topLevelCount = keys.size()/HYBRID_TOP_LEVEL_DIVISOR;
+            Collections.sort(keys.subList(topLevelCount, keys.size()), BY_HILBERT_INDEX);
+        }
+
+        ArrayList<Node> result = new ArrayList<>(keys.size());
+        for (SortKey key : keys) {
+            result.add(key.node);
+        }
+        return result;
+    }
+
+    private static final class SortKey {
+        final Node node;
+        final long hilbertIndex;
+
+        SortKey(Node node, long hilbertIndex) {
+            this.node = node;
+            this.hilbertIndex = hilbertIndex;
+        }
+    }
+
+    private static final Comparator<SortKey> BY_CONTRACTION_ORDER_DESCENDING = new Comparator<SortKey>() {
+        @Override
+        public int compare(SortKey a, SortKey b) {
+            if (a.node.contractionOrder != b.node.contractionOrder)
+                return Integer.compare(b.node.contractionOrder, a.node.contractionOrder);
+            else if (a.hilbertIndex != b.hilbertIndex)
+                return Long.compare(a.hilbertIndex, b.hilbertIndex);
+            else
+                return Long.compare(a.node.nodeId, b.node.nodeId);
+        }
+    };
+
+    private static final Comparator<SortKey> BY_HILBERT_INDEX = new Comparator<SortKey>() {
+        @Override
+        public int compare(SortKey a, SortKey b) {
+            if (a.hilbertIndex != b.hilbertIndex)
+                return Long.compare(a.hilbertIndex, b.hilbertIndex);
+            else
+                return Long.compare(a.node.nodeId, b.node.nodeId);
+        }
+    };
+
+    private static final class BoundingBox {
+        float minLat = Float.MAX_VALUE;
+        float maxLat = -Float.MAX_VALUE;
+        float minLon = Float.MAX_VALUE;
+        float maxLon = -Float.MAX_VALUE;
+
+        BoundingBox(Iterable<Node> nodes) {
+            for (Node n : nodes) {
+                minLat = Math.min(minLat, n.lat);
+                maxLat = Math.max(maxLat, n.lat);
+                minLon = Math.min(minLon, n.lon);
+                maxLon = Math.max(maxLon, n.lon);
+            }
+        }
+
+        long hilbertIndex(Node n) {
+            return NodeRenumbering.hilbertIndex(toGrid(n.lon, minLon, maxLon), toGrid(n.lat, minLat, maxLat));
+        }
+
+        private static int toGrid(float value, float min, float max) {
+            if (max <= min)
+                return 0;
+            int gridMax = (1<<HILBERT_BITS)-1;
+            return (int)Math.min(gridMax, (long)(gridMax*((double)value-min)/((double)max-min)));
+        }
+    }
+
+    /**
+     * Position of (x,y) along a Hilbert curve filling a 2^16 by 2^16 grid.
+     */
+    static long hilbertIndex(int x, int y) {
+        long d = 0;
+        for (int s=1<<(HILBERT_BITS-1) ; s>0 ; s>>=1) {
+            int rx = ((x & s) != 0 ? 1 : 0);
+            int ry = ((y & s) != 0 ? 1 : 0);
+            d += (long)s * s * ((3*rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s-1-x;
+                    y = s-1-y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Run upward searches in both directions from each start node, and measure
+     * how far apart, in node index, the two ends of each edge relaxed are -
+     * roughly how far apart in memory the search state for them is.
+     */
+    public static IndexDistance measureIndexDistance(List<Node> startNodes) {
+        Preconditions.checkNoneNull(startNodes);
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        IndexDistance result = new IndexDistance();
+
+        for (Node startNode : startNodes) {
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(startNode), Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.YES, context);
+            for (int i=0 ; i<context.getSettledCount() ; i++) {
+                Node n = context.getSettledNode(i);
+                for (DirectedEdge de : n.edgesFrom) {
+                    if (de.to.contractionOrder < n.contractionOrder)
+                        break;
+                    result.add(n.nodeIndex, de.to.nodeIndex);
+                }
+            }
+
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(startNode), Dijkstra.Direction.BACKWARDS, Dijkstra.StallOnDemand.YES, context);
+            for (int i=0 ; i<context.getSettledCount() ; i++) {
+                Node n = context.getSettledNode(i);
+                for (DirectedEdge de : n.edgesTo) {
+                    if (de.from.contractionOrder < n.contractionOrder)
+                        break;
+                    result.add(n.nodeIndex, de.from.nodeIndex);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static final class IndexDistance {
+        private long relaxedEdges = 0;
+        private long totalDistance = 0;
+        private long sameCacheLine = 0;
+
+        private void add(int fromIndex, int toIndex) {
+            relaxedEdges++;
+            totalDistance += Math.abs((long)fromIndex - toIndex);
+            if (fromIndex/CACHE_LINE_INTS == toIndex/CACHE_LINE_INTS)
+                sameCacheLine++;
+        }
+
+        public long getRelaxedEdges() {
+            return relaxedEdges;
+        }
+
+        public double getAverageDistance() {
+            return (relaxedEdges == 0 ? 0 : (double)totalDistance/relaxedEdges);
+        }
+
+        /**
+         * @return The fraction of relaxed edges whose ends share a 64-byte
+         * line of an int array indexed by node.
+         */
+        public double getSameCacheLineFraction() {
+            return (relaxedEdges == 0 ? 0 : (double)sameCacheLine/relaxedEdges);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d edges relaxed, average index distance %.0f, %.1f%% within a cache line",
+                    relaxedEdges, getAverageDistance(), 100*getSameCacheLineFraction());
+        }
+    }
+
+}
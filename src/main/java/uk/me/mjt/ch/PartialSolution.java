@@ -7,7 +7,13 @@ import java.nio.IntBuffer;
 import java.util.*;
 
 public abstract class PartialSolution {
-    private static final long START_NODE_TO_START_NODE_PATH = Long.MIN_VALUE;
+    public static final int BYTES_PER_RECORD = 16;
+    static final int START_NODE_TO_START_NODE_PATH = -1;
+    
+    private static final int CONTRACTION_ORDER_COLUMN = 0;
+    private static final int NODE_INDEX_COLUMN = 1;
+    private static final int TOTAL_DRIVE_TIME_COLUMN = 2;
+    private static final int VIA_EDGE_INDEX_COLUMN = 3;
     
     private final int recordCount;
     private final ByteBuffer bb;
@@ -20,11 +26,19 @@ public abstract class PartialSolution {
         bb = makeCompactFormat(individualNodeSolutions);
     }
     
+    private PartialSolution(DijkstraSearchContext context) {
+        Preconditions.checkNoneNull(context);
+        context.sortSettledByContractionOrder();
+        
+        recordCount = context.getSettledCount();
+        bb = makeCompactFormat(context);
+    }
+    
     private PartialSolution(ByteBuffer bb) {
         Preconditions.checkNoneNull(bb);
         Preconditions.require(bb.position()==0, bb.limit()==bb.capacity(), bb.isDirect(), bb.order()==ByteOrder.LITTLE_ENDIAN);
         recordCount = bb.getInt(0);
-        int expectedCapacity = 24*recordCount + 4;
+        int expectedCapacity = BYTES_PER_RECORD*recordCount + 4;
         Preconditions.require(bb.capacity()==expectedCapacity);
         this.bb = bb;
     }
@@ -32,25 +46,23 @@ public abstract class PartialSolution {
     public DijkstraSolution getDijkstraSolution(MapData md, int index) {
         LinkedList<DirectedEdge> edges = new LinkedList();
         LinkedList<Node> nodes = new LinkedList();
-        ContractionOrderList contractionOrderList = new ContractionOrderList();
         
         int currentIdx = index;
-        Node thisNode = md.getNodeById(getNodeId(currentIdx));
-        final boolean from = searchInFromDirection(thisNode, getViaEdge(currentIdx));
+        Node thisNode = md.getNodeByIndex(getNodeIndex(currentIdx));
         
         while (currentIdx >= 0) {
             nodes.addFirst(thisNode);
-            long viaEdgeId = getViaEdge(currentIdx);
-            if (viaEdgeId != START_NODE_TO_START_NODE_PATH) {
-                DirectedEdge viaEdge = findEdgeWithId(thisNode, viaEdgeId, from);
+            int viaEdgeIndex = getViaEdgeIndex(currentIdx);
+            if (viaEdgeIndex != START_NODE_TO_START_NODE_PATH) {
+                DirectedEdge viaEdge = md.getEdgeByIndex(viaEdgeIndex);
                 edges.addFirst(viaEdge);
-                Node nextNode = (from?viaEdge.to:viaEdge.from);
+                Node nextNode = (viaEdge.to==thisNode ? viaEdge.from : viaEdge.to);
                 if (nextNode.contractionOrder > thisNode.contractionOrder) {
                     throw new RuntimeException("Unexpectedly following edge from earlier-contracted node towards "
                             + "later-contracted node? " + thisNode + " vs " + nextNode);
                 }
                 thisNode = nextNode;
-                currentIdx = Collections.binarySearch(contractionOrderList, nextNode.contractionOrder);
+                currentIdx = findContractionOrder(nextNode.contractionOrder, currentIdx);
             } else {
                 break;
             }
@@ -60,31 +72,25 @@ public abstract class PartialSolution {
         return result;
     }
     
-    private boolean searchInFromDirection(Node node, long edgeId) {
-        if (edgeId == START_NODE_TO_START_NODE_PATH)
-            return true; // Doesn't matter.
-        
-        try {
-            findEdgeWithId(node, edgeId, true);
-            return true;
-        } catch (EdgeNotFoundException e) {
-            findEdgeWithId(node, edgeId, false);
-            return false;
-        }
-    }
-    
-    private DirectedEdge findEdgeWithId(Node node, long edgeId, boolean from) {
-        for (DirectedEdge de : (from?node.edgesFrom:node.edgesTo)) {
-            if (de.edgeId==edgeId)
-                return de;
-        }
-        throw new EdgeNotFoundException();
-    }
-    
-    private class EdgeNotFoundException extends RuntimeException {
-        public EdgeNotFoundException() {
-            super("Couldn't find requested edge, which shouldn't happen?");
+    /**
+     * Binary search for a contraction order, which will be before toIdx as 
+     * we're following edges down the hierarchy.
+     */
+    private int findContractionOrder(int contractionOrder, int toIdx) {
+        int lo = 0;
+        int hi = toIdx;
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            int midValue = getContractionOrder(mid);
+            if (midValue < contractionOrder) {
+                lo = mid+1;
+            } else if (midValue > contractionOrder) {
+                hi = mid-1;
+            } else {
+                return mid;
+            }
         }
+        return -1;
     }
     
     private static void sortByContractionOrder(List<DijkstraSolution> individualNodeSolutions) {
@@ -102,50 +108,79 @@ public abstract class PartialSolution {
         });
     }
     
-    /**
-     * This compact format is intended to speed up mergeUpwardAndDownwardSolutions.
-     * The ideas are:
-     *  1. No need to dereference any object references
-     *  2. Uses contiguous memory, which should allow efficient use of main memory bandwidth.
-     *  3. Small enough to fit into L2 cache - or maybe even L1 cache!
-     */
     private static ByteBuffer makeCompactFormat(List<DijkstraSolution> individualNodeSolutions) {
         int recordCount = individualNodeSolutions.size();
+        ByteBuffer bb = allocateCompactFormat(recordCount);
         
-        int requiredCapacity = 24*recordCount + 4;
-        ByteBuffer bb = ByteBuffer.allocateDirect(requiredCapacity);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        
-        bb.putInt(0,recordCount);
-        
-        int contractionOrderOffset = 4;
-        int nodeIdOffset = contractionOrderOffset + 4*recordCount;
-        int totalDriveTimeOffset = nodeIdOffset + 8*recordCount;
-        int viaEdgesOffset = totalDriveTimeOffset + 4*recordCount;
-        
-        for (int i=0 ; i<individualNodeSolutions.size() ; i++) {
+        for (int i=0 ; i<recordCount ; i++) {
             DijkstraSolution ds = individualNodeSolutions.get(i);
             Node n = ds.getLastNode();
-            bb.putLong(nodeIdOffset+8*i, n.nodeId);
-            bb.putInt(contractionOrderOffset+4*i, n.contractionOrder);
-            bb.putInt(totalDriveTimeOffset+4*i, ds.totalDriveTimeMs);
-            
             List<DirectedEdge> directedEdges = ds.getDeltaEdges();
-
+            
+            int viaEdgeIndex;
             if (directedEdges.size() == 1) {
-                DirectedEdge de = directedEdges.get(0);
-                bb.putLong(viaEdgesOffset+8*i, de.edgeId);
+                viaEdgeIndex = indexOf(directedEdges.get(0));
             } else if (ds.getFirstNode().equals(ds.getLastNode()) && directedEdges.isEmpty()) {
-                bb.putLong(viaEdgesOffset+8*i, START_NODE_TO_START_NODE_PATH);
+                viaEdgeIndex = START_NODE_TO_START_NODE_PATH;
             } else {
                 throw new RuntimeException("Delta edge length isn't 1?");
             }
+            putRecord(bb, i, n.contractionOrder, n.nodeIndex, ds.totalDriveTimeMs, viaEdgeIndex);
         }
-        bb.position(0);
-        bb.limit(bb.capacity());
         return bb;
     }
 
+    private static ByteBuffer makeCompactFormat(DijkstraSearchContext context) {
+        int recordCount = context.getSettledCount();
+        ByteBuffer bb = allocateCompactFormat(recordCount);
+        
+        for (int i=0 ; i<recordCount ; i++) {
+            Node n = context.getSettledNode(i);
+            DirectedEdge via = context.getSettledVia(i);
+            putRecord(bb, i, n.contractionOrder, n.nodeIndex, context.getSettledDriveTime(i),
+                    (via==null ? START_NODE_TO_START_NODE_PATH : indexOf(via)));
+        }
+        return bb;
+    }
+
+    private static int indexOf(DirectedEdge de) {
+        if (de.edgeIndex == DirectedEdge.UNINDEXED) {
+            throw new IllegalStateException("Edge " + de + " hasn't been indexed - call MapData.indexNewEdges() after adding edges.");
+        }
+        return de.edgeIndex;
+    }
+    
+    /**
+     * This compact format is intended to speed up mergeUpwardAndDownwardSolutions.
+     * The ideas are:
+     *  1. No need to dereference any object references
+     *  2. Uses contiguous memory, which should allow efficient use of main memory bandwidth.
+     *  3. Small enough to fit into L2 cache - or maybe even L1 cache!
+     *  4. Nodes and edges are stored as MapData indices, so each record is 16
+     *     bytes and reading a path back doesn't need any map lookups.
+     * 
+     * The record count comes first, followed by one column of ints for each
+     * field. Fill it in with putRecord, in contraction order.
+     */
+    static ByteBuffer allocateCompactFormat(int recordCount) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(BYTES_PER_RECORD*recordCount + 4);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(0,recordCount);
+        return bb;
+    }
+    
+    static void putRecord(ByteBuffer bb, int idx, int contractionOrder, int nodeIndex, int totalDriveTime, int viaEdgeIndex) {
+        int recordCount = bb.getInt(0);
+        bb.putInt(offset(CONTRACTION_ORDER_COLUMN, recordCount, idx), contractionOrder);
+        bb.putInt(offset(NODE_INDEX_COLUMN, recordCount, idx), nodeIndex);
+        bb.putInt(offset(TOTAL_DRIVE_TIME_COLUMN, recordCount, idx), totalDriveTime);
+        bb.putInt(offset(VIA_EDGE_INDEX_COLUMN, recordCount, idx), viaEdgeIndex);
+    }
+    
+    private static int offset(int column, int recordCount, int idx) {
+        return 4 + 4*column*recordCount + 4*idx;
+    }
+
     public int getSize() {
         return recordCount;
     }
@@ -155,58 +190,44 @@ public abstract class PartialSolution {
     }
     
     public int getContractionOrder(int idx) {
-        int offset = 4 + 4*idx;
-        return bb.getInt(offset);
+        return bb.getInt(offset(CONTRACTION_ORDER_COLUMN, recordCount, idx));
     }
     
-    private long getNodeId(int idx) {
-        int offset = 4 + 4*recordCount + 8*idx;
-        return bb.getLong(offset);
+    private int getNodeIndex(int idx) {
+        return bb.getInt(offset(NODE_INDEX_COLUMN, recordCount, idx));
     }
     
-    private int getTotalDriveTime(int idx) {
-        int offset = 4 + 12*recordCount + 4*idx;
-        return bb.getInt(offset);
+    public int getTotalDriveTime(int idx) {
+        return bb.getInt(offset(TOTAL_DRIVE_TIME_COLUMN, recordCount, idx));
     }
     
-    private long getViaEdge(int idx) {
-        int offset = 4 + 16*recordCount + 8*idx;
-        return bb.getLong(offset);
+    private int getViaEdgeIndex(int idx) {
+        return bb.getInt(offset(VIA_EDGE_INDEX_COLUMN, recordCount, idx));
     }
     
     public IntBuffer getTotalDriveTimeBuffer() {
-        ByteBuffer bbDupe = bb.duplicate();
-        bbDupe.position(4 + 12*recordCount);
-        bbDupe.limit(4 + 16*recordCount);
-        ByteBuffer view = bbDupe.slice().order(ByteOrder.LITTLE_ENDIAN);
-        return view.asIntBuffer();
+        return getColumnBuffer(TOTAL_DRIVE_TIME_COLUMN);
     }
     
     public IntBuffer getContractionOrderBuffer() {
+        return getColumnBuffer(CONTRACTION_ORDER_COLUMN);
+    }
+    
+    private IntBuffer getColumnBuffer(int column) {
         ByteBuffer bbDupe = bb.duplicate();
-        bbDupe.position(4);
-        bbDupe.limit(4 + 4*recordCount);
+        bbDupe.position(offset(column, recordCount, 0));
+        bbDupe.limit(offset(column, recordCount, recordCount));
         ByteBuffer view = bbDupe.slice().order(ByteOrder.LITTLE_ENDIAN);
         return view.asIntBuffer();
     }
     
-    private class ContractionOrderList extends AbstractList<Integer> {
-        @Override
-        public Integer get(int index) {
-            return getContractionOrder(index);
-        }
-
-        @Override
-        public int size() {
-            return recordCount;
-        }
-    }
-    
-    
     public static class UpwardSolution extends PartialSolution {
         public UpwardSolution(List<DijkstraSolution> ds) {
             super(ds);
         }
+        public UpwardSolution(DijkstraSearchContext context) {
+            super(context);
+        }
         public UpwardSolution(ByteBuffer bb) {
             super(bb);
         }
@@ -216,6 +237,9 @@ public abstract class PartialSolution {
         public DownwardSolution(List<DijkstraSolution> ds) {
             super(ds);
         }
+        public DownwardSolution(DijkstraSearchContext context) {
+            super(context);
+        }
         public DownwardSolution(ByteBuffer bb) {
             super(bb);
         }
@@ -0,0 +1,176 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One-to-all drive times on a contracted graph, using PHAST. An upward search
+ * from the source finds the drive time to everything above it in the
+ * hierarchy, then a single pass over every node, from the highest contraction
+ * order to the lowest, pulls drive times down along the edges from
+ * higher-ranked nodes. By the time we reach a node, everything above it is
+ * final, so there's no priority queue at all.
+ *
+ * The downward edges are stored by sweep position in flat arrays, so the
+ * sweep reads memory almost sequentially. The multi-source version keeps the
+ * drive times for 16 sources next to each other - one cache line per node -
+ * and relaxes each edge for all of them at once.
+ */
+public class Phast {
+    public static final int SOURCES_PER_SWEEP = 16;
+
+    // Half of MAX_VALUE, so adding an edge to it can't overflow.
+    private static final int INFINITY = Integer.MAX_VALUE/2;
+
+    private final int nodeCount;
+    private final int[] positionByNodeIndex;
+    private final int[] nodeIndexByPosition;
+    private final int[] incomingOffsets;
+    private final int[] incomingSourcePositions;
+    private final int[] incomingDriveTimes;
+
+    public Phast(MapData allNodes) {
+        Preconditions.checkNoneNull(allNodes);
+        nodeCount = allNodes.getNodeCount();
+
+        ArrayList<Node> sweepOrder = new ArrayList<>(allNodes.getAllNodes());
+        Collections.sort(sweepOrder, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return Integer.compare(b.contractionOrder, a.contractionOrder);
+            }
+        });
+
+        positionByNodeIndex = new int[nodeCount];
+        nodeIndexByPosition = new int[nodeCount];
+        int edgeCount = 0;
+        for (int position=0 ; position<nodeCount ; position++) {
+            Node n = sweepOrder.get(position);
+            positionByNodeIndex[n.nodeIndex] = position;
+            nodeIndexByPosition[position] = n.nodeIndex;
+            edgeCount += countDownwardEdgesTo(n);
+        }
+
+        incomingOffsets = new int[nodeCount+1];
+        incomingSourcePositions = new int[edgeCount];
+        incomingDriveTimes = new int[edgeCount];
+        int edgeIdx = 0;
+        for (int position=0 ; position<nodeCount ; position++) {
+            Node n = sweepOrder.get(position);
+            incomingOffsets[position] = edgeIdx;
+            for (DirectedEdge de : n.edgesTo) {
+                if (de.from.contractionOrder <= n.contractionOrder)
+                    break;
+                incomingSourcePositions[edgeIdx] = positionByNodeIndex[de.from.nodeIndex];
+                incomingDriveTimes[edgeIdx] = de.driveTimeMs;
+                edgeIdx++;
+            }
+        }
+        incomingOffsets[nodeCount] = edgeIdx;
+    }
+
+    /**
+     * Edges into n from strictly higher-ranked nodes. Uncontracted nodes
+     * share a contraction order, so edges between them aren't swept - but
+     * the upward search doesn't stop at equal-ranked nodes, so it will
+     * already have found the drive times between them.
+     */
+    private static int countDownwardEdgesTo(Node n) {
+        int count = 0;
+        for (DirectedEdge de : n.edgesTo) {
+            if (de.from.contractionOrder <= n.contractionOrder)
+                break;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Drive times in milliseconds, indexed by Node.nodeIndex, with
+     * ContractedDijkstra.UNREACHABLE for nodes that can't be reached.
+     */
+    public int[] oneToAll(Node source) {
+        Preconditions.checkNoneNull(source);
+        int[] driveTimes = new int[nodeCount];
+        Arrays.fill(driveTimes, INFINITY);
+
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        Dijkstra.contractedSearch(ColocatedNodeSet.singleton(source), Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.YES, context);
+        for (int i=0 ; i<context.getSettledCount() ; i++) {
+            driveTimes[positionByNodeIndex[context.getSettledNode(i).nodeIndex]] = context.getSettledDriveTime(i);
+        }
+
+        for (int position=0 ; position<nodeCount ; position++) {
+            int best = driveTimes[position];
+            for (int e=incomingOffsets[position] ; e<incomingOffsets[position+1] ; e++) {
+                int viaTime = driveTimes[incomingSourcePositions[e]] + incomingDriveTimes[e];
+                if (viaTime < best)
+                    best = viaTime;
+            }
+            driveTimes[position] = best;
+        }
+
+        int[] result = new int[nodeCount];
+        for (int position=0 ; position<nodeCount ; position++) {
+            result[nodeIndexByPosition[position]] = toResult(driveTimes[position]);
+        }
+        return result;
+    }
+
+    /**
+     * As oneToAll, for each of the sources, sweeping SOURCES_PER_SWEEP of
+     * them at a time.
+     * @return Drive times indexed [source][Node.nodeIndex].
+     */
+    public int[][] manyToAll(List<Node> sources) {
+        Preconditions.checkNoneNull(sources);
+        int[][] result = new int[sources.size()][];
+        int[] driveTimes = new int[nodeCount*SOURCES_PER_SWEEP];
+
+        for (int batchStart=0 ; batchStart<sources.size() ; batchStart+=SOURCES_PER_SWEEP) {
+            int batchSize = Math.min(SOURCES_PER_SWEEP, sources.size()-batchStart);
+            sweepBatch(sources.subList(batchStart, batchStart+batchSize), driveTimes);
+
+            for (int k=0 ; k<batchSize ; k++) {
+                int[] row = new int[nodeCount];
+                for (int position=0 ; position<nodeCount ; position++) {
+                    row[nodeIndexByPosition[position]] = toResult(driveTimes[position*SOURCES_PER_SWEEP + k]);
+                }
+                result[batchStart+k] = row;
+            }
+        }
+        return result;
+    }
+
+    private void sweepBatch(List<Node> batch, int[] driveTimes) {
+        final int K = SOURCES_PER_SWEEP;
+        Arrays.fill(driveTimes, INFINITY);
+
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        for (int k=0 ; k<batch.size() ; k++) {
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(batch.get(k)), Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.YES, context);
+            for (int i=0 ; i<context.getSettledCount() ; i++) {
+                driveTimes[K*positionByNodeIndex[context.getSettledNode(i).nodeIndex] + k] = context.getSettledDriveTime(i);
+            }
+        }
+
+        for (int position=0 ; position<nodeCount ; position++) {
+            int to = K*position;
+            for (int e=incomingOffsets[position] ; e<incomingOffsets[position+1] ; e++) {
+                int from = K*incomingSourcePositions[e];
+                int edgeTime = incomingDriveTimes[e];
+                for (int k=0 ; k<K ; k++) {
+                    driveTimes[to+k] = Math.min(driveTimes[to+k], driveTimes[from+k] + edgeTime);
+                }
+            }
+        }
+    }
+
+    private static int toResult(int driveTime) {
+        return (driveTime >= INFINITY ? ContractedDijkstra.UNREACHABLE : driveTime);
+    }
+
+}
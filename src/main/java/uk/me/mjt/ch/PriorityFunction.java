@@ -0,0 +1,71 @@
+package uk.me.mjt.ch;
+
+/**
+ * Decides the order GraphContractor contracts nodes in - lowest priority
+ * first, with ties broken by a hash of the node ID. Priorities are ints so
+ * GraphContractor can pack the tie-break into the same long queue key.
+ */
+public interface PriorityFunction {
+
+    int priority(Terms terms);
+
+    /**
+     * What contracting a node would do, at the time it's considered.
+     */
+    public static final class Terms {
+        /** Uncontracted edges in and out of the node. */
+        public final int edgesRemoved;
+        public final int shortcutsAdded;
+        /** Original, uncontracted edges that the removed edges stand for. */
+        public final int originalEdgesRemoved;
+        /** Original edges that the new shortcuts would stand for. */
+        public final int originalEdgesAdded;
+        /** Neighbours contracted before this node. */
+        public final int contractedNeighbors;
+        /** One more than the highest level of any contracted neighbour. */
+        public final int level;
+        /** Deepest contraction depth of any edge in or out of the node. */
+        public final int contractionDepth;
+
+        public Terms(int edgesRemoved, int shortcutsAdded, int originalEdgesRemoved, int originalEdgesAdded,
+                int contractedNeighbors, int level, int contractionDepth) {
+            this.edgesRemoved = edgesRemoved;
+            this.shortcutsAdded = shortcutsAdded;
+            this.originalEdgesRemoved = originalEdgesRemoved;
+            this.originalEdgesAdded = originalEdgesAdded;
+            this.contractedNeighbors = contractedNeighbors;
+            this.level = level;
+            this.contractionDepth = contractionDepth;
+        }
+
+        public int getEdgeDifference() {
+            return shortcutsAdded - edgesRemoved;
+        }
+
+        public int getOriginalEdgeDifference() {
+            return originalEdgesAdded - originalEdgesRemoved;
+        }
+    }
+
+    /**
+     * The original ordering: nodes whose contraction removes at least as many
+     * edges as it adds come first, then shallower contraction depth, then
+     * larger edge reduction. Depth gets 14 bits and edge reduction 16, and
+     * both are capped to fit.
+     */
+    public static final PriorityFunction EDGE_REDUCTION = new PriorityFunction() {
+        @Override
+        public int priority(Terms terms) {
+            int edgeReduction = Math.max(-0x7FFF, Math.min(0x7FFF, -terms.getEdgeDifference()));
+            int group = (edgeReduction >= 0 ? 0 : 1);
+            int depth = Math.min(terms.contractionDepth, 0x3FFF);
+            return (group << 30) | (depth << 16) | (0x7FFF - edgeReduction);
+        }
+
+        @Override
+        public String toString() {
+            return "EDGE_REDUCTION";
+        }
+    };
+
+}
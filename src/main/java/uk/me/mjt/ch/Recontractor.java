@@ -0,0 +1,312 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes the drive times of original edges in an already contracted graph,
+ * keeping the contraction order, rather than contracting it again from
+ * scratch.
+ *
+ * Nodes are re-contracted bottom-up, in contraction order, against the graph
+ * as it was when they were first contracted. A node is re-contracted if an
+ * edge between it and a higher node changed - so the shortcuts whose
+ * unpacked edges include a changed edge are rebuilt, from the bottom up - or
+ * if an edge it might have used as a witness got slower or was removed.
+ *
+ * A node's witness searches start from its higher in-neighbours and give up
+ * beyond its slowest in-edge plus its slowest out-edge, so whether it could
+ * have used an edge is bounded by a search backwards from the edge, over the
+ * original edges at the lower of their old and new drive times. Increases on
+ * edges high in the hierarchy can make that search, and the re-contraction,
+ * cover most of the graph - for frequent big changes CustomizableHierarchy
+ * is a better fit.
+ *
+ * Edges are numbered afresh afterwards, so FrozenGraphs, Phast, HubLabels
+ * and cached PartialSolutions must be rebuilt.
+ */
+public class Recontractor {
+    private final MapData allNodes;
+    private final GraphContractor contractor;
+    private final HashMap<Node,HashSet<DirectedEdge>> parentsOfChangedEdges = new HashMap<>();
+    private final HashMap<Long,Integer> previousDriveTimes = new HashMap<>();
+    private final DijkstraSearchContext witnessReach;
+    private final int[] maxOutTimes;
+    private int[] maxWitnessLimitBelow;
+
+    public Recontractor(MapData allNodes) {
+        Preconditions.checkNoneNull(allNodes);
+        this.allNodes = allNodes;
+        this.contractor = new GraphContractor(allNodes);
+        this.witnessReach = new DijkstraSearchContext(allNodes.getNodeCount());
+        this.maxOutTimes = new int[allNodes.getNodeCount()];
+    }
+
+    /**
+     * As GraphContractor.setWitnessSearchLimits - best set to whatever the
+     * graph was contracted with.
+     */
+    public void setWitnessSearchLimits(int maxSettledNodes, int maxHops) {
+        contractor.setWitnessSearchLimits(maxSettledNodes, maxHops);
+    }
+
+    /**
+     * @param driveTimesByEdgeId New drive times for original, non-shortcut,
+     * edges.
+     * @return The number of nodes re-contracted.
+     */
+    public int updateDriveTimes(Map<Long,Integer> driveTimesByEdgeId) {
+        Preconditions.checkNoneNull(driveTimesByEdgeId);
+        IndexedFourAryHeap toRecontract = new IndexedFourAryHeap(allNodes.getNodeCount());
+        calculateWitnessLimits();
+
+        ArrayList<DirectedEdge> replaced = new ArrayList<>();
+        for (DirectedEdge old : findOriginalEdges(driveTimesByEdgeId)) {
+            int newDriveTime = driveTimesByEdgeId.get(old.edgeId);
+            if (newDriveTime == old.driveTimeMs)
+                continue;
+            DirectedEdge replacement = new DirectedEdge(old.edgeId, old.sourceDataEdgeId, old.from, old.to, newDriveTime, old.accessOnly);
+            rememberParents(old);
+            replace(old, replacement);
+            previousDriveTimes.put(old.edgeId, old.driveTimeMs);
+            replaced.add(replacement);
+        }
+        // Every change must be in place first, so searches for witness
+        // paths see the quicker drive time of each.
+        for (DirectedEdge replacement : replaced) {
+            boolean slower = replacement.driveTimeMs > previousDriveTimes.get(replacement.edgeId);
+            markAffected(toRecontract, replacement, slower, Integer.MIN_VALUE);
+        }
+
+        int recontracted = 0;
+        while (!toRecontract.isEmpty()) {
+            recontract(allNodes.getNodeByIndex(toRecontract.pollMinItem()), toRecontract);
+            recontracted++;
+        }
+        Preconditions.require(parentsOfChangedEdges.isEmpty());
+        previousDriveTimes.clear();
+
+        allNodes.reindexEdges();
+        return recontracted;
+    }
+
+    private List<DirectedEdge> findOriginalEdges(Map<Long,Integer> driveTimesByEdgeId) {
+        ArrayList<DirectedEdge> result = new ArrayList<>(driveTimesByEdgeId.size());
+        HashSet<Long> found = new HashSet<>();
+        for (Node n : allNodes.getAllNodes()) {
+            for (DirectedEdge de : n.edgesFrom) {
+                if (!de.isShortcut() && !de.hasPlaceholderId() && driveTimesByEdgeId.containsKey(de.edgeId)) {
+                    Preconditions.require(driveTimesByEdgeId.get(de.edgeId) >= 0);
+                    result.add(de);
+                    found.add(de.edgeId);
+                }
+            }
+        }
+        for (Long edgeId : driveTimesByEdgeId.keySet()) {
+            if (!found.contains(edgeId))
+                throw new IllegalArgumentException("No original edge with ID " + edgeId);
+        }
+        return result;
+    }
+
+    private void recontract(Node n, IndexedFourAryHeap toRecontract) {
+        int floor = n.contractionOrder;
+        ArrayList<DirectedEdge> existing = shortcutsVia(n);
+        HashSet<Node> touched = new HashSet<>();
+
+        for (DirectedEdge required : contractor.findShortcuts(n, floor)) {
+            DirectedEdge match = null;
+            for (DirectedEdge de : existing) {
+                if (de.from == required.from && de.to == required.to)
+                    match = de;
+            }
+
+            if (match != null) {
+                existing.remove(match);
+                if (match.first == required.first && match.second == required.second)
+                    continue;
+                rememberParents(match);
+                match.removeFromToAndFromNodes();
+            }
+
+            boolean canKeepId = (match != null && match.edgeId > required.first.edgeId && match.edgeId > required.second.edgeId);
+            DirectedEdge shortcut = required.cloneWithEdgeId(canKeepId ? match.edgeId : allNodes.getEdgeIdCounter().incrementAndGet());
+            shortcut.from.edgesFrom.add(shortcut);
+            shortcut.to.edgesTo.add(shortcut);
+            touched.add(shortcut.from);
+            touched.add(shortcut.to);
+            markAffected(toRecontract, shortcut, (match != null && shortcut.driveTimeMs > match.driveTimeMs), floor);
+        }
+
+        for (DirectedEdge noLongerNeeded : existing) {
+            rememberParents(noLongerNeeded);
+            noLongerNeeded.removeFromToAndFromNodes();
+            touched.add(noLongerNeeded.from);
+            touched.add(noLongerNeeded.to);
+            markAffected(toRecontract, noLongerNeeded, true, floor);
+        }
+
+        for (Node t : touched) {
+            t.sortNeighborLists();
+        }
+    }
+
+    /**
+     * Shortcuts via n can be found from n's incoming edges - except where
+     * that edge has since been replaced or removed, which rememberParents
+     * takes care of.
+     */
+    private ArrayList<DirectedEdge> shortcutsVia(Node n) {
+        HashSet<DirectedEdge> result = parentsOfChangedEdges.remove(n);
+        if (result == null)
+            result = new HashSet<>();
+        HashSet<Node> checked = new HashSet<>();
+        for (DirectedEdge incoming : n.edgesTo) {
+            if (incoming.from.contractionOrder <= n.contractionOrder || !checked.add(incoming.from))
+                continue;
+            for (DirectedEdge de : incoming.from.edgesFrom) {
+                if (de.isShortcut() && de.first.to == n)
+                    result.add(de);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+    
+    /**
+     * Call before replacing or removing an edge, to note the shortcuts made
+     * from it. They're via the lower end of the edge, which markAffected
+     * queues for re-contraction.
+     */
+    private void rememberParents(DirectedEdge child) {
+        for (DirectedEdge de : child.from.edgesFrom) {
+            if (de.isShortcut() && de.first == child)
+                rememberParent(de);
+        }
+        for (DirectedEdge de : child.to.edgesTo) {
+            if (de.isShortcut() && de.second == child)
+                rememberParent(de);
+        }
+    }
+    
+    private void rememberParent(DirectedEdge parent) {
+        Node middle = parent.first.to;
+        HashSet<DirectedEdge> parents = parentsOfChangedEdges.get(middle);
+        if (parents == null) {
+            parents = new HashSet<>();
+            parentsOfChangedEdges.put(middle, parents);
+        }
+        parents.add(parent);
+    }
+
+    /**
+     * @param slowerOrRemoved Whether witness paths through the edge might
+     * have been lost.
+     * @param madeAbove The contraction order of the node whose shortcut this
+     * is; nodes up to there never saw it.
+     */
+    private void markAffected(IndexedFourAryHeap toRecontract, DirectedEdge changed, boolean slowerOrRemoved, int madeAbove) {
+        Node lower = (changed.from.contractionOrder < changed.to.contractionOrder ? changed.from : changed.to);
+        queue(toRecontract, lower);
+
+        if (slowerOrRemoved)
+            queuePossibleWitnessUsers(toRecontract, changed.from, madeAbove, lower.contractionOrder);
+    }
+
+    /**
+     * Queue every node ranked between madeAbove and below with a higher
+     * in-neighbour that could have reached 'from' within the node's witness
+     * search limit. Distances only need to be a lower bound, so the search
+     * runs over original edges, which can't be slower than any path of
+     * shortcuts, and through nodes of any rank.
+     */
+    private void queuePossibleWitnessUsers(IndexedFourAryHeap toRecontract, Node from, int madeAbove, int below) {
+        int searchLimit = maxWitnessLimitBelow[Math.min(below, maxWitnessLimitBelow.length-1)];
+        witnessReach.startSearch();
+        witnessReach.addStartNode(from);
+
+        Node s;
+        while ((s = witnessReach.pollClosestUnsettled()) != null) {
+            int driveTime = witnessReach.getMinDriveTime(s);
+            if (driveTime > searchLimit)
+                break;
+            witnessReach.markSettled(s);
+
+            for (DirectedEdge de : s.edgesFrom) {
+                Node n = de.to;
+                if (n.contractionOrder > madeAbove && n.contractionOrder < below && n.contractionOrder < s.contractionOrder
+                        && driveTime <= de.driveTimeMs + maxOutTimes[n.nodeIndex])
+                    queue(toRecontract, n);
+            }
+            for (DirectedEdge de : s.edgesTo) {
+                if (!de.isShortcut())
+                    witnessReach.relax(s, de, de.from, driveTime + lowerBoundDriveTime(de));
+            }
+        }
+    }
+
+    private int lowerBoundDriveTime(DirectedEdge de) {
+        Integer previous = previousDriveTimes.get(de.edgeId);
+        return (previous == null ? de.driveTimeMs : Math.min(previous, de.driveTimeMs));
+    }
+
+    /**
+     * A node's witness searches only go as far as its slowest edge in from a
+     * higher node plus its slowest edge out to one. Edges that change after
+     * this is calculated are at nodes already queued for re-contraction.
+     */
+    private void calculateWitnessLimits() {
+        int maxOrder = 0;
+        for (Node n : allNodes.getAllNodes()) {
+            if (n.isContracted())
+                maxOrder = Math.max(maxOrder, n.contractionOrder);
+        }
+        int[] limitByOrder = new int[maxOrder+1];
+        for (Node n : allNodes.getAllNodes()) {
+            if (!n.isContracted())
+                continue;
+            int maxIn = 0;
+            for (DirectedEdge de : n.edgesTo) {
+                if (de.from.contractionOrder > n.contractionOrder)
+                    maxIn = Math.max(maxIn, de.driveTimeMs);
+            }
+            int maxOut = 0;
+            for (DirectedEdge de : n.edgesFrom) {
+                if (de.to.contractionOrder > n.contractionOrder)
+                    maxOut = Math.max(maxOut, de.driveTimeMs);
+            }
+            maxOutTimes[n.nodeIndex] = maxOut;
+            limitByOrder[n.contractionOrder] = maxIn + maxOut;
+        }
+
+        maxWitnessLimitBelow = new int[maxOrder+2];
+        for (int order=1 ; order<maxWitnessLimitBelow.length ; order++) {
+            maxWitnessLimitBelow[order] = Math.max(maxWitnessLimitBelow[order-1], limitByOrder[order-1]);
+        }
+    }
+
+    private static void queue(IndexedFourAryHeap toRecontract, Node n) {
+        if (n.isContracted())
+            toRecontract.insertOrDecreaseKey(n.nodeIndex, n.contractionOrder);
+    }
+
+    private static void replace(DirectedEdge old, DirectedEdge replacement) {
+        replaceIdentical(old.from.edgesFrom, old, replacement);
+        replaceIdentical(old.to.edgesTo, old, replacement);
+        old.from.sortNeighborLists();
+        old.to.sortNeighborLists();
+    }
+
+    private static void replaceIdentical(List<DirectedEdge> edges, DirectedEdge old, DirectedEdge replacement) {
+        for (int i=0 ; i<edges.size() ; i++) {
+            if (edges.get(i) == old) {
+                edges.set(i, replacement);
+                return;
+            }
+        }
+        throw new IllegalStateException("Edge " + old + " missing from its node's edge list?");
+    }
+
+}
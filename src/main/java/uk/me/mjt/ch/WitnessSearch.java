@@ -0,0 +1,125 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+
+/**
+ * The search GraphContractor uses to decide which shortcuts contracting a
+ * node needs. One search runs from each uncontracted incoming neighbour of
+ * the node, towards all its uncontracted outgoing neighbours at once,
+ * skipping the node itself. An outgoing neighbour that's reached at least
+ * as quickly as it would be through the node has a witness path, and needs
+ * no shortcut.
+ *
+ * The search can be cut short after settling a number of nodes, or at a
+ * number of hops from the start. A neighbour not reached gets a shortcut
+ * whether it needs one or not, so limits trade more shortcuts - and slower
+ * queries - for less time spent contracting.
+ *
+ * Nodes with a contraction order up to the floor count as contracted, as
+ * do shortcuts made by contracting nodes above it. During contraction the
+ * floor is just below Node.UNCONTRACTED; Recontractor raises it to look at
+ * the graph as it was when an already-contracted node was contracted.
+ *
+ * Arrays are indexed by Node.nodeIndex. Not thread safe - each thread needs
+ * its own.
+ */
+class WitnessSearch {
+    private final MapData allNodes;
+    private final IndexedFourAryHeap queue;
+    private final int[] touchedGeneration;
+    private final int[] settledGeneration;
+    private final int[] targetGeneration;
+    private final int[] driveTime;
+    private final int[] hops;
+    private int generation = 0;
+
+    WitnessSearch(MapData allNodes) {
+        int nodeCount = allNodes.getNodeCount();
+        this.allNodes = allNodes;
+        queue = new IndexedFourAryHeap(64);
+        touchedGeneration = new int[nodeCount];
+        settledGeneration = new int[nodeCount];
+        targetGeneration = new int[nodeCount];
+        driveTime = new int[nodeCount];
+        hops = new int[nodeCount];
+    }
+
+    /**
+     * @param targets Outgoing neighbours of the node being contracted; none
+     * may be the start node.
+     * @return For each target, the drive time of the quickest path found
+     * that avoids the node being contracted, or Integer.MAX_VALUE if none was.
+     */
+    int[] search(Node start, Node contracting, Node[] targets, int maxSearchTime, int maxSettledNodes, int maxHops,
+            int contractionOrderFloor) {
+        startSearch();
+        for (Node target : targets) {
+            targetGeneration[target.nodeIndex] = generation;
+        }
+        int targetsRemaining = targets.length;
+        int settledCount = 0;
+
+        relax(start.nodeIndex, 0, 0);
+        while (!queue.isEmpty() && targetsRemaining > 0 && settledCount < maxSettledNodes) {
+            if (queue.peekMinKey() > maxSearchTime)
+                break;
+            int nodeIndex = queue.pollMinItem();
+            settledGeneration[nodeIndex] = generation;
+            settledCount++;
+            if (targetGeneration[nodeIndex] == generation)
+                targetsRemaining--;
+
+            int nextHops = hops[nodeIndex] + 1;
+            if (nextHops > maxHops)
+                continue;
+
+            Node n = allNodes.getNodeByIndex(nodeIndex);
+            int thisDriveTime = driveTime[nodeIndex];
+            for (DirectedEdge de : n.edgesFrom) {
+                if (de.to.contractionOrder <= contractionOrderFloor)
+                    break;
+                if (de.to != contracting && isPresentAbove(de, contractionOrderFloor))
+                    relax(de.to.nodeIndex, thisDriveTime + de.driveTimeMs, nextHops);
+            }
+        }
+
+        int[] result = new int[targets.length];
+        for (int i=0 ; i<targets.length ; i++) {
+            int t = targets[i].nodeIndex;
+            result[i] = (touchedGeneration[t] == generation ? driveTime[t] : Integer.MAX_VALUE);
+        }
+        return result;
+    }
+
+    /**
+     * @return false for shortcuts that were made by contracting a node at or
+     * above the floor, true otherwise.
+     */
+    static boolean isPresentAbove(DirectedEdge de, int contractionOrderFloor) {
+        return !de.isShortcut() || de.first.to.contractionOrder < contractionOrderFloor;
+    }
+
+    private void startSearch() {
+        queue.clear();
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(touchedGeneration, 0);
+            Arrays.fill(settledGeneration, 0);
+            Arrays.fill(targetGeneration, 0);
+            generation = 0;
+        }
+        generation++;
+    }
+
+    private void relax(int nodeIndex, int newDriveTime, int newHops) {
+        if (touchedGeneration[nodeIndex] == generation) {
+            if (settledGeneration[nodeIndex] == generation || newDriveTime >= driveTime[nodeIndex])
+                return;
+        } else {
+            touchedGeneration[nodeIndex] = generation;
+        }
+        driveTime[nodeIndex] = newDriveTime;
+        hops[nodeIndex] = newHops;
+        queue.insertOrDecreaseKey(nodeIndex, newDriveTime);
+    }
+
+}
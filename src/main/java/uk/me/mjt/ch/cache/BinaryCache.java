@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
 import uk.me.mjt.ch.Node;
+import uk.me.mjt.ch.PartialSolution;
 import uk.me.mjt.ch.PartialSolution.DownwardSolution;
 import uk.me.mjt.ch.PartialSolution.UpwardSolution;
 
@@ -49,7 +50,7 @@ public class BinaryCache implements PartialSolutionCache {
             return null;
         
         int firstRecordCount = bb.getInt(0);
-        int firstLength = 24*firstRecordCount + 4;
+        int firstLength = PartialSolution.BYTES_PER_RECORD*firstRecordCount + 4;
         
         bb.position(0); // REVISIT not thread safe?
         bb.limit(firstLength);
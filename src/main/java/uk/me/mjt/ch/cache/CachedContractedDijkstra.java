@@ -35,6 +35,15 @@ public class CachedContractedDijkstra {
         return ContractedDijkstra.mergeUpwardAndDownwardSolutions(allNodes, startNodePair.up, endNodePair.down);
     }
     
+    /**
+     * @return The drive time in milliseconds, or ContractedDijkstra.UNREACHABLE.
+     */
+    public static int contractedGraphDistance(MapData allNodes, Node startNode, Node endNode, PartialSolutionCache cache) {
+        UpAndDownPair startNodePair = getOrCalculateUpDownPair(allNodes, startNode, cache);
+        UpAndDownPair endNodePair = getOrCalculateUpDownPair(allNodes, endNode, cache);
+        return ContractedDijkstra.mergeUpwardAndDownwardDistances(startNodePair.up, endNodePair.down);
+    }
+    
     public static Callable<DijkstraSolution> callableContractedGraphDijkstra(final MapData allNodes, final Node startNode, final Node endNode, final PartialSolutionCache cache) {
         return new Callable<DijkstraSolution>() {
             public DijkstraSolution call() {
@@ -1,7 +1,13 @@
 package uk.me.mjt.ch.loader;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import uk.me.mjt.ch.AccessOnly;
 import uk.me.mjt.ch.Barrier;
 import uk.me.mjt.ch.DirectedEdge;
@@ -9,13 +15,42 @@ import uk.me.mjt.ch.MapData;
 import uk.me.mjt.ch.Node;
 import uk.me.mjt.ch.Preconditions;
 import uk.me.mjt.ch.TurnRestriction;
+import uk.me.mjt.ch.status.DiscardingStatusMonitor;
 import uk.me.mjt.ch.status.MonitoredProcess;
 import uk.me.mjt.ch.status.StatusMonitor;
 
 public class BinaryFormat {
-    private static final long MAX_FILE_VERSION_SUPPORTED = 6;
+    public enum Compression { NONE, DEFLATE }
+    
+    private static final long MAX_FILE_VERSION_SUPPORTED = CompactFormat.FILE_VERSION;
     private static final long MIN_FILE_VERSION_SUPPORTED = 5;
-    private static final long FILE_VERSION_WRITTEN = MAX_FILE_VERSION_SUPPORTED;
+    static final long LAST_FIXED_SIZE_RECORD_VERSION = 6;
+    private static final int WRITE_BUFFER_BYTES = 1<<20;
+    
+    private final long fileVersionWritten;
+    private final Compression compression;
+    
+    /**
+     * Reads any supported version, and writes v6.
+     */
+    public BinaryFormat() {
+        this(LAST_FIXED_SIZE_RECORD_VERSION, Compression.NONE);
+    }
+    
+    private BinaryFormat(long fileVersionWritten, Compression compression) {
+        this.fileVersionWritten = fileVersionWritten;
+        this.compression = compression;
+    }
+    
+    /**
+     * Reads any supported version, and writes the compact v7 format - see 
+     * CompactFormat. Files are smaller, but can't be read by readParallel's
+     * fixed-size record reader or by older versions of this code.
+     */
+    public static BinaryFormat compact(Compression compression) {
+        Preconditions.checkNoneNull(compression);
+        return new BinaryFormat(CompactFormat.FILE_VERSION, compression);
+    }
     
     public MapData read(String nodeFile, String wayFile, StatusMonitor monitor) throws IOException {
         try ( FileInputStream nodesIn = new FileInputStream(nodeFile);
@@ -53,10 +88,42 @@ public class BinaryFormat {
         return md;
     }
     
+    /**
+     * As read, but reading and parsing the files in chunks on a thread per
+     * core. See ParallelBinaryReader.
+     */
+    public MapData readParallel(String nodeFile, String wayFile, String turnRestrictionFile, StatusMonitor monitor) throws IOException {
+        ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return readParallel(nodeFile, wayFile, turnRestrictionFile, monitor, es);
+        } finally {
+            es.shutdown();
+        }
+    }
+    
+    public MapData readParallel(String nodeFile, String wayFile, String turnRestrictionFile, StatusMonitor monitor, ExecutorService es) throws IOException {
+        Preconditions.checkNoneNull(nodeFile, wayFile, monitor, es);
+        if (readFileFormatVersion(nodeFile) > LAST_FIXED_SIZE_RECORD_VERSION) {
+            return read(nodeFile, wayFile, turnRestrictionFile, monitor);
+        }
+        
+        HashSet<TurnRestriction> turnRestrictions = new HashSet<>();
+        if (turnRestrictionFile != null)
+            try (DataInputStream dis = inStream(new FileInputStream(turnRestrictionFile))) {
+                turnRestrictions = readTurnRestrictions(dis);
+            }
+        
+        return new ParallelBinaryReader(es, monitor).read(nodeFile, wayFile, turnRestrictions);
+    }
+    
     public void write(MapData toWrite, String nodeFile, String wayFile) throws IOException {
+        write(toWrite, nodeFile, wayFile, new DiscardingStatusMonitor());
+    }
+    
+    public void write(MapData toWrite, String nodeFile, String wayFile, StatusMonitor monitor) throws IOException {
         try (DataOutputStream waysOut = outStream(wayFile);
                 DataOutputStream nodesOut = outStream(nodeFile);) {
-            write(toWrite, nodesOut, waysOut, null);
+            write(toWrite, nodesOut, waysOut, null, monitor);
         }
     }
     
@@ -70,25 +137,89 @@ public class BinaryFormat {
     }*/
     
     public void write(MapData toWrite, DataOutputStream nodesOut, DataOutputStream waysOut, DataOutputStream restrictionsOut) throws IOException {
-        writeEdges(toWrite.getAllNodes(),waysOut);
-        writeNodesWithoutEdges(toWrite.getAllNodes(),nodesOut);
+        write(toWrite, nodesOut, waysOut, restrictionsOut, new DiscardingStatusMonitor());
+    }
+    
+    public void write(MapData toWrite, DataOutputStream nodesOut, DataOutputStream waysOut, DataOutputStream restrictionsOut, StatusMonitor monitor) throws IOException {
+        Preconditions.checkNoneNull(toWrite, nodesOut, waysOut, monitor);
+        writeEdges(toWrite, waysOut, monitor);
+        writeNodes(toWrite, nodesOut, monitor);
         if (restrictionsOut != null) {
             writeTurnRestrictions(toWrite.allTurnRestrictions(), restrictionsOut);
         }
     }
     
-    private static DataInputStream inStream(InputStream inStream) throws FileNotFoundException {
+    /**
+     * For checkpointing a contraction in progress, from another thread. Nodes
+     * are written with the given contraction orders rather than their own,
+     * and edges in the order given, which must put every shortcut after the
+     * edges it's made of. Only fields that don't change during contraction
+     * are read. Always writes v6, so it can be read by any BinaryFormat.
+     */
+    public static void writeSnapshot(List<Node> nodesInIndexOrder, int[] contractionOrders, List<DirectedEdge> edgesInWriteOrder,
+            String nodeFile, String wayFile, StatusMonitor monitor) throws IOException {
+        Preconditions.checkNoneNull(nodesInIndexOrder, contractionOrders, edgesInWriteOrder, nodeFile, wayFile, monitor);
+        Preconditions.require(nodesInIndexOrder.size() == contractionOrders.length);
+        BinaryFormat v6 = new BinaryFormat();
+        
+        try (DataOutputStream waysOut = outStream(wayFile);
+                DataOutputStream nodesOut = outStream(nodeFile);) {
+            v6.writeEdgesInGivenOrder(edgesInWriteOrder, waysOut, monitor);
+            v6.writeNodesWithoutEdges(nodesInIndexOrder, contractionOrders, nodesOut, monitor);
+        }
+    }
+    
+    void writeNodes(MapData toWrite, DataOutputStream nodesOut, StatusMonitor monitor) throws IOException {
+        if (fileVersionWritten == CompactFormat.FILE_VERSION) {
+            CompactFormat.writeNodes(nodesInIndexOrder(toWrite), nodesOut, compression, monitor);
+        } else {
+            writeNodesWithoutEdges(nodesInIndexOrder(toWrite), null, nodesOut, monitor);
+        }
+    }
+    
+    void writeEdges(MapData toWrite, DataOutputStream waysOut, StatusMonitor monitor) throws IOException {
+        if (fileVersionWritten == CompactFormat.FILE_VERSION) {
+            CompactFormat.writeEdges(nodesInIndexOrder(toWrite), waysOut, compression, monitor);
+        } else {
+            writeEdgesInDepthOrder(toWrite, waysOut, monitor);
+        }
+    }
+    
+    /**
+     * Nodes are written in node index order, and numbered in file order when
+     * they're read back, so a NodeRenumbering survives a round trip without
+     * any change to the file layout.
+     */
+    private static List<Node> nodesInIndexOrder(MapData md) {
+        ArrayList<Node> result = new ArrayList<>(md.getNodeCount());
+        for (int i=0 ; i<md.getNodeCount() ; i++) {
+            result.add(md.getNodeByIndex(i));
+        }
+        return result;
+    }
+    
+    private static long readFileFormatVersion(String filename) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(filename))) {
+            return dis.readLong();
+        }
+    }
+    
+    static DataInputStream inStream(InputStream inStream) throws FileNotFoundException {
         return new DataInputStream(new BufferedInputStream(inStream));
     }
     
-    private static DataOutputStream outStream(String filename) throws FileNotFoundException {
-        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+    private static DataOutputStream outStream(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_BYTES));
     }
     
-    private HashMap<Long,Node> readNodes(DataInputStream source, StatusMonitor monitor) throws IOException {
+    HashMap<Long,Node> readNodes(DataInputStream source, StatusMonitor monitor) throws IOException {
         Preconditions.checkNoneNull(monitor);
         long fileFormatVersion = source.readLong();
         checkFileFormatVersion(fileFormatVersion);
+        if (fileFormatVersion == CompactFormat.FILE_VERSION)
+            return CompactFormat.readNodes(source, monitor);
         
         long totalNodeCount = (fileFormatVersion >= 6 ? source.readLong() : -1);
         long nodesLoadedSoFar = 0;
@@ -112,6 +243,7 @@ public class BinaryFormat {
                 if (contractionOrder==Long.MAX_VALUE)
                     contractionOrder=Node.UNCONTRACTED;
                 n.contractionOrder=(int)contractionOrder;
+                n.nodeIndex=(int)nodesLoadedSoFar;
                 
                 nodesById.put(nodeId, n);
                 nodesLoadedSoFar++;
@@ -129,6 +261,10 @@ public class BinaryFormat {
         Preconditions.checkNoneNull(monitor);
         long fileFormatVersion = source.readLong();
         checkFileFormatVersion(fileFormatVersion);
+        if (fileFormatVersion == CompactFormat.FILE_VERSION) {
+            CompactFormat.readEdges(nodesById, source, monitor);
+            return;
+        }
         
         long totalEdgeCount = (fileFormatVersion >= 6 ? source.readLong() : -1);
         long edgesLoadedSoFar = 0;
@@ -185,15 +321,22 @@ public class BinaryFormat {
     }
     
     
-    private void writeNodesWithoutEdges(Collection<Node> toWrite, DataOutputStream dest) throws IOException {
-        dest.writeLong(FILE_VERSION_WRITTEN);
+    /**
+     * @param contractionOrders By position in toWrite, or null to use each
+     * node's own.
+     */
+    private void writeNodesWithoutEdges(List<Node> toWrite, int[] contractionOrders, DataOutputStream dest, StatusMonitor monitor) throws IOException {
+        dest.writeLong(fileVersionWritten);
         dest.writeLong(toWrite.size());
+        monitor.updateStatus(MonitoredProcess.WRITE_NODES, 0, toWrite.size());
         
+        int nodesWrittenSoFar = 0;
         for (Node n : toWrite) {
+            int contractionOrder = (contractionOrders == null ? n.contractionOrder : contractionOrders[nodesWrittenSoFar]);
             dest.writeLong(n.nodeId);
             dest.writeLong(n.sourceDataNodeId);
-            if (n.isContracted()) { // REVISIT next time we bump the file version, maybe write it as an int?
-                dest.writeLong(n.contractionOrder);
+            if (contractionOrder != Node.UNCONTRACTED) { // REVISIT next time we bump the file version, maybe write it as an int?
+                dest.writeLong(contractionOrder);
             } else {
                 dest.writeLong(Long.MAX_VALUE);
             }
@@ -201,37 +344,92 @@ public class BinaryFormat {
             dest.writeByte(properties);
             dest.writeDouble(n.lat);
             dest.writeDouble(n.lon);
+            
+            nodesWrittenSoFar++;
+            if (nodesWrittenSoFar % 10000 == 0)
+                monitor.updateStatus(MonitoredProcess.WRITE_NODES, nodesWrittenSoFar, toWrite.size());
         }
+        monitor.updateStatus(MonitoredProcess.WRITE_NODES, nodesWrittenSoFar, toWrite.size());
     }
     
-    private void writeEdges(Collection<Node> toWrite, DataOutputStream dos) throws IOException {
-        dos.writeLong(FILE_VERSION_WRITTEN);
-        dos.writeLong(calculateTotalEdgeCount(toWrite));
+    /**
+     * Shortcuts must come after the edges they're made of, so they can be
+     * linked up as they're read. Rather than recursing down from each shortcut
+     * and remembering every edge ID written in a HashSet, write the edges in
+     * order of contraction depth - every child is shallower than its parent -
+     * and keep a bitset by edge index to check that really holds.
+     */
+    private void writeEdgesInDepthOrder(MapData toWrite, DataOutputStream dos, StatusMonitor monitor) throws IOException {
+        toWrite.indexNewEdges();
+        int totalEdgeCount = toWrite.getEdgeCount();
+        int[] edgeIndicesInWriteOrder = edgeIndicesByContractionDepth(toWrite);
+        long[] written = new long[(totalEdgeCount+63)/64];
         
-        HashSet<Long> writtenEdges = new HashSet();
-        for (Node n : toWrite) {
-            for (DirectedEdge de : n.edgesFrom) {
-                writeEdgeRecursively(de, writtenEdges, dos);
+        dos.writeLong(fileVersionWritten);
+        dos.writeLong(totalEdgeCount);
+        monitor.updateStatus(MonitoredProcess.WRITE_WAYS, 0, totalEdgeCount);
+        
+        for (int i=0 ; i<totalEdgeCount ; i++) {
+            DirectedEdge de = toWrite.getEdgeByIndex(edgeIndicesInWriteOrder[i]);
+            if (de.isShortcut() && !(isWritten(written, de.first) && isWritten(written, de.second))) {
+                throw new IllegalStateException("Shortcut " + de.edgeId + " is made of edges that aren't in the map data?");
             }
+            writeEdge(de, dos);
+            written[de.edgeIndex>>>6] |= 1L << de.edgeIndex;
+            
+            if ((i+1) % 10000 == 0)
+                monitor.updateStatus(MonitoredProcess.WRITE_WAYS, i+1, totalEdgeCount);
         }
+        
+        monitor.updateStatus(MonitoredProcess.WRITE_WAYS, totalEdgeCount, totalEdgeCount);
     }
     
-    private long calculateTotalEdgeCount(Collection<Node> toWrite) {
-        long totalEdgeCount = 0;
-        for (Node n : toWrite) {
-            totalEdgeCount += n.edgesFrom.size();
+    private void writeEdgesInGivenOrder(List<DirectedEdge> toWrite, DataOutputStream dos, StatusMonitor monitor) throws IOException {
+        dos.writeLong(fileVersionWritten);
+        dos.writeLong(toWrite.size());
+        monitor.updateStatus(MonitoredProcess.WRITE_WAYS, 0, toWrite.size());
+        
+        int edgesWrittenSoFar = 0;
+        for (DirectedEdge de : toWrite) {
+            writeEdge(de, dos);
+            edgesWrittenSoFar++;
+            if (edgesWrittenSoFar % 10000 == 0)
+                monitor.updateStatus(MonitoredProcess.WRITE_WAYS, edgesWrittenSoFar, toWrite.size());
         }
-        return totalEdgeCount;
+        monitor.updateStatus(MonitoredProcess.WRITE_WAYS, edgesWrittenSoFar, toWrite.size());
+    }
+    
+    private static boolean isWritten(long[] written, DirectedEdge de) {
+        return de.edgeIndex != DirectedEdge.UNINDEXED
+                && (written[de.edgeIndex>>>6] & (1L << de.edgeIndex)) != 0;
     }
+    
+    /**
+     * Counting sort, so edges of the same depth stay in edge index order.
+     */
+    private static int[] edgeIndicesByContractionDepth(MapData md) {
+        int edgeCount = md.getEdgeCount();
+        int maxDepth = 0;
+        for (int i=0 ; i<edgeCount ; i++) {
+            maxDepth = Math.max(maxDepth, md.getEdgeByIndex(i).contractionDepth);
+        }
         
-    private void writeEdgeRecursively(DirectedEdge de, HashSet<Long> alreadyWritten, DataOutputStream dos) throws IOException {
-        if (de==null || alreadyWritten.contains(de.edgeId)) {
-            return;
+        int[] depthStarts = new int[maxDepth+2];
+        for (int i=0 ; i<edgeCount ; i++) {
+            depthStarts[md.getEdgeByIndex(i).contractionDepth+1]++;
+        }
+        for (int depth=1 ; depth<depthStarts.length ; depth++) {
+            depthStarts[depth] += depthStarts[depth-1];
         }
         
-        writeEdgeRecursively(de.first,alreadyWritten,dos);
-        writeEdgeRecursively(de.second,alreadyWritten,dos);
+        int[] result = new int[edgeCount];
+        for (int i=0 ; i<edgeCount ; i++) {
+            result[depthStarts[md.getEdgeByIndex(i).contractionDepth]++] = i;
+        }
+        return result;
+    }
         
+    private void writeEdge(DirectedEdge de, DataOutputStream dos) throws IOException {
         dos.writeLong(de.edgeId);
         dos.writeLong(de.sourceDataEdgeId);
         dos.writeLong(de.from.nodeId);
@@ -248,11 +446,9 @@ public class BinaryFormat {
             dos.writeLong(0);
             dos.writeLong(0);
         }
-        
-        alreadyWritten.add(de.edgeId);
     }
     
-    private HashSet<TurnRestriction> readTurnRestrictions(DataInputStream source) throws IOException {
+    HashSet<TurnRestriction> readTurnRestrictions(DataInputStream source) throws IOException {
         long fileFormatVersion = source.readLong();
         checkFileFormatVersion(fileFormatVersion);
         
@@ -280,8 +476,8 @@ public class BinaryFormat {
         return result;
     }
     
-    private void writeTurnRestrictions(Collection<TurnRestriction> toWrite, DataOutputStream dos) throws IOException {
-        dos.writeLong(FILE_VERSION_WRITTEN);
+    void writeTurnRestrictions(Collection<TurnRestriction> toWrite, DataOutputStream dos) throws IOException {
+        dos.writeLong(fileVersionWritten);
         dos.writeLong(toWrite.size());
         
         for (TurnRestriction tr : toWrite) {
@@ -296,7 +492,7 @@ public class BinaryFormat {
         }
     }
     
-    private void checkFileFormatVersion(long fileFormatVersion) throws IOException{
+    static void checkFileFormatVersion(long fileFormatVersion) throws IOException{
         if (fileFormatVersion < MIN_FILE_VERSION_SUPPORTED) {
             throw new IOException("File format version, " + fileFormatVersion + ", is below lowest version supported, " + MIN_FILE_VERSION_SUPPORTED);
         } else if (fileFormatVersion > MAX_FILE_VERSION_SUPPORTED) {
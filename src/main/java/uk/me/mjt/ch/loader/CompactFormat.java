@@ -0,0 +1,351 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import uk.me.mjt.ch.AccessOnly;
+import uk.me.mjt.ch.Barrier;
+import uk.me.mjt.ch.DirectedEdge;
+import uk.me.mjt.ch.Node;
+import uk.me.mjt.ch.Preconditions;
+import uk.me.mjt.ch.status.MonitoredProcess;
+import uk.me.mjt.ch.status.StatusMonitor;
+
+/**
+ * The v7 node and way file bodies. Each file starts with the version and
+ * record count, as in v6, then a byte saying whether the records that follow
+ * are Deflate compressed in blocks.
+ *
+ * Records are variable length. Each starts with a byte of flags saying which
+ * fields follow, and numbers are written as varints, mostly as the zigzag
+ * encoded difference from a nearby value:
+ *
+ * Nodes are written in node index order. The node ID is a delta from the
+ * previous node's; the source data node ID is left out if it's the same as
+ * the node ID; the contraction order is an int, left out if uncontracted;
+ * and lat/lon are OSM-style fixed point, 1e-7 degrees, as deltas from the
+ * previous node. If fixed point wouldn't give back exactly the same float,
+ * the raw float bits are written instead.
+ *
+ * Edges are written in edge ID order, which puts every shortcut after the
+ * edges it's made of. The edge ID is a delta from the previous edge's. For an
+ * ordinary edge, the from node is a delta from the previous edge's from node
+ * and the to node a delta from its from node, both by position in the node
+ * file; then the drive time. A shortcut's ends and drive time come from its
+ * children, so it just has the (always positive) differences between its ID
+ * and its children's.
+ *
+ * Turn restriction files keep the v6 layout, with 7 as their version.
+ */
+class CompactFormat {
+    static final long FILE_VERSION = 7;
+
+    private static final double FIXED_POINT_SCALE = 1e7;
+
+    private static final int NODE_BORDER = 0x01;
+    private static final int NODE_BARRIER = 0x02;
+    private static final int NODE_SOURCE_ID_SAME = 0x04;
+    private static final int NODE_UNCONTRACTED = 0x08;
+    private static final int NODE_RAW_COORDINATES = 0x10;
+
+    private static final int EDGE_SHORTCUT = 0x01;
+    private static final int EDGE_ACCESS_ONLY = 0x02;
+    private static final int EDGE_SOURCE_ID_SAME = 0x04;
+    private static final int EDGE_SOURCE_ID_AS_PREVIOUS = 0x08;
+
+    private static final int COMPRESSION_NONE = 0;
+    private static final int COMPRESSION_DEFLATE = 1;
+
+    static void writeNodes(List<Node> nodesInIndexOrder, DataOutputStream dest, BinaryFormat.Compression compression, StatusMonitor monitor) throws IOException {
+        int totalNodeCount = nodesInIndexOrder.size();
+        dest.writeLong(FILE_VERSION);
+        dest.writeLong(totalNodeCount);
+        monitor.updateStatus(MonitoredProcess.WRITE_NODES, 0, totalNodeCount);
+        BodyWriter body = new BodyWriter(dest, compression);
+        DataOutputStream out = body.out;
+
+        long prevNodeId = 0;
+        int prevLat = 0;
+        int prevLon = 0;
+        for (int i=0 ; i<totalNodeCount ; i++) {
+            Node n = nodesInIndexOrder.get(i);
+            int lat = toFixedPoint(n.lat);
+            int lon = toFixedPoint(n.lon);
+            boolean rawCoordinates = (fromFixedPoint(lat) != n.lat || fromFixedPoint(lon) != n.lon);
+
+            int flags = (!n.contractionAllowed ? NODE_BORDER : 0)
+                    | (n.barrier==Barrier.TRUE ? NODE_BARRIER : 0)
+                    | (n.sourceDataNodeId==n.nodeId ? NODE_SOURCE_ID_SAME : 0)
+                    | (!n.isContracted() ? NODE_UNCONTRACTED : 0)
+                    | (rawCoordinates ? NODE_RAW_COORDINATES : 0);
+            out.writeByte(flags);
+
+            writeSignedVarint(out, n.nodeId - prevNodeId);
+            prevNodeId = n.nodeId;
+            if ((flags & NODE_SOURCE_ID_SAME) == 0)
+                writeSignedVarint(out, n.sourceDataNodeId - n.nodeId);
+            if ((flags & NODE_UNCONTRACTED) == 0)
+                writeVarint(out, n.contractionOrder);
+
+            if (rawCoordinates) {
+                out.writeFloat(n.lat);
+                out.writeFloat(n.lon);
+            } else {
+                writeSignedVarint(out, lat - prevLat);
+                writeSignedVarint(out, lon - prevLon);
+                prevLat = lat;
+                prevLon = lon;
+            }
+            if ((i+1) % 10000 == 0)
+                monitor.updateStatus(MonitoredProcess.WRITE_NODES, i+1, totalNodeCount);
+        }
+        body.finish();
+        monitor.updateStatus(MonitoredProcess.WRITE_NODES, totalNodeCount, totalNodeCount);
+    }
+
+    /**
+     * @param source positioned just after the file version.
+     */
+    static HashMap<Long,Node> readNodes(DataInputStream source, StatusMonitor monitor) throws IOException {
+        long totalNodeCount = source.readLong();
+        DataInputStream in = openBody(source);
+        try {
+            HashMap<Long,Node> nodesById = new HashMap<>(Math.max(1000, (int)(totalNodeCount*4/3)));
+            monitor.updateStatus(MonitoredProcess.LOAD_NODES, 0, totalNodeCount);
+
+            long nodeId = 0;
+            int lat = 0;
+            int lon = 0;
+            for (int i=0 ; i<totalNodeCount ; i++) {
+                int flags = in.readUnsignedByte();
+                nodeId += readSignedVarint(in);
+                long sourceDataNodeId = ((flags & NODE_SOURCE_ID_SAME) != 0 ? nodeId : nodeId + readSignedVarint(in));
+                int contractionOrder = ((flags & NODE_UNCONTRACTED) != 0 ? Node.UNCONTRACTED : (int)readVarint(in));
+
+                float nodeLat;
+                float nodeLon;
+                if ((flags & NODE_RAW_COORDINATES) != 0) {
+                    nodeLat = in.readFloat();
+                    nodeLon = in.readFloat();
+                } else {
+                    lat += (int)readSignedVarint(in);
+                    lon += (int)readSignedVarint(in);
+                    nodeLat = fromFixedPoint(lat);
+                    nodeLon = fromFixedPoint(lon);
+                }
+
+                Node n = new Node(nodeId, sourceDataNodeId, nodeLat, nodeLon, ((flags & NODE_BARRIER) != 0 ? Barrier.TRUE : Barrier.FALSE));
+                n.contractionAllowed = ((flags & NODE_BORDER) == 0);
+                n.contractionOrder = contractionOrder;
+                n.nodeIndex = i;
+                nodesById.put(nodeId, n);
+
+                if ((i+1) % 10000 == 0)
+                    monitor.updateStatus(MonitoredProcess.LOAD_NODES, i+1, totalNodeCount);
+            }
+
+            monitor.updateStatus(MonitoredProcess.LOAD_NODES, totalNodeCount, totalNodeCount);
+            return nodesById;
+        } finally {
+            closeBody(in, source);
+        }
+    }
+
+    static void writeEdges(List<Node> nodesInIndexOrder, DataOutputStream dest, BinaryFormat.Compression compression, StatusMonitor monitor) throws IOException {
+        ArrayList<DirectedEdge> edges = new ArrayList<>();
+        for (Node n : nodesInIndexOrder) {
+            edges.addAll(n.edgesFrom);
+        }
+        Collections.sort(edges, new Comparator<DirectedEdge>() {
+            @Override
+            public int compare(DirectedEdge a, DirectedEdge b) {
+                return Long.compare(a.edgeId, b.edgeId);
+            }
+        });
+
+        int totalEdgeCount = edges.size();
+        dest.writeLong(FILE_VERSION);
+        dest.writeLong(totalEdgeCount);
+        monitor.updateStatus(MonitoredProcess.WRITE_WAYS, 0, totalEdgeCount);
+        BodyWriter body = new BodyWriter(dest, compression);
+        DataOutputStream out = body.out;
+
+        long prevEdgeId = 0;
+        long prevSourceId = 0;
+        int prevFrom = 0;
+        for (int i=0 ; i<totalEdgeCount ; i++) {
+            DirectedEdge de = edges.get(i);
+            int flags = (de.isShortcut() ? EDGE_SHORTCUT : 0)
+                    | (de.accessOnly==AccessOnly.TRUE ? EDGE_ACCESS_ONLY : 0);
+            if (de.sourceDataEdgeId == de.edgeId)
+                flags |= EDGE_SOURCE_ID_SAME;
+            else if (de.sourceDataEdgeId == prevSourceId)
+                flags |= EDGE_SOURCE_ID_AS_PREVIOUS;
+            out.writeByte(flags);
+
+            writeSignedVarint(out, de.edgeId - prevEdgeId);
+            prevEdgeId = de.edgeId;
+            if ((flags & (EDGE_SOURCE_ID_SAME|EDGE_SOURCE_ID_AS_PREVIOUS)) == 0)
+                writeSignedVarint(out, de.sourceDataEdgeId - de.edgeId);
+            prevSourceId = de.sourceDataEdgeId;
+
+            if (de.isShortcut()) {
+                writeVarint(out, de.edgeId - de.first.edgeId);
+                writeVarint(out, de.edgeId - de.second.edgeId);
+            } else {
+                writeSignedVarint(out, de.from.nodeIndex - prevFrom);
+                writeSignedVarint(out, de.to.nodeIndex - de.from.nodeIndex);
+                writeVarint(out, de.driveTimeMs);
+                prevFrom = de.from.nodeIndex;
+            }
+            if ((i+1) % 10000 == 0)
+                monitor.updateStatus(MonitoredProcess.WRITE_WAYS, i+1, totalEdgeCount);
+        }
+        body.finish();
+        monitor.updateStatus(MonitoredProcess.WRITE_WAYS, totalEdgeCount, totalEdgeCount);
+    }
+
+    /**
+     * @param source positioned just after the file version.
+     */
+    static void readEdges(HashMap<Long,Node> nodesById, DataInputStream source, StatusMonitor monitor) throws IOException {
+        long totalEdgeCount = source.readLong();
+        DataInputStream in = openBody(source);
+        try {
+            Node[] nodesByPosition = new Node[nodesById.size()];
+            for (Node n : nodesById.values()) {
+                nodesByPosition[n.nodeIndex] = n;
+            }
+
+            HashMap<Long,DirectedEdge> edgesById = new HashMap<>(Math.max(1000, (int)(totalEdgeCount*4/3)));
+            monitor.updateStatus(MonitoredProcess.LOAD_WAYS, 0, totalEdgeCount);
+
+            long edgeId = 0;
+            long sourceDataEdgeId = 0;
+            int from = 0;
+            for (long i=0 ; i<totalEdgeCount ; i++) {
+                int flags = in.readUnsignedByte();
+                edgeId += readSignedVarint(in);
+                if ((flags & EDGE_SOURCE_ID_SAME) != 0)
+                    sourceDataEdgeId = edgeId;
+                else if ((flags & EDGE_SOURCE_ID_AS_PREVIOUS) == 0)
+                    sourceDataEdgeId = edgeId + readSignedVarint(in);
+
+                DirectedEdge de;
+                if ((flags & EDGE_SHORTCUT) != 0) {
+                    DirectedEdge first = edgesById.get(edgeId - readVarint(in));
+                    DirectedEdge second = edgesById.get(edgeId - readVarint(in));
+                    if (first == null || second == null)
+                        throw new IOException("Shortcut " + edgeId + " refers to an edge that hasn't been loaded");
+                    de = new DirectedEdge(edgeId, sourceDataEdgeId, first, second);
+                } else {
+                    from += (int)readSignedVarint(in);
+                    int to = from + (int)readSignedVarint(in);
+                    int driveTimeMs = (int)readVarint(in);
+                    AccessOnly accessOnly = ((flags & EDGE_ACCESS_ONLY) != 0 ? AccessOnly.TRUE : AccessOnly.FALSE);
+                    de = new DirectedEdge(edgeId, sourceDataEdgeId, nodesByPosition[from], nodesByPosition[to], driveTimeMs, accessOnly);
+                }
+
+                de.from.edgesFrom.add(de);
+                de.to.edgesTo.add(de);
+                edgesById.put(edgeId, de);
+
+                if ((i+1) % 10000 == 0)
+                    monitor.updateStatus(MonitoredProcess.LOAD_WAYS, i+1, totalEdgeCount);
+            }
+
+            monitor.updateStatus(MonitoredProcess.LOAD_WAYS, totalEdgeCount, totalEdgeCount);
+            Node.sortNeighborListsAll(nodesById.values());
+        } finally {
+            closeBody(in, source);
+        }
+    }
+
+    private static final class BodyWriter {
+        final DataOutputStream out;
+        private final DeflateBlockOutputStream deflater;
+
+        BodyWriter(DataOutputStream dest, BinaryFormat.Compression compression) throws IOException {
+            Preconditions.checkNoneNull(compression);
+            if (compression == BinaryFormat.Compression.DEFLATE) {
+                dest.writeByte(COMPRESSION_DEFLATE);
+                deflater = new DeflateBlockOutputStream(dest);
+                out = new DataOutputStream(deflater);
+            } else {
+                dest.writeByte(COMPRESSION_NONE);
+                deflater = null;
+                out = dest;
+            }
+        }
+
+        void finish() throws IOException {
+            out.flush();
+            if (deflater != null)
+                deflater.finish();
+        }
+    }
+
+    private static DataInputStream openBody(DataInputStream source) throws IOException {
+        int compression = source.readUnsignedByte();
+        switch (compression) {
+            case COMPRESSION_NONE:
+                return source;
+            case COMPRESSION_DEFLATE:
+                return new DataInputStream(new DeflateBlockInputStream(source));
+            default:
+                throw new IOException("Unrecognised compression type " + compression);
+        }
+    }
+
+    /**
+     * Releases the inflater, if there is one, without closing the source.
+     */
+    private static void closeBody(DataInputStream in, DataInputStream source) throws IOException {
+        if (in != source)
+            in.close();
+    }
+
+    static int toFixedPoint(float degrees) {
+        return (int)Math.round(degrees*FIXED_POINT_SCALE);
+    }
+
+    static float fromFixedPoint(int fixedPoint) {
+        return (float)(fixedPoint/FIXED_POINT_SCALE);
+    }
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long result = 0;
+        for (int shift=0 ; shift<64 ; shift+=7) {
+            int b = in.readUnsignedByte();
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeSignedVarint(DataOutput out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarint(DataInput in) throws IOException {
+        long zigzag = readVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+}
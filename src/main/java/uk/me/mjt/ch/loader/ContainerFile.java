@@ -0,0 +1,190 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import uk.me.mjt.ch.FrozenGraph;
+import uk.me.mjt.ch.MapData;
+import uk.me.mjt.ch.Node;
+import uk.me.mjt.ch.Preconditions;
+import uk.me.mjt.ch.loader.ContainerFormat.Section;
+import uk.me.mjt.ch.status.StatusMonitor;
+
+/**
+ * An open file written by ContainerFormat. Only the header and section table
+ * are read on opening; each section is read or mapped when asked for.
+ *
+ * Sections that are read are checksummed as they're read. Sections that are
+ * mapped aren't, as that would mean reading every page - call
+ * verifyChecksums() first if that matters.
+ */
+public class ContainerFile implements Closeable {
+    public enum LoadTurnRestrictions { YES, NO }
+
+    private final String filename;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final EnumMap<Section,SectionEntry> sections = new EnumMap<>(Section.class);
+
+    private ContainerFile(String filename) throws IOException {
+        this.filename = filename;
+        this.file = new RandomAccessFile(filename, "r");
+        this.channel = file.getChannel();
+        try {
+            readSectionTable();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public static ContainerFile open(String filename) throws IOException {
+        Preconditions.checkNoneNull(filename);
+        return new ContainerFile(filename);
+    }
+
+    private void readSectionTable() throws IOException {
+        ByteBuffer header = readFully(0, ContainerFormat.HEADER_BYTES);
+        if (header.getLong() != ContainerFormat.MAGIC)
+            throw new IOException(filename + " isn't a container file");
+        int version = header.getInt();
+        if (version != ContainerFormat.CONTAINER_VERSION)
+            throw new IOException("Unsupported container version " + version + " in " + filename);
+        int sectionCount = header.getInt();
+        if (sectionCount < 0)
+            throw new IOException("Corrupt section table in " + filename);
+
+        ByteBuffer table = readFully(ContainerFormat.HEADER_BYTES, (long)sectionCount*ContainerFormat.SECTION_ENTRY_BYTES);
+        for (int i=0 ; i<sectionCount ; i++) {
+            int id = table.getInt();
+            int crc = table.getInt();
+            long offset = table.getLong();
+            long length = table.getLong();
+            if (offset < 0 || length < 0 || offset+length > channel.size())
+                throw new IOException("Section " + id + " of " + filename + " lies outside the file - truncated?");
+
+            Section section = Section.byId(id);
+            if (section != null) // Sections added by later versions are skipped.
+                sections.put(section, new SectionEntry(crc, offset, length));
+        }
+    }
+
+    private ByteBuffer readFully(long position, long length) throws IOException {
+        if (position+length > channel.size())
+            throw new IOException(filename + " is truncated");
+        ByteBuffer bb = ByteBuffer.allocate((int)length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position+bb.position()) < 0)
+                throw new IOException(filename + " is truncated");
+        }
+        bb.flip();
+        return bb;
+    }
+
+    public boolean hasSection(Section section) {
+        return sections.containsKey(section);
+    }
+
+    public long getSectionLength(Section section) throws IOException {
+        return entry(section).length;
+    }
+
+    private SectionEntry entry(Section section) throws IOException {
+        Preconditions.checkNoneNull(section);
+        SectionEntry entry = sections.get(section);
+        if (entry == null)
+            throw new IOException(filename + " has no " + section + " section");
+        return entry;
+    }
+
+    private SectionInputStream openSection(Section section) throws IOException {
+        SectionEntry entry = entry(section);
+        return new SectionInputStream(channel, section + " section of " + filename, entry.offset, entry.length, entry.crc);
+    }
+
+    public MapData readMapData(LoadTurnRestrictions loadTurnRestrictions, StatusMonitor monitor) throws IOException {
+        Preconditions.checkNoneNull(loadTurnRestrictions, monitor);
+        boolean withRestrictions = (loadTurnRestrictions == LoadTurnRestrictions.YES && hasSection(Section.TURN_RESTRICTIONS));
+        try (SectionInputStream nodesIn = openSection(Section.NODES);
+                SectionInputStream waysIn = openSection(Section.EDGES);
+                SectionInputStream restrictionsIn = (withRestrictions ? openSection(Section.TURN_RESTRICTIONS) : null)) {
+            return new BinaryFormat().read(nodesIn, waysIn, restrictionsIn, monitor);
+        }
+    }
+
+    /**
+     * @return The nodes, with no edges, in node index order.
+     */
+    public List<Node> readNodes(StatusMonitor monitor) throws IOException {
+        Preconditions.checkNoneNull(monitor);
+        HashMap<Long,Node> nodesById;
+        try (DataInputStream dis = BinaryFormat.inStream(openSection(Section.NODES))) {
+            nodesById = new BinaryFormat().readNodes(dis, monitor);
+        }
+        Node[] result = new Node[nodesById.size()];
+        for (Node n : nodesById.values()) {
+            result[n.nodeIndex] = n;
+        }
+        return Arrays.asList(result);
+    }
+
+    public ContractionMetadata readContractionMetadata() throws IOException {
+        try (DataInputStream dis = new DataInputStream(openSection(Section.CONTRACTION_METADATA))) {
+            return ContractionMetadata.readFrom(dis);
+        }
+    }
+
+    public NodeIndex mapNodeIndex() throws IOException {
+        return new NodeIndex(mapSection(Section.NODE_INDEX));
+    }
+
+    public FrozenGraph mapFrozenGraph() throws IOException {
+        SectionEntry entry = entry(Section.FROZEN_GRAPH);
+        return FrozenGraph.map(channel, entry.offset, entry.length);
+    }
+
+    /**
+     * The raw bytes of a section, read only. The mapping stays valid after
+     * the file is closed.
+     */
+    public ByteBuffer mapSection(Section section) throws IOException {
+        SectionEntry entry = entry(section);
+        if (entry.length > Integer.MAX_VALUE)
+            throw new IOException(section + " section of " + filename + " is too big to map in one piece");
+        return channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+    }
+
+    /**
+     * @throws IOException if any section's checksum doesn't match.
+     */
+    public void verifyChecksums() throws IOException {
+        for (Section section : sections.keySet()) {
+            openSection(section).close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static final class SectionEntry {
+        final int crc;
+        final long offset;
+        final long length;
+
+        SectionEntry(int crc, long offset, long length) {
+            this.crc = crc;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import uk.me.mjt.ch.MapData;
+import uk.me.mjt.ch.Preconditions;
+import uk.me.mjt.ch.status.StatusMonitor;
+
+/**
+ * Everything BinaryFormat writes to separate node, way and turn restriction
+ * files, in one file, split into sections a reader can pick between - so a
+ * query server can skip the turn restrictions, or a tool can read just the
+ * nodes. Read with ContainerFile.
+ *
+ * The file starts with a header and a table of sections:
+ * <pre>
+ * long   magic number
+ * int    container format version
+ * int    section count
+ * then for each section:
+ * int    section ID
+ * int    CRC32 of the section's bytes
+ * long   offset from the start of the file
+ * long   length in bytes
+ * </pre>
+ * Sections start on 8 byte boundaries so they can be memory mapped. Node,
+ * edge and turn restriction sections hold exactly what BinaryFormat would
+ * have written to the separate files, in whatever version it was configured
+ * to write. The checksums are plain CRC32 - Java 7 has no CRC32C.
+ */
+public class ContainerFormat {
+    public enum Section {
+        NODES(1), EDGES(2), TURN_RESTRICTIONS(3), CONTRACTION_METADATA(4), NODE_INDEX(5), FROZEN_GRAPH(6);
+
+        final int id;
+
+        private Section(int id) {
+            this.id = id;
+        }
+
+        static Section byId(int id) {
+            for (Section s : values()) {
+                if (s.id == id)
+                    return s;
+            }
+            return null;
+        }
+    }
+
+    public enum IncludeFrozenGraph { YES, NO }
+
+    static final long MAGIC = 0x43482d47524150L; // "CH-GRAP"
+    static final int CONTAINER_VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int SECTION_ENTRY_BYTES = 24;
+
+    private static final int WRITE_BUFFER_BYTES = 1<<20;
+
+    private final BinaryFormat recordFormat;
+
+    public ContainerFormat() {
+        this(new BinaryFormat());
+    }
+
+    /**
+     * @param recordFormat Used to write the node, edge and turn restriction
+     * sections - for example BinaryFormat.compact(...) for smaller files.
+     */
+    public ContainerFormat(BinaryFormat recordFormat) {
+        Preconditions.checkNoneNull(recordFormat);
+        this.recordFormat = recordFormat;
+    }
+
+    public void write(MapData toWrite, String filename, IncludeFrozenGraph includeFrozenGraph, StatusMonitor monitor) throws IOException {
+        Preconditions.checkNoneNull(toWrite, filename, includeFrozenGraph, monitor);
+        List<Section> sections = new ArrayList<>();
+        sections.add(Section.CONTRACTION_METADATA);
+        sections.add(Section.NODE_INDEX);
+        sections.add(Section.NODES);
+        sections.add(Section.EDGES);
+        sections.add(Section.TURN_RESTRICTIONS);
+        if (includeFrozenGraph == IncludeFrozenGraph.YES)
+            sections.add(Section.FROZEN_GRAPH);
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+                FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer table = ByteBuffer.allocate(HEADER_BYTES + SECTION_ENTRY_BYTES*sections.size());
+            table.putLong(MAGIC);
+            table.putInt(CONTAINER_VERSION);
+            table.putInt(sections.size());
+
+            long position = padTo8(table.capacity());
+            for (Section section : sections) {
+                channel.position(position);
+                writeSection(section, toWrite, channel, monitor);
+                long length = channel.position() - position;
+
+                table.putInt(section.id);
+                table.putInt(crcOf(channel, position, length));
+                table.putLong(position);
+                table.putLong(length);
+                position = padTo8(position + length);
+            }
+
+            table.flip();
+            while (table.hasRemaining()) {
+                channel.write(table, table.position());
+            }
+        }
+    }
+
+    private void writeSection(Section section, MapData toWrite, FileChannel channel, StatusMonitor monitor) throws IOException {
+        if (section == Section.FROZEN_GRAPH) {
+            toWrite.freeze().writeTo(channel);
+            return;
+        }
+
+        // Not closed, as that would close the channel too.
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_BYTES));
+        switch (section) {
+            case NODES:
+                recordFormat.writeNodes(toWrite, dos, monitor);
+                break;
+            case EDGES:
+                recordFormat.writeEdges(toWrite, dos, monitor);
+                break;
+            case TURN_RESTRICTIONS:
+                recordFormat.writeTurnRestrictions(toWrite.allTurnRestrictions(), dos);
+                break;
+            case CONTRACTION_METADATA:
+                ContractionMetadata.of(toWrite).writeTo(dos);
+                break;
+            case NODE_INDEX:
+                NodeIndex.write(toWrite, dos);
+                break;
+            default:
+                throw new IllegalArgumentException("Don't know how to write section " + section);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Read back what was just written, rather than checksumming on the way
+     * out, so sections written straight to the channel get the same treatment.
+     */
+    private static int crcOf(FileChannel channel, long position, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end-position));
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file while checksumming");
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return (int)crc.getValue();
+    }
+
+    static long padTo8(long size) {
+        return (size+7) & ~7L;
+    }
+
+}
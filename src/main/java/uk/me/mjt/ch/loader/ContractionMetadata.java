@@ -0,0 +1,121 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import uk.me.mjt.ch.DirectedEdge;
+import uk.me.mjt.ch.MapData;
+import uk.me.mjt.ch.Node;
+
+/**
+ * Summary of a graph and its contraction, small enough to read from a
+ * ContainerFile before deciding what else to load.
+ */
+public class ContractionMetadata {
+    private static final int VERSION = 1;
+
+    private final long nodeCount;
+    private final long contractedNodeCount;
+    private final long edgeCount;
+    private final long shortcutCount;
+    private final int maxContractionOrder;
+    private final int maxContractionDepth;
+    private final long maxEdgeId;
+
+    private ContractionMetadata(long nodeCount, long contractedNodeCount, long edgeCount, long shortcutCount,
+            int maxContractionOrder, int maxContractionDepth, long maxEdgeId) {
+        this.nodeCount = nodeCount;
+        this.contractedNodeCount = contractedNodeCount;
+        this.edgeCount = edgeCount;
+        this.shortcutCount = shortcutCount;
+        this.maxContractionOrder = maxContractionOrder;
+        this.maxContractionDepth = maxContractionDepth;
+        this.maxEdgeId = maxEdgeId;
+    }
+
+    static ContractionMetadata of(MapData md) {
+        long contractedNodeCount = 0;
+        long edgeCount = 0;
+        long shortcutCount = 0;
+        int maxContractionOrder = Integer.MIN_VALUE;
+        int maxContractionDepth = 0;
+        long maxEdgeId = Long.MIN_VALUE;
+        for (Node n : md.getAllNodes()) {
+            if (n.isContracted()) {
+                contractedNodeCount++;
+                maxContractionOrder = Math.max(maxContractionOrder, n.contractionOrder);
+            }
+            for (DirectedEdge de : n.edgesFrom) {
+                edgeCount++;
+                if (de.isShortcut())
+                    shortcutCount++;
+                maxContractionDepth = Math.max(maxContractionDepth, de.contractionDepth);
+                maxEdgeId = Math.max(maxEdgeId, de.edgeId);
+            }
+        }
+        return new ContractionMetadata(md.getNodeCount(), contractedNodeCount, edgeCount, shortcutCount,
+                maxContractionOrder, maxContractionDepth, maxEdgeId);
+    }
+
+    void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(VERSION);
+        dos.writeLong(nodeCount);
+        dos.writeLong(contractedNodeCount);
+        dos.writeLong(edgeCount);
+        dos.writeLong(shortcutCount);
+        dos.writeInt(maxContractionOrder);
+        dos.writeInt(maxContractionDepth);
+        dos.writeLong(maxEdgeId);
+    }
+
+    static ContractionMetadata readFrom(DataInputStream dis) throws IOException {
+        int version = dis.readInt();
+        if (version != VERSION)
+            throw new IOException("Unrecognised contraction metadata version " + version);
+        return new ContractionMetadata(dis.readLong(), dis.readLong(), dis.readLong(), dis.readLong(),
+                dis.readInt(), dis.readInt(), dis.readLong());
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getContractedNodeCount() {
+        return contractedNodeCount;
+    }
+
+    public boolean isFullyContracted() {
+        return contractedNodeCount == nodeCount;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    public long getShortcutCount() {
+        return shortcutCount;
+    }
+
+    /**
+     * @return The highest contraction order of any contracted node, or
+     * Integer.MIN_VALUE if none are contracted.
+     */
+    public int getMaxContractionOrder() {
+        return maxContractionOrder;
+    }
+
+    public int getMaxContractionDepth() {
+        return maxContractionDepth;
+    }
+
+    public long getMaxEdgeId() {
+        return maxEdgeId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d nodes (%d contracted), %d edges (%d shortcuts, max depth %d)",
+                nodeCount, contractedNodeCount, edgeCount, shortcutCount, maxContractionDepth);
+    }
+
+}
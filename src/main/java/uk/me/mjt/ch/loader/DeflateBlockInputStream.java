@@ -0,0 +1,101 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by DeflateBlockOutputStream. Stops at the end
+ * marker, leaving the underlying stream just after it. close() releases the
+ * inflater but doesn't close the underlying stream.
+ */
+class DeflateBlockInputStream extends InputStream {
+    private final DataInputStream source;
+    private final Inflater inflater = new Inflater();
+    private byte[] block = new byte[0];
+    private byte[] compressed = new byte[0];
+    private int blockLength = 0;
+    private int position = 0;
+    private boolean endOfData = false;
+    private boolean closed = false;
+
+    DeflateBlockInputStream(DataInputStream source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData())
+            return -1;
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!ensureData())
+            return -1;
+        int toCopy = Math.min(len, blockLength-position);
+        System.arraycopy(block, position, b, off, toCopy);
+        position += toCopy;
+        return toCopy;
+    }
+
+    private boolean ensureData() throws IOException {
+        while (position == blockLength) {
+            if (endOfData)
+                return false;
+            if (closed)
+                throw new IOException("Stream closed");
+            readBlock();
+        }
+        return true;
+    }
+
+    private void readBlock() throws IOException {
+        int rawLength = source.readInt();
+        if (rawLength == 0) {
+            endOfData = true;
+            close();
+            return;
+        }
+        int compressedLength = source.readInt();
+        if (rawLength < 0 || compressedLength < 0)
+            throw new IOException("Corrupt block header " + rawLength + "/" + compressedLength);
+
+        if (compressed.length < compressedLength)
+            compressed = new byte[compressedLength];
+        if (block.length < rawLength)
+            block = new byte[rawLength];
+        source.readFully(compressed, 0, compressedLength);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < rawLength) {
+                int n = inflater.inflate(block, inflated, rawLength-inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new EOFException("Block inflated to " + inflated + " bytes, expected " + rawLength);
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        blockLength = rawLength;
+        position = 0;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate compresses data in independent blocks of up to BLOCK_BYTES. Each
+ * block is written as its uncompressed length, its compressed length, then
+ * the compressed bytes; a zero uncompressed length marks the end. As blocks
+ * don't depend on each other, they could be inflated in parallel.
+ *
+ * finish() writes the end marker but doesn't close the underlying stream.
+ */
+class DeflateBlockOutputStream extends OutputStream {
+    static final int BLOCK_BYTES = 1<<20;
+
+    private final DataOutputStream dest;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] block = new byte[BLOCK_BYTES];
+    private byte[] compressed = new byte[BLOCK_BYTES + BLOCK_BYTES/8 + 64];
+    private int blockLength = 0;
+    private boolean finished = false;
+
+    DeflateBlockOutputStream(DataOutputStream dest) {
+        this.dest = dest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == BLOCK_BYTES)
+            writeBlock();
+        block[blockLength++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == BLOCK_BYTES)
+                writeBlock();
+            int toCopy = Math.min(len, BLOCK_BYTES-blockLength);
+            System.arraycopy(b, off, block, blockLength, toCopy);
+            blockLength += toCopy;
+            off += toCopy;
+            len -= toCopy;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockLength == 0)
+            return;
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length)
+                compressed = Arrays.copyOf(compressed, 2*compressed.length);
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length-compressedLength);
+        }
+
+        dest.writeInt(blockLength);
+        dest.writeInt(compressedLength);
+        dest.write(compressed, 0, compressedLength);
+        blockLength = 0;
+    }
+
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        writeBlock();
+        dest.writeInt(0);
+        dest.flush();
+        deflater.end();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        dest.close();
+    }
+
+}
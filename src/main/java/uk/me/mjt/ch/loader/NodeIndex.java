@@ -0,0 +1,200 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import uk.me.mjt.ch.MapData;
+import uk.me.mjt.ch.Node;
+
+/**
+ * Lookup of node index by node ID, and of node indices by location, stored
+ * as a ContainerFile section so it can be memory mapped and used without
+ * reading the nodes themselves. Node indices are positions in the node
+ * section, which become Node.nodeIndex when the MapData is read.
+ *
+ * The spatial part is a uniform grid over the nodes' bounding box, with
+ * about NODES_PER_CELL nodes per cell on average.
+ */
+public class NodeIndex {
+    public static final int NODE_NOT_FOUND = -1;
+
+    private static final int NODES_PER_CELL = 16;
+    private static final int HEADER_BYTES = 24;
+
+    private final int nodeCount;
+    private final int gridSize;
+    private final float minLat;
+    private final float maxLat;
+    private final float minLon;
+    private final float maxLon;
+    private final LongBuffer sortedNodeIds;
+    private final IntBuffer nodeIndicesBySortedId;
+    private final FloatBuffer lats;
+    private final FloatBuffer lons;
+    private final IntBuffer cellOffsets;
+    private final IntBuffer nodeIndicesByCell;
+
+    NodeIndex(ByteBuffer section) {
+        nodeCount = section.getInt(0);
+        gridSize = section.getInt(4);
+        minLat = section.getFloat(8);
+        maxLat = section.getFloat(12);
+        minLon = section.getFloat(16);
+        maxLon = section.getFloat(20);
+
+        int position = HEADER_BYTES;
+        sortedNodeIds = slice(section, position, 8*nodeCount).asLongBuffer();
+        position += 8*nodeCount;
+        nodeIndicesBySortedId = slice(section, position, 4*nodeCount).asIntBuffer();
+        position += 4*nodeCount;
+        lats = slice(section, position, 4*nodeCount).asFloatBuffer();
+        position += 4*nodeCount;
+        lons = slice(section, position, 4*nodeCount).asFloatBuffer();
+        position += 4*nodeCount;
+        cellOffsets = slice(section, position, 4*(gridSize*gridSize+1)).asIntBuffer();
+        position += 4*(gridSize*gridSize+1);
+        nodeIndicesByCell = slice(section, position, 4*nodeCount).asIntBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer bb, int position, int length) {
+        ByteBuffer dup = bb.duplicate();
+        dup.position(position);
+        dup.limit(position+length);
+        return dup.slice();
+    }
+
+    static void write(MapData md, DataOutputStream dos) throws IOException {
+        int nodeCount = md.getNodeCount();
+        int gridSize = Math.max(1, (int)Math.sqrt(nodeCount/NODES_PER_CELL));
+        float minLat = Float.MAX_VALUE, maxLat = -Float.MAX_VALUE;
+        float minLon = Float.MAX_VALUE, maxLon = -Float.MAX_VALUE;
+        long[] sortedNodeIds = new long[nodeCount];
+        for (int i=0 ; i<nodeCount ; i++) {
+            Node n = md.getNodeByIndex(i);
+            sortedNodeIds[i] = n.nodeId;
+            minLat = Math.min(minLat, n.lat);
+            maxLat = Math.max(maxLat, n.lat);
+            minLon = Math.min(minLon, n.lon);
+            maxLon = Math.max(maxLon, n.lon);
+        }
+        Arrays.sort(sortedNodeIds);
+
+        dos.writeInt(nodeCount);
+        dos.writeInt(gridSize);
+        dos.writeFloat(minLat);
+        dos.writeFloat(maxLat);
+        dos.writeFloat(minLon);
+        dos.writeFloat(maxLon);
+        for (long nodeId : sortedNodeIds) {
+            dos.writeLong(nodeId);
+        }
+        for (long nodeId : sortedNodeIds) {
+            dos.writeInt(md.getNodeById(nodeId).nodeIndex);
+        }
+        for (int i=0 ; i<nodeCount ; i++) {
+            dos.writeFloat(md.getNodeByIndex(i).lat);
+        }
+        for (int i=0 ; i<nodeCount ; i++) {
+            dos.writeFloat(md.getNodeByIndex(i).lon);
+        }
+
+        int[] cells = new int[nodeCount];
+        int[] cellOffsets = new int[gridSize*gridSize+1];
+        for (int i=0 ; i<nodeCount ; i++) {
+            Node n = md.getNodeByIndex(i);
+            cells[i] = cellOf(n.lat, n.lon, gridSize, minLat, maxLat, minLon, maxLon);
+            cellOffsets[cells[i]+1]++;
+        }
+        for (int i=1 ; i<cellOffsets.length ; i++) {
+            cellOffsets[i] += cellOffsets[i-1];
+        }
+        int[] nodeIndicesByCell = new int[nodeCount];
+        int[] nextInCell = Arrays.copyOf(cellOffsets, cellOffsets.length-1);
+        for (int i=0 ; i<nodeCount ; i++) {
+            nodeIndicesByCell[nextInCell[cells[i]]++] = i;
+        }
+        for (int offset : cellOffsets) {
+            dos.writeInt(offset);
+        }
+        for (int nodeIndex : nodeIndicesByCell) {
+            dos.writeInt(nodeIndex);
+        }
+    }
+
+    private static int cellOf(float lat, float lon, int gridSize, float minLat, float maxLat, float minLon, float maxLon) {
+        return gridCoordinate(lat, minLat, maxLat, gridSize)*gridSize + gridCoordinate(lon, minLon, maxLon, gridSize);
+    }
+
+    private static int gridCoordinate(float value, float min, float max, int gridSize) {
+        if (max <= min)
+            return 0;
+        int result = (int)(gridSize*((double)value-min)/((double)max-min));
+        return Math.max(0, Math.min(gridSize-1, result));
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return The node's index, or NODE_NOT_FOUND.
+     */
+    public int getNodeIndex(long nodeId) {
+        int lo = 0;
+        int hi = nodeCount-1;
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            long midId = sortedNodeIds.get(mid);
+            if (midId < nodeId)
+                lo = mid+1;
+            else if (midId > nodeId)
+                hi = mid-1;
+            else
+                return nodeIndicesBySortedId.get(mid);
+        }
+        return NODE_NOT_FOUND;
+    }
+
+    public float getLat(int nodeIndex) {
+        return lats.get(nodeIndex);
+    }
+
+    public float getLon(int nodeIndex) {
+        return lons.get(nodeIndex);
+    }
+
+    /**
+     * @return The indices of all nodes within the box, edges included, in no
+     * particular order.
+     */
+    public int[] findNodesInBox(float boxMinLat, float boxMinLon, float boxMaxLat, float boxMaxLon) {
+        int fromRow = gridCoordinate(boxMinLat, minLat, maxLat, gridSize);
+        int toRow = gridCoordinate(boxMaxLat, minLat, maxLat, gridSize);
+        int fromCol = gridCoordinate(boxMinLon, minLon, maxLon, gridSize);
+        int toCol = gridCoordinate(boxMaxLon, minLon, maxLon, gridSize);
+
+        int[] result = new int[16];
+        int resultCount = 0;
+        for (int row=fromRow ; row<=toRow ; row++) {
+            for (int col=fromCol ; col<=toCol ; col++) {
+                int cell = row*gridSize + col;
+                for (int i=cellOffsets.get(cell) ; i<cellOffsets.get(cell+1) ; i++) {
+                    int n = nodeIndicesByCell.get(i);
+                    float lat = lats.get(n);
+                    float lon = lons.get(n);
+                    if (lat >= boxMinLat && lat <= boxMaxLat && lon >= boxMinLon && lon <= boxMaxLon) {
+                        if (resultCount == result.length)
+                            result = Arrays.copyOf(result, 2*result.length);
+                        result[resultCount++] = n;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(result, resultCount);
+    }
+
+}
@@ -0,0 +1,437 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import uk.me.mjt.ch.AccessOnly;
+import uk.me.mjt.ch.Barrier;
+import uk.me.mjt.ch.DirectedEdge;
+import uk.me.mjt.ch.MapData;
+import uk.me.mjt.ch.Node;
+import uk.me.mjt.ch.Preconditions;
+import uk.me.mjt.ch.TurnRestriction;
+import uk.me.mjt.ch.status.MonitoredProcess;
+import uk.me.mjt.ch.status.StatusMonitor;
+
+/**
+ * Reads v5/v6 node and way files using several threads. Records are fixed
+ * size, so the file can be split into chunks of records, each read with a
+ * positional FileChannel read into its own ByteBuffer and parsed separately.
+ *
+ * Nodes are read first. Edges then take two phases: ordinary edges are
+ * created as they're parsed, while shortcuts just have their IDs recorded.
+ * Once everything's parsed, shortcuts are created level by level of
+ * contraction depth - every shortcut's children are in a lower level, so
+ * each level can be built in parallel. Finally the edges are bucketed by
+ * node, so each node's edge lists can be filled and sorted by one thread
+ * without locking.
+ *
+ * The result is the same MapData BinaryFormat.read produces, with nodes
+ * numbered in file order.
+ */
+class ParallelBinaryReader {
+    static final int NODE_RECORD_BYTES = 8+8+8+1+8+8;
+    static final int EDGE_RECORD_BYTES = 8+8+8+8+4+1+8+8;
+    private static final int RECORDS_PER_CHUNK = 1<<16;
+    private static final int NOT_A_SHORTCUT = -1;
+
+    private final ExecutorService es;
+    private final StatusMonitor monitor;
+
+    ParallelBinaryReader(ExecutorService es, StatusMonitor monitor) {
+        Preconditions.checkNoneNull(es, monitor);
+        this.es = es;
+        this.monitor = monitor;
+    }
+
+    MapData read(String nodeFile, String wayFile, Set<TurnRestriction> turnRestrictions) throws IOException {
+        Node[] nodes;
+        try (RandomAccessFile file = new RandomAccessFile(nodeFile, "r");
+                FileChannel channel = file.getChannel()) {
+            nodes = readNodes(channel);
+        }
+
+        HashMap<Long,Node> nodesById = new HashMap<>(2*nodes.length);
+        for (Node n : nodes) {
+            nodesById.put(n.nodeId, n);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(wayFile, "r");
+                FileChannel channel = file.getChannel()) {
+            new EdgeLoader(channel, nodes, nodesById).load();
+        }
+
+        MapData md = new MapData(nodesById, turnRestrictions, monitor);
+        md.validate(monitor);
+        return md;
+    }
+
+    private static final class FileLayout {
+        final long headerBytes;
+        final int recordCount;
+
+        FileLayout(FileChannel channel, int recordBytes) throws IOException {
+            ByteBuffer header = readFully(channel, 0, (int)Math.min(16, channel.size()));
+            long fileFormatVersion = header.getLong(0);
+            BinaryFormat.checkFileFormatVersion(fileFormatVersion);
+            if (fileFormatVersion > BinaryFormat.LAST_FIXED_SIZE_RECORD_VERSION)
+                throw new IOException("File format version " + fileFormatVersion + " doesn't have fixed size records");
+
+            headerBytes = (fileFormatVersion >= 6 ? 16 : 8);
+            long bodyBytes = channel.size() - headerBytes;
+            long count = (fileFormatVersion >= 6 ? header.getLong(8) : bodyBytes/recordBytes);
+            if (count*recordBytes != bodyBytes || count > Integer.MAX_VALUE) {
+                throw new IOException("Expected " + count + " records of " + recordBytes
+                        + " bytes, but file has " + bodyBytes + " bytes after the header");
+            }
+            recordCount = (int)count;
+        }
+
+        ByteBuffer readChunk(FileChannel channel, int recordBytes, int firstRecord, int recordCount) throws IOException {
+            return readFully(channel, headerBytes + (long)firstRecord*recordBytes, recordCount*recordBytes);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position+bb.position()) < 0)
+                throw new IOException("Unexpected end of file at " + (position+bb.position()));
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private Node[] readNodes(final FileChannel channel) throws IOException {
+        final FileLayout layout = new FileLayout(channel, NODE_RECORD_BYTES);
+        final Node[] nodes = new Node[layout.recordCount];
+        monitor.updateStatus(MonitoredProcess.LOAD_NODES, 0, nodes.length);
+
+        ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+        for (int chunkStart=0 ; chunkStart<nodes.length ; chunkStart+=RECORDS_PER_CHUNK) {
+            final int from = chunkStart;
+            final int count = Math.min(RECORDS_PER_CHUNK, nodes.length-chunkStart);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    ByteBuffer bb = layout.readChunk(channel, NODE_RECORD_BYTES, from, count);
+                    for (int i=from ; i<from+count ; i++) {
+                        nodes[i] = parseNode(bb);
+                        nodes[i].nodeIndex = i;
+                    }
+                    return count;
+                }
+            });
+        }
+        runAll(tasks, MonitoredProcess.LOAD_NODES, nodes.length);
+        return nodes;
+    }
+
+    private static Node parseNode(ByteBuffer bb) {
+        long nodeId = bb.getLong();
+        long sourceDataNodeId = bb.getLong();
+        long contractionOrder = bb.getLong();
+        int properties = bb.get();
+        boolean isBorderNode = (properties&0x01)!=0;
+        boolean isBarrier = (properties&0x02)!=0;
+        double lat = bb.getDouble();
+        double lon = bb.getDouble();
+
+        Node n = new Node(nodeId,sourceDataNodeId,(float)lat,(float)lon,(isBarrier?Barrier.TRUE:Barrier.FALSE));
+        n.contractionAllowed = !isBorderNode;
+        n.contractionOrder = (contractionOrder==Long.MAX_VALUE ? Node.UNCONTRACTED : (int)contractionOrder);
+        return n;
+    }
+
+    private final class EdgeLoader {
+        final FileChannel channel;
+        final Node[] nodes;
+        final HashMap<Long,Node> nodesById;
+        final FileLayout layout;
+        final int edgeCount;
+
+        final DirectedEdge[] edges;
+        final long[] edgeIds;
+        final long[] shortcutSourceDataIds;
+        final long[] firstIds;
+        final long[] secondIds;
+        final int[] firstRecords;
+        final int[] secondRecords;
+
+        EdgeLoader(FileChannel channel, Node[] nodes, HashMap<Long,Node> nodesById) throws IOException {
+            this.channel = channel;
+            this.nodes = nodes;
+            this.nodesById = nodesById;
+            this.layout = new FileLayout(channel, EDGE_RECORD_BYTES);
+            this.edgeCount = layout.recordCount;
+
+            edges = new DirectedEdge[edgeCount];
+            edgeIds = new long[edgeCount];
+            shortcutSourceDataIds = new long[edgeCount];
+            firstIds = new long[edgeCount];
+            secondIds = new long[edgeCount];
+            firstRecords = new int[edgeCount];
+            secondRecords = new int[edgeCount];
+        }
+
+        void load() throws IOException {
+            monitor.updateStatus(MonitoredProcess.LOAD_WAYS, 0, edgeCount);
+            parseAllRecords();
+            resolveShortcutChildren();
+            createShortcutsByDepth();
+            linkToNodes();
+            monitor.updateStatus(MonitoredProcess.LOAD_WAYS, edgeCount, edgeCount);
+        }
+
+        /**
+         * Phase one: ordinary edges are created straight away; shortcuts only
+         * get their IDs stored until all the records have been read.
+         */
+        private void parseAllRecords() throws IOException {
+            ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+            for (int chunkStart=0 ; chunkStart<edgeCount ; chunkStart+=RECORDS_PER_CHUNK) {
+                final int from = chunkStart;
+                final int count = Math.min(RECORDS_PER_CHUNK, edgeCount-chunkStart);
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        ByteBuffer bb = layout.readChunk(channel, EDGE_RECORD_BYTES, from, count);
+                        for (int i=from ; i<from+count ; i++) {
+                            parseEdge(bb, i);
+                        }
+                        return count;
+                    }
+                });
+            }
+            runAll(tasks, MonitoredProcess.LOAD_WAYS, edgeCount);
+        }
+
+        private void parseEdge(ByteBuffer bb, int record) {
+            long edgeId = bb.getLong();
+            long sourceDataEdgeId = bb.getLong();
+            long fromNodeId = bb.getLong();
+            long toNodeId = bb.getLong();
+            int driveTimeMs = bb.getInt();
+            byte properties = bb.get();
+            boolean isShortcut = (properties&0x01)==0x01;
+            boolean isAccessOnly = (properties&0x02)==0x02;
+            long firstEdgeId = bb.getLong();
+            long secondEdgeId = bb.getLong();
+
+            Node fromNode = nodesById.get(fromNodeId);
+            Node toNode = nodesById.get(toNodeId);
+            if (fromNode==null || toNode==null) {
+                throw new RuntimeException("Tried to load nodes " + fromNodeId + " and " + toNodeId
+                        + " for edge " + edgeId + " but got " + fromNode + " and " + toNode);
+            }
+
+            edgeIds[record] = edgeId;
+            if (isShortcut) {
+                shortcutSourceDataIds[record] = sourceDataEdgeId;
+                firstIds[record] = firstEdgeId;
+                secondIds[record] = secondEdgeId;
+            } else {
+                edges[record] = new DirectedEdge(edgeId, sourceDataEdgeId, fromNode, toNode, driveTimeMs, (isAccessOnly?AccessOnly.TRUE:AccessOnly.FALSE));
+            }
+        }
+
+        /**
+         * Phase two, part one: turn the child edge IDs of each shortcut into
+         * record numbers, using edge IDs sorted alongside their record numbers.
+         */
+        private void resolveShortcutChildren() throws IOException {
+            final long[] sortedIds = Arrays.copyOf(edgeIds, edgeCount);
+            Arrays.sort(sortedIds);
+            for (int i=1 ; i<edgeCount ; i++) {
+                if (sortedIds[i] == sortedIds[i-1])
+                    throw new RuntimeException("Duplicate edge ID " + sortedIds[i]);
+            }
+
+            final int[] recordBySortedPosition = new int[edgeCount];
+            runOverEdges(new ChunkTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i=from ; i<to ; i++) {
+                        recordBySortedPosition[Arrays.binarySearch(sortedIds, edgeIds[i])] = i;
+                    }
+                }
+            });
+
+            runOverEdges(new ChunkTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i=from ; i<to ; i++) {
+                        if (edges[i] != null) {
+                            firstRecords[i] = NOT_A_SHORTCUT;
+                            secondRecords[i] = NOT_A_SHORTCUT;
+                        } else {
+                            firstRecords[i] = findRecord(sortedIds, recordBySortedPosition, firstIds[i], edgeIds[i]);
+                            secondRecords[i] = findRecord(sortedIds, recordBySortedPosition, secondIds[i], edgeIds[i]);
+                        }
+                    }
+                }
+            });
+        }
+
+        private int findRecord(long[] sortedIds, int[] recordBySortedPosition, long childId, long parentId) {
+            int position = Arrays.binarySearch(sortedIds, childId);
+            if (position < 0)
+                throw new RuntimeException("Shortcut " + parentId + " refers to missing edge " + childId);
+            return recordBySortedPosition[position];
+        }
+
+        /**
+         * Phase two, part two: a shortcut's children are always created before
+         * it, a level of contraction depth at a time. Depths are worked out
+         * from the file order, which BinaryFormat writes children-first.
+         */
+        private void createShortcutsByDepth() throws IOException {
+            int[] depth = new int[edgeCount];
+            int maxDepth = 0;
+            for (int i=0 ; i<edgeCount ; i++) {
+                if (firstRecords[i] != NOT_A_SHORTCUT) {
+                    if (firstRecords[i] >= i || secondRecords[i] >= i)
+                        throw new RuntimeException("Shortcut " + edgeIds[i] + " appears before the edges it's made of");
+                    depth[i] = 1 + Math.max(depth[firstRecords[i]], depth[secondRecords[i]]);
+                    maxDepth = Math.max(maxDepth, depth[i]);
+                }
+            }
+
+            final int[] levelOffsets = new int[maxDepth+2];
+            for (int i=0 ; i<edgeCount ; i++) {
+                levelOffsets[depth[i]+1]++;
+            }
+            for (int i=1 ; i<levelOffsets.length ; i++) {
+                levelOffsets[i] += levelOffsets[i-1];
+            }
+            final int[] recordsByLevel = new int[edgeCount];
+            int[] nextFree = Arrays.copyOf(levelOffsets, levelOffsets.length-1);
+            for (int i=0 ; i<edgeCount ; i++) {
+                recordsByLevel[nextFree[depth[i]]++] = i;
+            }
+
+            for (int level=1 ; level<=maxDepth ; level++) {
+                final int levelStart = levelOffsets[level];
+                runInChunks(levelOffsets[level+1]-levelStart, new ChunkTask() {
+                    @Override
+                    public void run(int from, int to) {
+                        for (int i=levelStart+from ; i<levelStart+to ; i++) {
+                            int record = recordsByLevel[i];
+                            edges[record] = new DirectedEdge(edgeIds[record], shortcutSourceDataIds[record],
+                                    edges[firstRecords[record]], edges[secondRecords[record]]);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Bucket the edges by node index, so each node's lists are only ever
+         * touched by one thread.
+         */
+        private void linkToNodes() throws IOException {
+            final int[] fromOffsets = new int[nodes.length+1];
+            final int[] toOffsets = new int[nodes.length+1];
+            for (DirectedEdge de : edges) {
+                fromOffsets[de.from.nodeIndex+1]++;
+                toOffsets[de.to.nodeIndex+1]++;
+            }
+            for (int i=1 ; i<=nodes.length ; i++) {
+                fromOffsets[i] += fromOffsets[i-1];
+                toOffsets[i] += toOffsets[i-1];
+            }
+
+            final DirectedEdge[] edgesByFrom = new DirectedEdge[edgeCount];
+            final DirectedEdge[] edgesByTo = new DirectedEdge[edgeCount];
+            int[] nextFrom = Arrays.copyOf(fromOffsets, nodes.length);
+            int[] nextTo = Arrays.copyOf(toOffsets, nodes.length);
+            for (DirectedEdge de : edges) {
+                edgesByFrom[nextFrom[de.from.nodeIndex]++] = de;
+                edgesByTo[nextTo[de.to.nodeIndex]++] = de;
+            }
+
+            runInChunks(nodes.length, new ChunkTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i=from ; i<to ; i++) {
+                        Node n = nodes[i];
+                        n.edgesFrom.ensureCapacity(n.edgesFrom.size() + fromOffsets[i+1] - fromOffsets[i]);
+                        n.edgesFrom.addAll(Arrays.asList(edgesByFrom).subList(fromOffsets[i], fromOffsets[i+1]));
+                        n.edgesTo.ensureCapacity(n.edgesTo.size() + toOffsets[i+1] - toOffsets[i]);
+                        n.edgesTo.addAll(Arrays.asList(edgesByTo).subList(toOffsets[i], toOffsets[i+1]));
+                        n.sortNeighborLists();
+                    }
+                }
+            });
+        }
+
+        private void runOverEdges(ChunkTask task) throws IOException {
+            runInChunks(edgeCount, task);
+        }
+    }
+
+    private interface ChunkTask {
+        void run(int from, int to);
+    }
+
+    private void runInChunks(int total, final ChunkTask task) throws IOException {
+        ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+        for (int chunkStart=0 ; chunkStart<total ; chunkStart+=RECORDS_PER_CHUNK) {
+            final int from = chunkStart;
+            final int to = Math.min(total, chunkStart+RECORDS_PER_CHUNK);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    task.run(from, to);
+                    return to-from;
+                }
+            });
+        }
+        runAll(tasks, null, total);
+    }
+
+    /**
+     * Runs the tasks on the executor and, if process isn't null, reports the
+     * total of their results as progress as each one finishes.
+     */
+    private void runAll(List<Callable<Integer>> tasks, MonitoredProcess process, long total) throws IOException {
+        ArrayList<Future<Integer>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Integer> task : tasks) {
+            futures.add(es.submit(task));
+        }
+
+        long completed = 0;
+        try {
+            for (Future<Integer> f : futures) {
+                completed += f.get();
+                if (process != null)
+                    monitor.updateStatus(process, completed, total);
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void cancelAll(List<Future<Integer>> futures) {
+        for (Future<Integer> f : futures) {
+            f.cancel(true);
+        }
+    }
+
+}
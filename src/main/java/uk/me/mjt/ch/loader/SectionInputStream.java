@@ -0,0 +1,72 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads one section of a ContainerFile, using positional reads so several
+ * sections can be open at once. The checksum is checked on close, after
+ * skipping anything the reader didn't consume. The channel is left open.
+ */
+class SectionInputStream extends InputStream {
+    private final FileChannel channel;
+    private final String description;
+    private final long end;
+    private final int expectedCrc;
+    private final CRC32 crc = new CRC32();
+    private long position;
+    private boolean closed = false;
+
+    SectionInputStream(FileChannel channel, String description, long position, long length, int expectedCrc) {
+        this.channel = channel;
+        this.description = description;
+        this.position = position;
+        this.end = position + length;
+        this.expectedCrc = expectedCrc;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return (read == 1 ? b[0] & 0xff : -1);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (position >= end)
+            return -1;
+        if (len == 0)
+            return 0;
+
+        ByteBuffer bb = ByteBuffer.wrap(b, off, (int)Math.min(len, end-position));
+        int read = channel.read(bb, position);
+        if (read < 0)
+            throw new IOException(description + " is truncated");
+        crc.update(b, off, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.min(Integer.MAX_VALUE, end-position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        byte[] skipped = new byte[64*1024];
+        while (read(skipped, 0, skipped.length) > 0) { }
+        closed = true;
+        if ((int)crc.getValue() != expectedCrc)
+            throw new IOException(description + " failed checksum");
+    }
+
+}
@@ -2,5 +2,5 @@
 package uk.me.mjt.ch.status;
 
 public enum MonitoredProcess {
-    LOAD_NODES, LOAD_WAYS, INDEX_MAP_DATA, VALIDATE_DATA
+    LOAD_NODES, LOAD_WAYS, INDEX_MAP_DATA, VALIDATE_DATA, WRITE_NODES, WRITE_WAYS
 }
@@ -0,0 +1,51 @@
+package uk.me.mjt.ch;
+
+import static org.junit.Assert.*;
+
+public class AllPairsAssert {
+
+    public static abstract class Router {
+        public abstract DijkstraSolution route(Node startNode, Node endNode);
+
+        public int distance(Node startNode, Node endNode) {
+            return route(startNode, endNode).totalDriveTimeMs;
+        }
+    }
+
+    public static Router contractedDijkstra(final MapData graph) {
+        return new Router() {
+            @Override
+            public DijkstraSolution route(Node startNode, Node endNode) {
+                return ContractedDijkstra.contractedGraphDijkstra(graph, startNode, endNode);
+            }
+        };
+    }
+
+    /**
+     * Routes between every pair of nodes in the graph and checks each route
+     * against plain Dijkstra on an uncontracted copy of the same graph.
+     */
+    public static void assertMatchesDijkstra(MapData graph, MapData uncontracted) {
+        assertMatchesDijkstra(graph, uncontracted, contractedDijkstra(graph));
+    }
+
+    public static void assertMatchesDijkstra(MapData graph, MapData uncontracted, Router router) {
+        for (Node startNode : graph.getAllNodes()) {
+            for (Node endNode : graph.getAllNodes()) {
+                DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(
+                        uncontracted.getNodeById(startNode.nodeId),
+                        uncontracted.getNodeById(endNode.nodeId),
+                        Dijkstra.Direction.FORWARDS);
+                assertEquals(expected.totalDriveTimeMs, router.distance(startNode, endNode));
+
+                DijkstraSolution actual = router.route(startNode, endNode);
+                assertNotNull(actual);
+                assertEquals(expected.totalDriveTimeMs, actual.totalDriveTimeMs);
+                assertEquals(expected.nodes.size(), actual.nodes.size());
+                assertEquals(startNode, actual.getFirstNode());
+                assertEquals(endNode, actual.getLastNode());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package uk.me.mjt.ch;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CommonEntryFinderTest {
+    
+    @Test
+    public void testFindersAgreeOnRandomLists() {
+        Random r = new Random(1234);
+        int[][] sizes = {{0,0}, {0,10}, {1,1}, {50,60}, {500,20}, {3,2000}, {2000,2000}};
+        
+        for (int[] size : sizes) {
+            for (int trial=0 ; trial<20 ; trial++) {
+                IntBuffer a = sortedDistinct(r, size[0]);
+                IntBuffer b = sortedDistinct(r, size[1]);
+                IntBuffer aTimes = randomTimes(r, size[0]);
+                IntBuffer bTimes = randomTimes(r, size[1]);
+                
+                long expected = new BufferMergeFinder().findShortestCommonEntry(a, b, aTimes, bTimes);
+                assertEquals(expected, new ArrayMergeFinder().findShortestCommonEntry(a, b, aTimes, bTimes));
+                
+                long expectedReversed = new BufferMergeFinder().findShortestCommonEntry(b, a, bTimes, aTimes);
+                assertEquals(expectedReversed, new ArrayMergeFinder().findShortestCommonEntry(b, a, bTimes, aTimes));
+            }
+        }
+    }
+    
+    @Test
+    public void testTiesGoToLowestContractionOrder() {
+        IntBuffer a = IntBuffer.wrap(new int[] {1, 2, 3, 4, 5});
+        IntBuffer aTimes = IntBuffer.wrap(new int[] {10, 5, 5, 0, 0});
+        IntBuffer b = IntBuffer.wrap(new int[] {2, 3, 4});
+        IntBuffer bTimes = IntBuffer.wrap(new int[] {5, 5, 10});
+        
+        long expected = (1L << 32) | 0;
+        assertEquals(expected, new BufferMergeFinder().findShortestCommonEntry(a, b, aTimes, bTimes));
+        assertEquals(expected, new ArrayMergeFinder().findShortestCommonEntry(a, b, aTimes, bTimes));
+    }
+    
+    @Test
+    public void testNoCommonEntries() {
+        IntBuffer a = IntBuffer.wrap(new int[] {1, 3, 5});
+        IntBuffer b = IntBuffer.wrap(new int[] {2, 4, 6});
+        IntBuffer times = IntBuffer.wrap(new int[] {0, 0, 0});
+        
+        assertEquals(CommonEntryFinder.NOT_FOUND, new BufferMergeFinder().findShortestCommonEntry(a, b, times, times));
+        assertEquals(CommonEntryFinder.NOT_FOUND, new ArrayMergeFinder().findShortestCommonEntry(a, b, times, times));
+    }
+    
+    @Test
+    public void testGallopTo() {
+        IntBuffer sorted = IntBuffer.wrap(new int[] {1, 3, 5, 7, 9, 11, 13});
+        assertEquals(0, ArrayMergeFinder.gallopTo(sorted, 0, sorted.limit(), 0));
+        assertEquals(0, ArrayMergeFinder.gallopTo(sorted, 0, sorted.limit(), 1));
+        assertEquals(3, ArrayMergeFinder.gallopTo(sorted, 0, sorted.limit(), 6));
+        assertEquals(3, ArrayMergeFinder.gallopTo(sorted, 2, sorted.limit(), 7));
+        assertEquals(6, ArrayMergeFinder.gallopTo(sorted, 4, sorted.limit(), 13));
+        assertEquals(7, ArrayMergeFinder.gallopTo(sorted, 0, sorted.limit(), 14));
+    }
+    
+    private static IntBuffer sortedDistinct(Random r, int size) {
+        int[] values = new int[size];
+        int value = 0;
+        for (int i=0 ; i<size ; i++) {
+            value += 1 + r.nextInt(3);
+            values[i] = value;
+        }
+        return IntBuffer.wrap(values);
+    }
+    
+    private static IntBuffer randomTimes(Random r, int size) {
+        int[] times = new int[size];
+        for (int i=0 ; i<size ; i++) {
+            times[i] = r.nextInt(100);
+        }
+        return IntBuffer.wrap(times);
+    }
+    
+}
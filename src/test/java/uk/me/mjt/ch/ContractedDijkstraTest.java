@@ -0,0 +1,90 @@
+package uk.me.mjt.ch;
+
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.me.mjt.ch.PartialSolution.UpwardSolution;
+
+public class ContractedDijkstraTest {
+    
+    private final MapData uncontracted;
+    private final MapData contracted;
+
+    public ContractedDijkstraTest() {
+        uncontracted = MakeTestData.makeLadder(4,8);
+        contracted = MakeTestData.makeContractedLadder(4,8);
+    }
+    
+    @Test
+    public void testAllToAllMatchesUncontracted() {
+        AllPairsAssert.assertMatchesDijkstra(contracted, uncontracted);
+    }
+    
+    @Test
+    public void testBidirectionalMatchesUncontracted() {
+        AllPairsAssert.assertMatchesDijkstra(contracted, uncontracted, new AllPairsAssert.Router() {
+            @Override
+            public DijkstraSolution route(Node startNode, Node endNode) {
+                return ContractedDijkstra.bidirectionalContractedGraphDijkstra(contracted, startNode, endNode);
+            }
+        });
+    }
+    
+    @Test
+    public void testDistanceMatchesPath() {
+        for (Node startNode : contracted.getAllNodes()) {
+            for (Node endNode : contracted.getAllNodes()) {
+                DijkstraSolution path = ContractedDijkstra.contractedGraphDijkstra(contracted, startNode, endNode);
+                assertEquals(path.totalDriveTimeMs, ContractedDijkstra.contractedGraphDistance(startNode, endNode));
+            }
+        }
+    }
+    
+    @Test
+    public void testParallelMatchesSingleThreaded() {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            for (Node startNode : contracted.getAllNodes()) {
+                for (Node endNode : contracted.getAllNodes()) {
+                    DijkstraSolution expected = ContractedDijkstra.contractedGraphDijkstra(contracted, startNode, endNode);
+                    DijkstraSolution actual = ContractedDijkstra.contractedGraphDijkstra(contracted, startNode, endNode, pool);
+                    assertNotNull(actual);
+                    assertEquals(expected.totalDriveTimeMs, actual.totalDriveTimeMs);
+                    assertEquals(expected.nodes, actual.nodes);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testBidirectionalOnUncontractedGraph() {
+        Node startNode = uncontracted.getNodeById(0L);
+        Node endNode = uncontracted.getNodeById(31L);
+        DijkstraSolution actual = ContractedDijkstra.bidirectionalContractedGraphDijkstra(uncontracted, startNode, endNode);
+        assertNotNull(actual);
+        assertEquals(10000, actual.totalDriveTimeMs);
+        assertEquals(11, actual.nodes.size());
+    }
+    
+    @Test
+    public void testStallOnDemandShrinksSearchSpace() {
+        DijkstraSearchContext context = new DijkstraSearchContext();
+        int stalledTotal = 0;
+        int unstalledTotal = 0;
+        for (Node n : contracted.getAllNodes()) {
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(n), Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.NO, context);
+            int unstalled = new UpwardSolution(context).getSize();
+            Dijkstra.contractedSearch(ColocatedNodeSet.singleton(n), Dijkstra.Direction.FORWARDS, Dijkstra.StallOnDemand.YES, context);
+            int stalled = new UpwardSolution(context).getSize();
+            
+            assertTrue(stalled <= unstalled);
+            stalledTotal += stalled;
+            unstalledTotal += unstalled;
+        }
+        System.out.println("Upward search records with stall-on-demand: " + stalledTotal + " without: " + unstalledTotal);
+        assertTrue(stalledTotal < unstalledTotal);
+    }
+
+}
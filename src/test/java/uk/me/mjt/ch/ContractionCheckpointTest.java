@@ -0,0 +1,118 @@
+package uk.me.mjt.ch;
+
+import java.io.IOException;
+import java.util.HashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import uk.me.mjt.ch.status.DiscardingStatusMonitor;
+
+public class ContractionCheckpointTest {
+    private static final String LADDER = "6x10 ladder";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public ContractionCheckpointTest() {
+    }
+
+    @Test
+    public void testResumedContractionMatchesDijkstra() throws IOException {
+        String prefix = folder.getRoot().getPath() + "/ladder";
+        assertFalse(ContractionCheckpoint.exists(prefix));
+
+        MapData graph = MakeTestData.makeLadder(6,10);
+        GraphContractor instance = new GraphContractor(graph);
+        instance.enableCheckpoints(prefix, LADDER, 60*60*1000);
+        instance.initialiseContractionOrder();
+        for (int i=0 ; i<30 ; i++) {
+            assertTrue(instance.contractNext());
+        }
+        instance.checkpointNow();
+        assertTrue(ContractionCheckpoint.exists(prefix));
+
+        MapData resumed = ContractionCheckpoint.readMapData(prefix, LADDER, new DiscardingStatusMonitor());
+        int contractedAtCheckpoint = 0;
+        for (Node n : resumed.getAllNodes()) {
+            if (n.isContracted()) {
+                contractedAtCheckpoint++;
+                assertEquals(graph.getNodeById(n.nodeId).contractionOrder, n.contractionOrder);
+            }
+        }
+        assertEquals(30, contractedAtCheckpoint);
+
+        GraphContractor resumedContractor = new GraphContractor(resumed);
+        resumedContractor.resumeFromCheckpoint(prefix);
+        resumedContractor.contractAll();
+
+        HashSet<Integer> orders = new HashSet<>();
+        for (Node n : resumed.getAllNodes()) {
+            assertTrue(n.isContracted());
+            assertTrue(orders.add(n.contractionOrder));
+        }
+        AllPairsAssert.assertMatchesDijkstra(resumed, MakeTestData.makeLadder(6,10));
+    }
+
+    @Test
+    public void testLaterCheckpointReplacesEarlier() throws IOException {
+        String prefix = folder.getRoot().getPath() + "/ladder";
+
+        MapData graph = MakeTestData.makeLadder(6,10);
+        GraphContractor instance = new GraphContractor(graph);
+        instance.enableCheckpoints(prefix, LADDER, 60*60*1000);
+        instance.initialiseContractionOrder();
+        instance.contractNext();
+        instance.checkpointNow();
+        for (int i=0 ; i<10 ; i++) {
+            instance.contractNext();
+        }
+        instance.checkpointNow();
+
+        MapData resumed = ContractionCheckpoint.readMapData(prefix, LADDER, new DiscardingStatusMonitor());
+        int contractedAtCheckpoint = 0;
+        for (Node n : resumed.getAllNodes()) {
+            if (n.isContracted())
+                contractedAtCheckpoint++;
+        }
+        assertEquals(11, contractedAtCheckpoint);
+        assertEquals(graph.getNodeCount()-11, ContractionCheckpoint.readQueue(prefix, resumed).nodeIndices.length);
+        assertEquals(4, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testCheckpointOnlyResumedForSameInput() throws IOException {
+        String prefix = folder.getRoot().getPath() + "/ladder";
+        checkpointPartContractedLadder(prefix);
+        assertTrue(ContractionCheckpoint.existsFor(prefix, LADDER));
+        assertFalse(ContractionCheckpoint.existsFor(prefix, "6x10 ladder, updated"));
+
+        try {
+            ContractionCheckpoint.readMapData(prefix, "6x10 ladder, updated", new DiscardingStatusMonitor());
+            fail("Checkpoint for different input should be refused");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testDeleteRemovesAllCheckpointFiles() throws IOException {
+        String prefix = folder.getRoot().getPath() + "/ladder";
+        checkpointPartContractedLadder(prefix);
+        assertTrue(folder.getRoot().list().length > 0);
+
+        ContractionCheckpoint.delete(prefix);
+        assertFalse(ContractionCheckpoint.exists(prefix));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    private static void checkpointPartContractedLadder(String prefix) throws IOException {
+        GraphContractor instance = new GraphContractor(MakeTestData.makeLadder(6,10));
+        instance.enableCheckpoints(prefix, LADDER, 60*60*1000);
+        instance.initialiseContractionOrder();
+        for (int i=0 ; i<10 ; i++) {
+            instance.contractNext();
+        }
+        instance.checkpointNow();
+    }
+
+}
@@ -0,0 +1,74 @@
+package uk.me.mjt.ch;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CustomizableHierarchyTest {
+
+    public CustomizableHierarchyTest() {
+    }
+
+    @Test
+    public void testNestedDissectionOrderIsPermutation() {
+        MapData graph = MakeTestData.makeLadder(20,20);
+        int[] rank = NestedDissectionOrder.rankByNodeIndex(graph);
+        
+        boolean[] seen = new boolean[rank.length];
+        for (int r : rank) {
+            assertFalse(seen[r]);
+            seen[r] = true;
+        }
+    }
+
+    @Test
+    public void testDriveTimesMatchDijkstra() {
+        MapData graph = MakeTestData.makeLadder(8,8);
+        CustomizableHierarchy cch = new CustomizableHierarchy(graph);
+        CustomizableHierarchy.Metric metric = cch.customize(CustomizableHierarchy.driveTimes(graph));
+        
+        assertAllPairsMatchDijkstra(graph, graph, metric);
+    }
+
+    @Test
+    public void testParallelCustomizationForSecondMetric() {
+        MapData graph = MakeTestData.makeLadder(8,8);
+        CustomizableHierarchy cch = new CustomizableHierarchy(graph);
+        
+        Random random = new Random(1234);
+        int[] weights = new int[graph.getEdgeCount()];
+        HashMap<Long,Integer> weightsByEdgeId = new HashMap<>();
+        for (int i=0 ; i<weights.length ; i++) {
+            weights[i] = 100 + random.nextInt(5000);
+            weightsByEdgeId.put(graph.getEdgeByIndex(i).edgeId, weights[i]);
+        }
+        
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        try {
+            CustomizableHierarchy.Metric metric = cch.customize(weights, es);
+            
+            MapData reweighted = MakeTestData.makeLadder(8,8);
+            new Recontractor(reweighted).updateDriveTimes(weightsByEdgeId);
+            assertAllPairsMatchDijkstra(graph, reweighted, metric);
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    private static void assertAllPairsMatchDijkstra(MapData graph, MapData reference, CustomizableHierarchy.Metric metric) {
+        for (Node from : graph.getAllNodes()) {
+            for (Node to : graph.getAllNodes()) {
+                DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(
+                        reference.getNodeById(from.nodeId),
+                        reference.getNodeById(to.nodeId),
+                        Dijkstra.Direction.FORWARDS);
+                int expectedTime = (expected == null ? CustomizableHierarchy.UNREACHABLE : expected.totalDriveTimeMs);
+                assertEquals(expectedTime, metric.driveTime(from, to));
+            }
+        }
+    }
+
+}
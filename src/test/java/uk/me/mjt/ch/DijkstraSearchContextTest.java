@@ -0,0 +1,45 @@
+package uk.me.mjt.ch;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DijkstraSearchContextTest {
+
+    public DijkstraSearchContextTest() {
+    }
+
+    @Test
+    public void testContextReusedBetweenSearches() {
+        MapData graph = MakeTestData.makeLadder(2,10);
+        DijkstraSearchContext context = new DijkstraSearchContext(1);
+        
+        Dijkstra.contractedSearch(ColocatedNodeSet.singleton(graph.getNodeById(1L)), Dijkstra.Direction.FORWARDS, context);
+        assertEquals(graph.getNodeCount(), context.getSettledCount());
+        assertEquals(0, context.getMinDriveTime(graph.getNodeById(1L)));
+        assertEquals(8000, context.getMinDriveTime(graph.getNodeById(18L)));
+        
+        Dijkstra.contractedSearch(ColocatedNodeSet.singleton(graph.getNodeById(18L)), Dijkstra.Direction.FORWARDS, context);
+        assertEquals(graph.getNodeCount(), context.getSettledCount());
+        assertEquals(0, context.getMinDriveTime(graph.getNodeById(18L)));
+        assertEquals(8000, context.getMinDriveTime(graph.getNodeById(1L)));
+        assertNull(context.getMinTimeVia(graph.getNodeById(18L)));
+        assertNull(context.getPredecessor(graph.getNodeById(18L)));
+    }
+    
+    @Test
+    public void testSortSettledByContractionOrder() {
+        MapData graph = MakeTestData.makeLadder(2,10);
+        GraphContractor instance = new GraphContractor(graph);
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        
+        DijkstraSearchContext context = DijkstraSearchContext.forCurrentThread();
+        Dijkstra.contractedSearch(ColocatedNodeSet.singleton(graph.getNodeById(1L)), Dijkstra.Direction.BACKWARDS, context);
+        context.sortSettledByContractionOrder();
+        
+        for (int i=1 ; i<context.getSettledCount() ; i++) {
+            assertTrue(context.getSettledNode(i-1).contractionOrder < context.getSettledNode(i).contractionOrder);
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DistanceMatrixTest {
+    
+    private final MapData graph;
+    private final List<Node> nodes;
+
+    public DistanceMatrixTest() {
+        graph = MakeTestData.makeLadder(4,8);
+        GraphContractor instance = new GraphContractor(graph);
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        nodes = new ArrayList<>(graph.getAllNodes());
+    }
+
+    @Test
+    public void testMatchesPointToPoint() {
+        int[][] matrix = DistanceMatrix.calculate(graph, nodes, nodes);
+        checkMatrix(nodes, nodes, matrix);
+    }
+    
+    @Test
+    public void testParallelMatchesPointToPoint() {
+        ExecutorService es = Executors.newFixedThreadPool(3);
+        try {
+            List<Node> sources = nodes.subList(0, 10);
+            int[][] matrix = DistanceMatrix.calculate(graph, sources, nodes, es);
+            checkMatrix(sources, nodes, matrix);
+        } finally {
+            es.shutdown();
+        }
+    }
+    
+    @Test
+    public void testUnreachable() {
+        MapData md = MakeTestData.makeSimpleThreeEntryAndIsolatedNode();
+        List<Node> withIsolated = Arrays.asList(md.getNodeById(1L), md.getNodeById(2L),
+                md.getNodeById(3L), md.getNodeById(100L));
+        
+        int[][] matrix = DistanceMatrix.calculate(md, withIsolated, withIsolated);
+        assertEquals(0, matrix[3][3]);
+        assertEquals(DistanceMatrix.UNREACHABLE, matrix[0][3]);
+        assertEquals(DistanceMatrix.UNREACHABLE, matrix[3][0]);
+    }
+    
+    private void checkMatrix(List<Node> sources, List<Node> targets, int[][] matrix) {
+        assertEquals(sources.size(), matrix.length);
+        for (int s=0 ; s<sources.size() ; s++) {
+            assertEquals(targets.size(), matrix[s].length);
+            for (int t=0 ; t<targets.size() ; t++) {
+                DijkstraSolution ds = ContractedDijkstra.contractedGraphDijkstra(graph, sources.get(s), targets.get(t));
+                assertEquals(ds.totalDriveTimeMs, matrix[s][t]);
+            }
+        }
+    }
+
+}
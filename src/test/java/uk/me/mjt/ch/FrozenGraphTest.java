@@ -0,0 +1,114 @@
+package uk.me.mjt.ch;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import uk.me.mjt.ch.PartialSolution.DownwardSolution;
+import uk.me.mjt.ch.PartialSolution.UpwardSolution;
+
+public class FrozenGraphTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final MapData uncontracted;
+    private final MapData contracted;
+
+    public FrozenGraphTest() {
+        uncontracted = MakeTestData.makeLadder(4,8);
+        contracted = MakeTestData.makeContractedLadder(4,8);
+    }
+    
+    @Test
+    public void testAllToAllMatchesUncontracted() {
+        final FrozenDijkstra frozen = new FrozenDijkstra(contracted.freeze());
+        AllPairsAssert.assertMatchesDijkstra(contracted, uncontracted, new AllPairsAssert.Router() {
+            @Override
+            public DijkstraSolution route(Node startNode, Node endNode) {
+                return frozen.contractedGraphDijkstra(contracted, startNode, endNode);
+            }
+            
+            @Override
+            public int distance(Node startNode, Node endNode) {
+                return frozen.contractedGraphDistance(startNode, endNode);
+            }
+        });
+    }
+    
+    @Test
+    public void testPartialSolutionsMatchUnfrozen() {
+        FrozenDijkstra frozen = new FrozenDijkstra(contracted.freeze());
+        for (Node startNode : contracted.getAllNodes()) {
+            UpwardSolution up = frozen.calculateUpwardSolution(startNode);
+            for (Node endNode : contracted.getAllNodes()) {
+                DownwardSolution down = frozen.calculateDownwardSolution(endNode);
+                DijkstraSolution expected = ContractedDijkstra.contractedGraphDijkstra(contracted, startNode, endNode);
+                DijkstraSolution actual = ContractedDijkstra.mergeUpwardAndDownwardSolutions(contracted, up, down);
+                assertEquals(expected.totalDriveTimeMs, actual.totalDriveTimeMs);
+                assertEquals(expected.nodes.size(), actual.nodes.size());
+            }
+        }
+    }
+    
+    @Test
+    public void testUncontractedGraph() {
+        FrozenDijkstra frozen = new FrozenDijkstra(uncontracted.freeze());
+        Node startNode = uncontracted.getNodeById(0L);
+        Node endNode = uncontracted.getNodeById(31L);
+        
+        DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(startNode, endNode, Dijkstra.Direction.FORWARDS);
+        DijkstraSolution actual = frozen.contractedGraphDijkstra(uncontracted, startNode, endNode);
+        assertEquals(expected.totalDriveTimeMs, actual.totalDriveTimeMs);
+        assertEquals(expected.nodes, actual.nodes);
+    }
+    
+    @Test
+    public void testMappedGraphMatchesHeapGraph() throws Exception {
+        File file = folder.newFile("frozen.dat");
+        FrozenGraph heap = contracted.freeze();
+        heap.writeTo(file.getPath());
+        FrozenGraph mapped = FrozenGraph.map(file.getPath());
+        assertEquals(heap.getNodeCount(), mapped.getNodeCount());
+        assertEquals(heap.getUpwardEdgeCount(), mapped.getUpwardEdgeCount());
+        assertEquals(heap.getDownwardEdgeCount(), mapped.getDownwardEdgeCount());
+        
+        FrozenDijkstra heapDijkstra = new FrozenDijkstra(heap);
+        FrozenDijkstra mappedDijkstra = new FrozenDijkstra(mapped);
+        for (Node startNode : contracted.getAllNodes()) {
+            int startIndex = mapped.getNodeIndex(startNode.nodeId);
+            assertEquals(startNode.nodeIndex, startIndex);
+            assertEquals(startNode.lat, mapped.getLat(startIndex), 0.0f);
+            assertEquals(startNode.lon, mapped.getLon(startIndex), 0.0f);
+            
+            for (Node endNode : contracted.getAllNodes()) {
+                int endIndex = mapped.getNodeIndex(endNode.nodeId);
+                assertEquals(heapDijkstra.contractedGraphDistance(startNode, endNode),
+                        mappedDijkstra.contractedGraphDistance(startIndex, endIndex));
+                
+                DijkstraSolution expected = ContractedDijkstra.contractedGraphDijkstra(contracted, startNode, endNode);
+                int[] path = mappedDijkstra.contractedGraphPath(startIndex, endIndex);
+                assertEquals(startNode.nodeId, mapped.getNodeId(path[0]));
+                assertEquals(endNode.nodeId, mapped.getNodeId(path[path.length-1]));
+                assertEquals(expected.totalDriveTimeMs, pathDriveTime(path));
+            }
+        }
+        assertEquals(FrozenGraph.NODE_NOT_FOUND, mapped.getNodeIndex(-12345L));
+    }
+    
+    private int pathDriveTime(int[] path) {
+        int total = 0;
+        for (int i=1 ; i<path.length ; i++) {
+            int best = Integer.MAX_VALUE;
+            for (DirectedEdge de : contracted.getNodeByIndex(path[i-1]).edgesFrom) {
+                if (!de.isShortcut() && de.to.nodeIndex == path[i])
+                    best = Math.min(best, de.driveTimeMs);
+            }
+            assertTrue(best != Integer.MAX_VALUE);
+            total += best;
+        }
+        return total;
+    }
+    
+}
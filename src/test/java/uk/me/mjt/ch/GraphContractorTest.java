@@ -1,6 +1,7 @@
 package uk.me.mjt.ch;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -29,6 +30,27 @@ public class GraphContractorTest {
         
     }
     
+    @Test
+    public void testShortcutsAreIndexed() {
+        MapData graph = MakeTestData.makeLadder(2,10);
+        int originalEdgeCount = graph.getEdgeCount();
+        
+        GraphContractor instance = new GraphContractor(graph);
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        
+        assertTrue(graph.getEdgeCount() > originalEdgeCount);
+        for (Node n : graph.getAllNodes()) {
+            assertSame(n, graph.getNodeByIndex(n.nodeIndex));
+            for (DirectedEdge de : n.edgesFrom) {
+                assertSame(de, graph.getEdgeByIndex(de.edgeIndex));
+            }
+        }
+        
+        PartialSolution up = ContractedDijkstra.calculateUpwardSolution(ColocatedNodeSet.singleton(graph.getNodeById(1L)));
+        assertEquals(PartialSolution.BYTES_PER_RECORD*up.getSize() + 4, up.getUnderlyingBuffer().capacity());
+    }
+    
     @Test
     public void testAllToAll() {
         MapData graph = MakeTestData.makeLadder(2,10);
@@ -46,7 +68,74 @@ public class GraphContractorTest {
             }
         }
     }
-
     
+    @Test
+    public void testContractAllInParallel() {
+        MapData graph = MakeTestData.makeLadder(6,10);
+        
+        GraphContractor instance = new GraphContractor(graph);
+        instance.initialiseContractionOrder();
+        instance.contractAllInParallel();
+        
+        HashSet<Integer> contractionOrders = new HashSet<>();
+        for (Node n : graph.getAllNodes()) {
+            assertTrue(n.isContracted());
+            assertTrue(contractionOrders.add(n.contractionOrder));
+        }
+        AllPairsAssert.assertMatchesDijkstra(graph, MakeTestData.makeLadder(6,10));
+    }
+    
+    @Test
+    public void testWitnessSearchLimits() {
+        MapData unlimited = MakeTestData.makeContractedLadder(6,10);
+        MapData limited = MakeTestData.makeLadder(6,10);
+        
+        GraphContractor instance = new GraphContractor(limited);
+        instance.setWitnessSearchLimits(1, 1);
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        
+        assertTrue(limited.getEdgeCount() > unlimited.getEdgeCount());
+        AllPairsAssert.assertMatchesDijkstra(limited, MakeTestData.makeLadder(6,10));
+    }
+    
+    @Test
+    public void testLinearPriorityFunction() {
+        MapData graph = MakeTestData.makeLadder(6,10);
+        
+        GraphContractor instance = new GraphContractor(graph);
+        instance.setPriorityFunction(new LinearPriorityFunction(2, 1, 1, 1));
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        
+        AllPairsAssert.assertMatchesDijkstra(graph, MakeTestData.makeLadder(6,10));
+    }
+    
+    @Test
+    public void testQueueKeyOrdersByPriorityThenNodeIdHash() {
+        int[] priorities = {Integer.MIN_VALUE, -3, 0, 2, Integer.MAX_VALUE};
+        for (int i=1 ; i<priorities.length ; i++) {
+            for (long nodeId : new long[] {1L, 2L, 123456789L}) {
+                long lower = GraphContractor.queueKey(nodeId, priorities[i-1]);
+                assertTrue(lower < GraphContractor.queueKey(1L, priorities[i]));
+                assertTrue(lower < GraphContractor.queueKey(2L, priorities[i]));
+                assertEquals(priorities[i-1], GraphContractor.priorityOf(lower));
+            }
+        }
+        assertTrue(GraphContractor.queueKey(1L, 5) != GraphContractor.queueKey(2L, 5));
+    }
+    
+    @Test
+    public void testEdgeReductionPriorityMatchesOriginalOrdering() {
+        PriorityFunction.Terms removesEdgesDeep = new PriorityFunction.Terms(4, 2, 4, 4, 0, 0, 3);
+        PriorityFunction.Terms removesEdgesShallow = new PriorityFunction.Terms(4, 3, 4, 6, 0, 0, 1);
+        PriorityFunction.Terms removesMoreEdgesShallow = new PriorityFunction.Terms(4, 1, 4, 2, 0, 0, 1);
+        PriorityFunction.Terms addsEdges = new PriorityFunction.Terms(2, 5, 2, 10, 0, 0, 0);
+        
+        PriorityFunction pf = PriorityFunction.EDGE_REDUCTION;
+        assertTrue(pf.priority(removesMoreEdgesShallow) < pf.priority(removesEdgesShallow));
+        assertTrue(pf.priority(removesEdgesShallow) < pf.priority(removesEdgesDeep));
+        assertTrue(pf.priority(removesEdgesDeep) < pf.priority(addsEdges));
+    }
 
-}
\ No newline at end of file
+}
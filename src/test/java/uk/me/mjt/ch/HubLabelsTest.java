@@ -0,0 +1,81 @@
+package uk.me.mjt.ch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HubLabelsTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final MapData uncontracted;
+    private final MapData contracted;
+
+    public HubLabelsTest() {
+        uncontracted = MakeTestData.makeLadder(4,8);
+        contracted = MakeTestData.makeContractedLadder(4,8);
+    }
+    
+    @Test
+    public void testAllToAllMatchesUncontracted() {
+        HubLabels labels = HubLabels.build(contracted);
+        checkAllToAll(labels);
+    }
+    
+    @Test
+    public void testLabelsArePruned() {
+        MapData graph = MakeTestData.makeContractedLadder(15,15);
+        HubLabels labels = HubLabels.build(graph);
+        
+        long searchSpaceEntries = 0;
+        for (Node n : graph.getAllNodes()) {
+            searchSpaceEntries += ContractedDijkstra.calculateUpwardSolution(ColocatedNodeSet.singleton(n)).getSize();
+            searchSpaceEntries += ContractedDijkstra.calculateDownwardSolution(ColocatedNodeSet.singleton(n)).getSize();
+        }
+        assertTrue(labels.getEntryCount() < searchSpaceEntries);
+    }
+    
+    @Test
+    public void testPartialLabellingFallsBack() {
+        List<Node> someNodes = new ArrayList<>(contracted.chooseRandomNodes(5));
+        HubLabels labels = HubLabels.build(contracted, someNodes);
+        
+        int labelled = 0;
+        for (Node n : contracted.getAllNodes()) {
+            if (labels.hasLabels(n))
+                labelled++;
+        }
+        assertEquals(5, labelled);
+        checkAllToAll(labels);
+    }
+    
+    @Test
+    public void testWriteAndReadBack() throws Exception {
+        HubLabels labels = HubLabels.build(contracted);
+        File f = folder.newFile("labels.dat");
+        labels.writeTo(f.getPath());
+        
+        checkAllToAll(HubLabels.read(contracted, f.getPath(), HubLabels.MemoryMap.NO));
+        checkAllToAll(HubLabels.read(contracted, f.getPath(), HubLabels.MemoryMap.YES));
+    }
+    
+    private void checkAllToAll(final HubLabels labels) {
+        AllPairsAssert.assertMatchesDijkstra(contracted, uncontracted, new AllPairsAssert.Router() {
+            @Override
+            public DijkstraSolution route(Node startNode, Node endNode) {
+                return labels.contractedGraphDijkstra(startNode, endNode);
+            }
+            
+            @Override
+            public int distance(Node startNode, Node endNode) {
+                return labels.contractedGraphDistance(startNode, endNode);
+            }
+        });
+    }
+    
+}
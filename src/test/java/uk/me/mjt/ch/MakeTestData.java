@@ -18,6 +18,21 @@ public class MakeTestData {
         return new MapData(result);
     }
     
+    public static MapData makeSimpleThreeEntryAndIsolatedNode() {
+        HashMap<Long,Node> result = makeRow(3);
+        result.put(100L, new Node(100L, 52f, 0.1f, Barrier.FALSE));
+        Node.sortNeighborListsAll(result.values());
+        return new MapData(result);
+    }
+    
+    public static MapData makeContractedLadder(int rowCount, int colCount) {
+        MapData ladder = makeLadder(rowCount, colCount);
+        GraphContractor contractor = new GraphContractor(ladder);
+        contractor.initialiseContractionOrder();
+        contractor.contractAll();
+        return ladder;
+    }
+    
     public static MapData makeLadder(int rowCount, int colCount) {
         HashMap<Long,Node> result = new HashMap();
         
@@ -0,0 +1,149 @@
+package uk.me.mjt.ch;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MinHeapTest {
+
+    public MinHeapTest() {
+    }
+
+    @Test
+    public void testIndexedFourAryHeap() {
+        checkAgainstReference(new IndexedFourAryHeap(1));
+    }
+    
+    @Test
+    public void testLazyMinHeap() {
+        checkAgainstReference(new LazyMinHeap(1));
+    }
+    
+    @Test
+    public void testDecreaseKeyDoesntDuplicate() {
+        IndexedFourAryHeap heap = new IndexedFourAryHeap(4);
+        heap.insertOrDecreaseKey(7, 100);
+        heap.insertOrDecreaseKey(3, 50);
+        heap.insertOrDecreaseKey(7, 10);
+        heap.insertOrDecreaseKey(7, 20); // Not a decrease, so ignored.
+        
+        assertEquals(2, heap.size());
+        assertEquals(10, heap.peekMinKey());
+        assertEquals(7, heap.pollMinItem());
+        assertFalse(heap.contains(7));
+        assertEquals(3, heap.pollMinItem());
+        assertTrue(heap.isEmpty());
+    }
+    
+    @Test
+    public void testClearThenReuse() {
+        IndexedFourAryHeap heap = new IndexedFourAryHeap(4);
+        heap.insertOrDecreaseKey(1, 5);
+        heap.insertOrDecreaseKey(2, 6);
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        assertFalse(heap.contains(1));
+        
+        heap.insertOrDecreaseKey(2, 9);
+        assertEquals(1, heap.size());
+        assertEquals(2, heap.pollMinItem());
+    }
+    
+    private void checkAgainstReference(MinHeap heap) {
+        Random r = new Random(12345);
+        int itemCount = 2000;
+        int[] bestKey = new int[itemCount];
+        Arrays.fill(bestKey, Integer.MAX_VALUE);
+        
+        for (int i=0 ; i<10000 ; i++) {
+            int item = r.nextInt(itemCount);
+            int key = r.nextInt(1000000);
+            heap.insertOrDecreaseKey(item, key);
+            bestKey[item] = Math.min(bestKey[item], key);
+        }
+        
+        boolean[] polled = new boolean[itemCount];
+        int lastKey = -1;
+        int lastItem = -1;
+        while (!heap.isEmpty()) {
+            int key = heap.peekMinKey();
+            int item = heap.pollMinItem();
+            assertTrue(key >= lastKey);
+            if (polled[item])
+                continue; // Lazy deletion leaves stale entries behind.
+            
+            assertEquals(bestKey[item], key);
+            assertTrue(key > lastKey || item > lastItem);
+            polled[item] = true;
+            lastKey = key;
+            lastItem = item;
+        }
+        
+        for (int i=0 ; i<itemCount ; i++) {
+            assertEquals(bestKey[i]!=Integer.MAX_VALUE, polled[i]);
+        }
+    }
+    
+    @Test
+    public void testIndexedLongHeapAgainstReference() {
+        Random r = new Random(12345);
+        int itemCount = 2000;
+        long[] currentKey = new long[itemCount];
+        boolean[] present = new boolean[itemCount];
+        IndexedLongHeap heap = new IndexedLongHeap(itemCount);
+        
+        for (int i=0 ; i<20000 ; i++) {
+            int item = r.nextInt(itemCount);
+            if (present[item] && r.nextInt(4) == 0) {
+                heap.remove(item);
+                present[item] = false;
+            } else {
+                long key = r.nextLong() >> 20; // Keys go up as well as down.
+                heap.put(item, key);
+                currentKey[item] = key;
+                present[item] = true;
+            }
+        }
+        
+        int expectedSize = 0;
+        for (boolean p : present) {
+            if (p) expectedSize++;
+        }
+        assertEquals(expectedSize, heap.size());
+        
+        long lastKey = Long.MIN_VALUE;
+        while (!heap.isEmpty()) {
+            long key = heap.peekMinKey();
+            int item = heap.pollMinItem();
+            assertTrue(present[item]);
+            assertEquals(currentKey[item], key);
+            assertTrue(key >= lastKey);
+            present[item] = false;
+            lastKey = key;
+        }
+        
+        for (int i=0 ; i<itemCount ; i++) {
+            assertFalse(present[i]);
+        }
+    }
+    
+    @Test
+    public void testIndexedLongHeapIncreaseKey() {
+        IndexedLongHeap heap = new IndexedLongHeap(4);
+        heap.put(0, 7);
+        heap.put(1, 5);
+        heap.put(2, 6);
+        heap.put(3, 1);
+        heap.put(3, 9); // Increase, so it moves to the back.
+        
+        assertTrue(heap.compareItems(1, 2) < 0);
+        assertEquals(1, heap.pollMinItem());
+        assertEquals(2, heap.pollMinItem());
+        assertEquals(0, heap.pollMinItem());
+        assertEquals(9, heap.getKey(3));
+        assertEquals(3, heap.pollMinItem());
+        assertTrue(heap.isEmpty());
+    }
+
+}
@@ -0,0 +1,79 @@
+package uk.me.mjt.ch;
+
+import java.util.HashSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NodeRenumberingTest {
+    
+    @Test
+    public void testIndicesStayDense() {
+        for (NodeRenumbering.Ordering ordering : NodeRenumbering.Ordering.values()) {
+            MapData md = MakeTestData.makeContractedLadder(6,10);
+            int edgeCountBefore = md.getEdgeCount();
+            NodeRenumbering.renumber(md, ordering);
+            
+            for (int i=0 ; i<md.getNodeCount() ; i++) {
+                assertEquals(i, md.getNodeByIndex(i).nodeIndex);
+            }
+            assertEquals(edgeCountBefore, md.getEdgeCount());
+            HashSet<DirectedEdge> seen = new HashSet<>();
+            for (int i=0 ; i<md.getEdgeCount() ; i++) {
+                DirectedEdge de = md.getEdgeByIndex(i);
+                assertEquals(i, de.edgeIndex);
+                assertTrue(seen.add(de));
+                if (i > 0)
+                    assertTrue(md.getEdgeByIndex(i-1).from.nodeIndex <= de.from.nodeIndex);
+            }
+        }
+    }
+    
+    @Test
+    public void testContractionOrderPutsHighestFirst() {
+        MapData md = MakeTestData.makeContractedLadder(6,10);
+        NodeRenumbering.renumber(md, NodeRenumbering.Ordering.CONTRACTION_ORDER);
+        for (int i=1 ; i<md.getNodeCount() ; i++) {
+            assertTrue(md.getNodeByIndex(i-1).contractionOrder > md.getNodeByIndex(i).contractionOrder);
+        }
+    }
+    
+    @Test
+    public void testQueriesUnchanged() {
+        MapData reference = MakeTestData.makeContractedLadder(6,10);
+        for (NodeRenumbering.Ordering ordering : NodeRenumbering.Ordering.values()) {
+            MapData md = MakeTestData.makeContractedLadder(6,10);
+            NodeRenumbering.renumber(md, ordering);
+            FrozenDijkstra frozen = new FrozenDijkstra(md.freeze());
+            
+            for (Node startNode : md.getAllNodes()) {
+                for (Node endNode : md.getAllNodes()) {
+                    DijkstraSolution expected = ContractedDijkstra.contractedGraphDijkstra(reference,
+                            reference.getNodeById(startNode.nodeId), reference.getNodeById(endNode.nodeId));
+                    DijkstraSolution actual = frozen.contractedGraphDijkstra(md, startNode, endNode);
+                    assertEquals(expected.totalDriveTimeMs, actual.totalDriveTimeMs);
+                    assertEquals(expected.totalDriveTimeMs, ContractedDijkstra.contractedGraphDistance(startNode, endNode));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testHilbertIndexVisitsNeighboursInTurn() {
+        int[] xByIndex = new int[16];
+        int[] yByIndex = new int[16];
+        HashSet<Long> seen = new HashSet<>();
+        for (int x=0 ; x<4 ; x++) {
+            for (int y=0 ; y<4 ; y++) {
+                long d = NodeRenumbering.hilbertIndex(x, y);
+                assertTrue(d >= 0 && d < 16);
+                assertTrue(seen.add(d));
+                xByIndex[(int)d] = x;
+                yByIndex[(int)d] = y;
+            }
+        }
+        for (int d=1 ; d<16 ; d++) {
+            assertEquals(1, Math.abs(xByIndex[d]-xByIndex[d-1]) + Math.abs(yByIndex[d]-yByIndex[d-1]));
+        }
+    }
+    
+}
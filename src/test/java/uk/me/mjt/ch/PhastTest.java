@@ -0,0 +1,60 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PhastTest {
+    
+    private final MapData uncontracted;
+    private final MapData contracted;
+
+    public PhastTest() {
+        uncontracted = MakeTestData.makeLadder(4,8);
+        contracted = MakeTestData.makeContractedLadder(4,8);
+    }
+    
+    @Test
+    public void testOneToAllMatchesUncontracted() {
+        Phast phast = new Phast(contracted);
+        for (Node startNode : contracted.getAllNodes()) {
+            int[] driveTimes = phast.oneToAll(startNode);
+            for (Node endNode : contracted.getAllNodes()) {
+                DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(
+                        uncontracted.getNodeById(startNode.nodeId),
+                        uncontracted.getNodeById(endNode.nodeId),
+                        Dijkstra.Direction.FORWARDS);
+                assertEquals(expected.totalDriveTimeMs, driveTimes[endNode.nodeIndex]);
+            }
+        }
+    }
+    
+    @Test
+    public void testManyToAllMatchesOneToAll() {
+        Phast phast = new Phast(contracted);
+        List<Node> sources = new ArrayList<>(contracted.getAllNodes());
+        sources.addAll(contracted.chooseRandomNodes(5));
+        assertTrue(sources.size() > Phast.SOURCES_PER_SWEEP);
+        
+        int[][] driveTimes = phast.manyToAll(sources);
+        assertEquals(sources.size(), driveTimes.length);
+        for (int i=0 ; i<sources.size() ; i++) {
+            assertArrayEquals(phast.oneToAll(sources.get(i)), driveTimes[i]);
+        }
+    }
+    
+    @Test
+    public void testUnreachable() {
+        MapData graph = MakeTestData.makeSimpleThreeEntryAndIsolatedNode();
+        Node isolated = graph.getNodeById(100L);
+        GraphContractor instance = new GraphContractor(graph);
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        
+        int[] driveTimes = new Phast(graph).oneToAll(graph.getNodeById(1L));
+        assertEquals(ContractedDijkstra.UNREACHABLE, driveTimes[isolated.nodeIndex]);
+        assertEquals(0, driveTimes[graph.getNodeById(1L).nodeIndex]);
+    }
+    
+}
@@ -0,0 +1,178 @@
+package uk.me.mjt.ch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RecontractorTest {
+
+    public RecontractorTest() {
+    }
+
+    @Test
+    public void testUnchangedDriveTimesNeedNoRecontraction() {
+        MapData graph = MakeTestData.makeContractedLadder(6,10);
+        int edgeCount = graph.getEdgeCount();
+
+        HashMap<Long,Integer> driveTimes = new HashMap<>();
+        for (DirectedEdge de : originalEdges(graph)) {
+            driveTimes.put(de.edgeId, de.driveTimeMs);
+        }
+
+        assertEquals(0, new Recontractor(graph).updateDriveTimes(driveTimes));
+        assertEquals(edgeCount, graph.getEdgeCount());
+    }
+
+    @Test
+    public void testUpdatedGraphMatchesDijkstra() {
+        for (long seed=0 ; seed<5 ; seed++) {
+            MapData uncontracted = MakeTestData.makeLadder(6,10);
+            MapData graph = MakeTestData.makeContractedLadder(6,10);
+
+            Random random = new Random(seed);
+            HashMap<Long,Integer> driveTimes = new HashMap<>();
+            for (DirectedEdge de : originalEdges(graph)) {
+                if (random.nextInt(5) == 0)
+                    driveTimes.put(de.edgeId, random.nextBoolean() ? de.driveTimeMs*3 : de.driveTimeMs/4);
+            }
+
+            new Recontractor(uncontracted).updateDriveTimes(driveTimes);
+            int recontracted = new Recontractor(graph).updateDriveTimes(driveTimes);
+            assertTrue(recontracted > 0);
+            assertTrue(recontracted < graph.getNodeCount());
+
+            for (Node startNode : graph.getAllNodes()) {
+                for (Node endNode : graph.getAllNodes()) {
+                    DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(
+                            uncontracted.getNodeById(startNode.nodeId),
+                            uncontracted.getNodeById(endNode.nodeId),
+                            Dijkstra.Direction.FORWARDS);
+                    DijkstraSolution contracted = ContractedDijkstra.contractedGraphDijkstra(graph, startNode, endNode);
+                    assertEquals(expected.totalDriveTimeMs, contracted.totalDriveTimeMs);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVariedDriveTimesMatchDijkstra() {
+        for (long seed=0 ; seed<100 ; seed++) {
+            Random random = new Random(seed);
+            HashMap<Long,Integer> initialDriveTimes = new HashMap<>();
+            for (DirectedEdge de : originalEdges(MakeTestData.makeLadder(8,8))) {
+                initialDriveTimes.put(de.edgeId, 1+random.nextInt(5000));
+            }
+            MapData uncontracted = MakeTestData.makeLadder(8,8);
+            new Recontractor(uncontracted).updateDriveTimes(initialDriveTimes);
+            MapData graph = MakeTestData.makeLadder(8,8);
+            new Recontractor(graph).updateDriveTimes(initialDriveTimes);
+            GraphContractor contractor = new GraphContractor(graph);
+            contractor.initialiseContractionOrder();
+            contractor.contractAll();
+
+            HashMap<Long,Integer> driveTimes = new HashMap<>();
+            for (DirectedEdge de : originalEdges(graph)) {
+                if (random.nextInt(10) == 0)
+                    driveTimes.put(de.edgeId, random.nextBoolean() ? de.driveTimeMs*20 : de.driveTimeMs/4);
+            }
+            new Recontractor(uncontracted).updateDriveTimes(driveTimes);
+            new Recontractor(graph).updateDriveTimes(driveTimes);
+
+            for (Node startNode : graph.getAllNodes()) {
+                for (Node endNode : graph.getAllNodes()) {
+                    DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(
+                            uncontracted.getNodeById(startNode.nodeId),
+                            uncontracted.getNodeById(endNode.nodeId),
+                            Dijkstra.Direction.FORWARDS);
+                    DijkstraSolution contracted = ContractedDijkstra.contractedGraphDijkstra(graph, startNode, endNode);
+                    assertEquals(expected.totalDriveTimeMs, contracted.totalDriveTimeMs);
+                }
+            }
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownEdgeRejected() {
+        HashMap<Long,Integer> driveTimes = new HashMap<>();
+        driveTimes.put(Long.MAX_VALUE, 1000);
+        new Recontractor(MakeTestData.makeContractedLadder(6,10)).updateDriveTimes(driveTimes);
+    }
+
+    /**
+     * u-v 10, v-w 10, u-x 5, x-y 5, y-w 5, contracted v, u, w, x, y. When v
+     * is contracted u-x-y-w is a witness for u-v-w, so there's no shortcut -
+     * until x-y gets slower, well away from v.
+     */
+    @Test
+    public void testWitnessPathSlowedAwayFromContractedNode() {
+        MapData graph = makeWitnessedTriangle();
+        MapData uncontracted = makeWitnessedTriangle();
+        GraphContractor contractor = new GraphContractor(graph);
+        int order = 1;
+        for (long nodeId : new long[] {2, 1, 3, 4, 5}) {
+            Node n = graph.getNodeById(nodeId);
+            contractor.contractNode(n, order++, contractor.findShortcuts(n));
+            Node.sortNeighborListsAll(graph.getAllNodes());
+        }
+        graph.indexNewEdges();
+        
+        HashMap<Long,Integer> driveTimes = new HashMap<>();
+        for (DirectedEdge de : originalEdges(graph)) {
+            if (de.from.nodeId*de.to.nodeId == 4*5)
+                driveTimes.put(de.edgeId, 100);
+        }
+        new Recontractor(graph).updateDriveTimes(driveTimes);
+        new Recontractor(uncontracted).updateDriveTimes(driveTimes);
+        
+        for (Node startNode : graph.getAllNodes()) {
+            for (Node endNode : graph.getAllNodes()) {
+                DijkstraSolution expected = Dijkstra.dijkstrasAlgorithm(
+                        uncontracted.getNodeById(startNode.nodeId),
+                        uncontracted.getNodeById(endNode.nodeId),
+                        Dijkstra.Direction.FORWARDS);
+                DijkstraSolution contracted = ContractedDijkstra.contractedGraphDijkstra(graph, startNode, endNode);
+                assertEquals(expected.totalDriveTimeMs, contracted.totalDriveTimeMs);
+            }
+        }
+        assertEquals(20, ContractedDijkstra.contractedGraphDijkstra(graph, graph.getNodeById(1), graph.getNodeById(3)).totalDriveTimeMs);
+    }
+    
+    /**
+     * Nodes u=1, v=2, w=3, x=4, y=5.
+     */
+    private static MapData makeWitnessedTriangle() {
+        HashMap<Long,Node> nodes = new HashMap<>();
+        for (long nodeId=1 ; nodeId<=5 ; nodeId++) {
+            nodes.put(nodeId, new Node(nodeId, 51.5f, -0.1f+0.001f*nodeId, Barrier.FALSE));
+        }
+        long[][] edges = {{1,2,10}, {2,3,10}, {1,4,5}, {4,5,5}, {5,3,5}};
+        long edgeId = 1000;
+        for (long[] edge : edges) {
+            addEdge(edgeId++, nodes.get(edge[0]), nodes.get(edge[1]), (int)edge[2]);
+            addEdge(edgeId++, nodes.get(edge[1]), nodes.get(edge[0]), (int)edge[2]);
+        }
+        Node.sortNeighborListsAll(nodes.values());
+        return new MapData(nodes);
+    }
+    
+    private static void addEdge(long edgeId, Node from, Node to, int driveTimeMs) {
+        DirectedEdge de = new DirectedEdge(edgeId, edgeId, from, to, driveTimeMs, AccessOnly.FALSE);
+        from.edgesFrom.add(de);
+        to.edgesTo.add(de);
+    }
+
+    private static List<DirectedEdge> originalEdges(MapData graph) {
+        ArrayList<DirectedEdge> result = new ArrayList<>();
+        for (Node n : graph.getAllNodes()) {
+            for (DirectedEdge de : n.edgesFrom) {
+                if (!de.isShortcut())
+                    result.add(de);
+            }
+        }
+        return result;
+    }
+
+}
@@ -42,4 +42,20 @@ public class CachedContractedDijkstraTest {
         assertEquals(9, result2.nodes.size());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testContractedGraphDistance() {
+        MapData graph = MakeTestData.makeLadder(2,10);
+        GraphContractor instance = new GraphContractor(graph);
+        instance.initialiseContractionOrder();
+        instance.contractAll();
+        
+        Node startNode = graph.getNodeById(1L);
+        Node endNode = graph.getNodeById(18L);
+        
+        SimpleCache cache = new SimpleCache();
+        assertEquals(8000, CachedContractedDijkstra.contractedGraphDistance(graph, startNode, endNode, cache));
+        assertEquals(8000, CachedContractedDijkstra.contractedGraphDistance(graph, startNode, endNode, cache));
+        assertEquals(8000, CachedContractedDijkstra.contractedGraphDistance(graph, endNode, startNode, cache));
+    }
+
+}
@@ -2,15 +2,22 @@ package uk.me.mjt.ch.loader;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 import uk.me.mjt.ch.AccessOnly;
 import uk.me.mjt.ch.DirectedEdge;
 import uk.me.mjt.ch.MakeTestData;
 import uk.me.mjt.ch.MapData;
 import uk.me.mjt.ch.Node;
+import uk.me.mjt.ch.NodeRenumbering;
 import uk.me.mjt.ch.Util;
 import uk.me.mjt.ch.status.MonitoredProcess;
 import uk.me.mjt.ch.status.StdoutStatusMonitor;
@@ -18,6 +25,9 @@ import static uk.me.mjt.ch.status.StdoutStatusMonitor.toString;
 
 public class BinaryFormatTest {
     
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
     public BinaryFormatTest() {
     }
     
@@ -59,19 +69,133 @@ public class BinaryFormatTest {
         writeAndReadBack(testData);
     }
     
-    private void writeAndReadBack(MapData testData) throws IOException {
-        ByteArrayOutputStream nodesOut = new ByteArrayOutputStream();
+    @org.junit.Test
+    public void testParallelReadMatchesSequential() throws Exception {
+        MapData contracted = MakeTestData.makeContractedLadder(6,10);
+        
+        MapData[] testCases = {MakeTestData.makeSimpleThreeEntry(), MakeTestData.makePartlyAccessOnlyRing(),
+            MakeTestData.makeGatedRow(), contracted};
+        for (MapData testData : testCases) {
+            String nodeFile = folder.newFile().getPath();
+            String wayFile = folder.newFile().getPath();
+            BinaryFormat instance = new BinaryFormat();
+            instance.write(testData, nodeFile, wayFile);
+            
+            MapData sequential = instance.read(nodeFile, wayFile, new LoggingStatusMonitor());
+            LoggingStatusMonitor monitor = new LoggingStatusMonitor();
+            ExecutorService es = Executors.newFixedThreadPool(3);
+            MapData parallel = instance.readParallel(nodeFile, wayFile, null, monitor, es);
+            es.shutdown();
+            
+            assertTrue(Util.deepEquals(testData, parallel, true));
+            assertTrue(Util.deepEquals(sequential, parallel, true));
+            for (Node n : sequential.getAllNodes()) {
+                assertEquals(n.nodeIndex, parallel.getNodeById(n.nodeId).nodeIndex);
+            }
+            assertTrue(monitor.statuses.toString().contains(" 100.00%"));
+        }
+    }
+    
+    @org.junit.Test
+    public void testRenumberingSurvivesLoopback() throws Exception {
+        MapData testData = MakeTestData.makeContractedLadder(4,8);
+        NodeRenumbering.renumber(testData, NodeRenumbering.Ordering.HYBRID);
+        
+        MapData loopback = writeAndReadBack(testData);
+        for (Node n : testData.getAllNodes()) {
+            assertEquals(n.nodeIndex, loopback.getNodeById(n.nodeId).nodeIndex);
+        }
+        for (int i=0 ; i<testData.getEdgeCount() ; i++) {
+            assertEquals(testData.getEdgeByIndex(i).edgeId, loopback.getEdgeByIndex(i).edgeId);
+        }
+    }
+    
+    @org.junit.Test
+    public void testCompactLoopback() throws Exception {
+        for (BinaryFormat.Compression compression : BinaryFormat.Compression.values()) {
+            BinaryFormat instance = BinaryFormat.compact(compression);
+            writeAndReadBack(MakeTestData.makeSimpleThreeEntry(), instance);
+            writeAndReadBack(MakeTestData.makePartlyAccessOnlyRing(), instance);
+            writeAndReadBack(MakeTestData.makeGatedRow(), instance);
+            writeAndReadBack(MakeTestData.makeTurnRestrictedH(), instance);
+            writeAndReadBack(MakeTestData.makeContractedLadder(6,10), instance);
+        }
+    }
+    
+    @org.junit.Test
+    public void testCompactFormatIsSmaller() throws Exception {
+        MapData testData = MakeTestData.makeContractedLadder(6,10);
+        long v6Size = writtenSize(testData, new BinaryFormat());
+        long v7Size = writtenSize(testData, BinaryFormat.compact(BinaryFormat.Compression.NONE));
+        long v7DeflateSize = writtenSize(testData, BinaryFormat.compact(BinaryFormat.Compression.DEFLATE));
+        assertTrue(v7Size < v6Size/3);
+        assertTrue(v7DeflateSize < v6Size/3);
+    }
+    
+    @org.junit.Test
+    public void testParallelReadFallsBackForCompactFormat() throws Exception {
+        MapData testData = MakeTestData.makeContractedLadder(6,10);
+        String nodeFile = folder.newFile().getPath();
+        String wayFile = folder.newFile().getPath();
+        BinaryFormat instance = BinaryFormat.compact(BinaryFormat.Compression.DEFLATE);
+        instance.write(testData, nodeFile, wayFile);
+        
+        MapData loopback = instance.readParallel(nodeFile, wayFile, null, new LoggingStatusMonitor());
+        assertTrue(Util.deepEquals(testData, loopback, true));
+    }
+    
+    @org.junit.Test
+    public void testShortcutsWrittenAfterTheirChildren() throws IOException {
+        MapData testData = MakeTestData.makeContractedLadder(6,10);
         ByteArrayOutputStream waysOut = new ByteArrayOutputStream();
-        ByteArrayOutputStream turnRestrictionsOut = new ByteArrayOutputStream();
+        new BinaryFormat().write(testData, new DataOutputStream(new ByteArrayOutputStream()), new DataOutputStream(waysOut), null);
         
-        BinaryFormat instance = new BinaryFormat();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(waysOut.toByteArray()));
+        assertEquals(6, dis.readLong());
+        long edgeCount = dis.readLong();
+        assertEquals(testData.getEdgeCount(), edgeCount);
         
-        instance.write(testData, new DataOutputStream(nodesOut), new DataOutputStream(waysOut), new DataOutputStream(turnRestrictionsOut));
+        HashSet<Long> seenEdgeIds = new HashSet<>();
+        int shortcutCount = 0;
+        for (long i=0 ; i<edgeCount ; i++) {
+            long edgeId = dis.readLong();
+            dis.skipBytes(8+8+8+4);
+            boolean isShortcut = (dis.readByte() & 0x01) != 0;
+            long firstEdgeId = dis.readLong();
+            long secondEdgeId = dis.readLong();
+            if (isShortcut) {
+                shortcutCount++;
+                assertTrue(seenEdgeIds.contains(firstEdgeId));
+                assertTrue(seenEdgeIds.contains(secondEdgeId));
+            }
+            seenEdgeIds.add(edgeId);
+        }
+        assertTrue(shortcutCount > 0);
+        assertEquals(-1, dis.read());
+    }
+    
+    private static long writtenSize(MapData testData, BinaryFormat instance) throws IOException {
+        ByteArrayOutputStream nodesOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream waysOut = new ByteArrayOutputStream();
+        instance.write(testData, new DataOutputStream(nodesOut), new DataOutputStream(waysOut), null);
+        return nodesOut.size() + waysOut.size();
+    }
+    
+    private MapData writeAndReadBack(MapData testData) throws IOException {
+        return writeAndReadBack(testData, new BinaryFormat());
+    }
+    
+    private MapData writeAndReadBack(MapData testData, BinaryFormat instance) throws IOException {
+        ByteArrayOutputStream nodesOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream waysOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream turnRestrictionsOut = new ByteArrayOutputStream();
+        LoggingStatusMonitor monitor = new LoggingStatusMonitor();
+
+        instance.write(testData, new DataOutputStream(nodesOut), new DataOutputStream(waysOut), new DataOutputStream(turnRestrictionsOut), monitor);
         
         ByteArrayInputStream nodesIn = new ByteArrayInputStream(nodesOut.toByteArray());
         ByteArrayInputStream waysIn = new ByteArrayInputStream(waysOut.toByteArray());
         ByteArrayInputStream turnRestrictionsIn = new ByteArrayInputStream(turnRestrictionsOut.toByteArray());
-        LoggingStatusMonitor monitor = new LoggingStatusMonitor();
         
         MapData loopback = instance.read(nodesIn, waysIn, turnRestrictionsIn, monitor);
         
@@ -81,6 +205,24 @@ public class BinaryFormatTest {
         assertEquals(2*MonitoredProcess.values().length, monitor.statuses.size());
         assertTrue(monitorStatuses.contains(" 0.00%"));
         assertTrue(monitorStatuses.contains(" 100.00%"));
+        return loopback;
+    }
+    
+    @org.junit.Test
+    public void testDeflateBlockInputCanBeClosedTwice() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DeflateBlockOutputStream out = new DeflateBlockOutputStream(new DataOutputStream(baos));
+        out.write(new byte[] {1, 2, 3});
+        out.finish();
+        
+        DeflateBlockInputStream in = new DeflateBlockInputStream(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        in.close();
+        in.close();
+        try {
+            in.read();
+            fail("Read after close should fail");
+        } catch (IOException expected) {
+        }
     }
     
     @org.junit.Test(expected=IOException.class)
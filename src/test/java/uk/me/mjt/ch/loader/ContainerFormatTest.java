@@ -0,0 +1,177 @@
+package uk.me.mjt.ch.loader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import uk.me.mjt.ch.FrozenDijkstra;
+import uk.me.mjt.ch.MakeTestData;
+import uk.me.mjt.ch.MapData;
+import uk.me.mjt.ch.Node;
+import uk.me.mjt.ch.Util;
+import uk.me.mjt.ch.loader.ContainerFile.LoadTurnRestrictions;
+import uk.me.mjt.ch.loader.ContainerFormat.IncludeFrozenGraph;
+import uk.me.mjt.ch.loader.ContainerFormat.Section;
+import uk.me.mjt.ch.status.DiscardingStatusMonitor;
+
+public class ContainerFormatTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void testLoopback() throws IOException {
+        for (BinaryFormat recordFormat : Arrays.asList(new BinaryFormat(), BinaryFormat.compact(BinaryFormat.Compression.DEFLATE))) {
+            for (MapData testData : Arrays.asList(MakeTestData.makeTurnRestrictedH(), MakeTestData.makeContractedLadder(6,10))) {
+                String filename = write(testData, new ContainerFormat(recordFormat), IncludeFrozenGraph.NO);
+                try (ContainerFile container = ContainerFile.open(filename)) {
+                    MapData loopback = container.readMapData(LoadTurnRestrictions.YES, new DiscardingStatusMonitor());
+                    assertTrue(Util.deepEquals(testData, loopback, true));
+                    assertEquals(testData.allTurnRestrictions(), loopback.allTurnRestrictions());
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testSkippingTurnRestrictions() throws IOException {
+        MapData testData = MakeTestData.makeTurnRestrictedH();
+        assertFalse(testData.allTurnRestrictions().isEmpty());
+        String filename = write(testData, new ContainerFormat(), IncludeFrozenGraph.NO);
+        try (ContainerFile container = ContainerFile.open(filename)) {
+            MapData loopback = container.readMapData(LoadTurnRestrictions.NO, new DiscardingStatusMonitor());
+            assertTrue(loopback.allTurnRestrictions().isEmpty());
+            assertEquals(testData.getNodeCount(), loopback.getNodeCount());
+        }
+    }
+    
+    @Test
+    public void testReadNodesAndMetadataOnly() throws IOException {
+        MapData testData = MakeTestData.makeContractedLadder(6,10);
+        String filename = write(testData, new ContainerFormat(), IncludeFrozenGraph.NO);
+        try (ContainerFile container = ContainerFile.open(filename)) {
+            List<Node> nodes = container.readNodes(new DiscardingStatusMonitor());
+            assertEquals(testData.getNodeCount(), nodes.size());
+            for (int i=0 ; i<nodes.size() ; i++) {
+                Node n = nodes.get(i);
+                assertEquals(i, n.nodeIndex);
+                assertEquals(testData.getNodeByIndex(i).nodeId, n.nodeId);
+                assertEquals(testData.getNodeByIndex(i).contractionOrder, n.contractionOrder);
+                assertTrue(n.edgesFrom.isEmpty());
+            }
+            
+            ContractionMetadata metadata = container.readContractionMetadata();
+            assertEquals(testData.getNodeCount(), metadata.getNodeCount());
+            assertTrue(metadata.isFullyContracted());
+            assertEquals(testData.getEdgeCount(), metadata.getEdgeCount());
+            assertTrue(metadata.getShortcutCount() > 0);
+            int maxContractionOrder = Integer.MIN_VALUE;
+            for (Node n : testData.getAllNodes()) {
+                maxContractionOrder = Math.max(maxContractionOrder, n.contractionOrder);
+            }
+            assertEquals(maxContractionOrder, metadata.getMaxContractionOrder());
+        }
+    }
+    
+    @Test
+    public void testNodeIndex() throws IOException {
+        MapData testData = MakeTestData.makeLadder(20,20);
+        String filename = write(testData, new ContainerFormat(), IncludeFrozenGraph.NO);
+        try (ContainerFile container = ContainerFile.open(filename)) {
+            NodeIndex index = container.mapNodeIndex();
+            assertEquals(testData.getNodeCount(), index.getNodeCount());
+            for (Node n : testData.getAllNodes()) {
+                assertEquals(n.nodeIndex, index.getNodeIndex(n.nodeId));
+                assertEquals(n.lat, index.getLat(n.nodeIndex), 0);
+                assertEquals(n.lon, index.getLon(n.nodeIndex), 0);
+            }
+            assertEquals(NodeIndex.NODE_NOT_FOUND, index.getNodeIndex(-12345L));
+            
+            Node centre = testData.getNodeById(205L);
+            float minLat = centre.lat-0.015f, maxLat = centre.lat+0.015f;
+            float minLon = centre.lon-0.015f, maxLon = centre.lon+0.015f;
+            int[] found = index.findNodesInBox(minLat, minLon, maxLat, maxLon);
+            Arrays.sort(found);
+            
+            int expectedCount = 0;
+            for (Node n : testData.getAllNodes()) {
+                boolean inBox = n.lat >= minLat && n.lat <= maxLat && n.lon >= minLon && n.lon <= maxLon;
+                assertEquals(inBox, Arrays.binarySearch(found, n.nodeIndex) >= 0);
+                if (inBox)
+                    expectedCount++;
+            }
+            assertEquals(expectedCount, found.length);
+            assertTrue(found.length > 1);
+        }
+    }
+    
+    @Test
+    public void testMappedFrozenGraph() throws IOException {
+        MapData testData = MakeTestData.makeContractedLadder(6,10);
+        String filename = write(testData, new ContainerFormat(), IncludeFrozenGraph.YES);
+        FrozenDijkstra mapped;
+        try (ContainerFile container = ContainerFile.open(filename)) {
+            container.verifyChecksums();
+            mapped = new FrozenDijkstra(container.mapFrozenGraph());
+        }
+        FrozenDijkstra heap = new FrozenDijkstra(testData.freeze());
+        for (Node from : testData.getAllNodes()) {
+            for (Node to : testData.getAllNodes()) {
+                assertEquals(heap.contractedGraphDistance(from, to), mapped.contractedGraphDistance(from, to));
+            }
+        }
+    }
+    
+    @Test
+    public void testCorruptionDetected() throws IOException {
+        MapData testData = MakeTestData.makeContractedLadder(6,10);
+        String filename = write(testData, new ContainerFormat(), IncludeFrozenGraph.NO);
+        long edgeSectionMiddle;
+        try (ContainerFile container = ContainerFile.open(filename)) {
+            assertFalse(container.hasSection(Section.FROZEN_GRAPH));
+            edgeSectionMiddle = container.mapSection(Section.EDGES).capacity()/2;
+            edgeSectionMiddle += sectionOffset(filename, Section.EDGES);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+            raf.seek(edgeSectionMiddle);
+            int original = raf.read();
+            raf.seek(edgeSectionMiddle);
+            raf.write(original ^ 0x10);
+        }
+        
+        try (ContainerFile container = ContainerFile.open(filename)) {
+            container.readNodes(new DiscardingStatusMonitor());
+            try {
+                container.verifyChecksums();
+                fail("Expected checksum failure");
+            } catch (IOException expected) { }
+        }
+    }
+    
+    private static long sectionOffset(String filename, Section section) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+            raf.seek(12);
+            int sectionCount = raf.readInt();
+            for (int i=0 ; i<sectionCount ; i++) {
+                int id = raf.readInt();
+                raf.readInt();
+                long offset = raf.readLong();
+                raf.readLong();
+                if (id == section.id)
+                    return offset;
+            }
+        }
+        throw new IllegalArgumentException("No such section " + section);
+    }
+    
+    private String write(MapData testData, ContainerFormat format, IncludeFrozenGraph includeFrozenGraph) throws IOException {
+        String filename = folder.newFile().getPath();
+        format.write(testData, filename, includeFrozenGraph, new DiscardingStatusMonitor());
+        return filename;
+    }
+    
+}